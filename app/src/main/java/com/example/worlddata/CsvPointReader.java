@@ -0,0 +1,409 @@
+package com.example.worlddata;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Reads point data from CSV files (lon,lat,category,...) by scanning bytes directly.
+ * Numbers are parsed in place, without String.split or per field String allocation.
+ */
+public class CsvPointReader {
+
+    /** Used for debug logs. */
+    private static final String TAG = "CsvPointReader";
+
+    /** Number of rows read between progress reports and cancellation checks. */
+    private static final int PROGRESS_INTERVAL = 1 << 16;
+    /** Size of the buffer used when reading from a stream. */
+    private static final int STREAM_BUFFER_SIZE = 1 << 20;
+    /** Exact powers of ten used by number parsing. */
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22};
+
+    /** Column mapping of a CSV file. Indexes are zero based, category index is -1 if there is no category. */
+    public static class Layout {
+        public byte delimiter = ',';
+        public boolean hasHeader = false;
+        public int lonIndex = 0;
+        public int latIndex = 1;
+        public int categoryIndex = -1;
+
+        /**
+         * Detects delimiter, header and column mapping from the first line of a file.
+         * Header names lon/lng/longitude/x, lat/latitude/y and category/class are recognized.
+         * Without a header the first two columns are coordinates and an integer third column is the category.
+         * @param head First bytes of the file.
+         * @param length Number of valid bytes in head.
+         * @return Detected layout or null if the first lines are not point CSV.
+         */
+        public static Layout detect(byte[] head, int length) {
+            int end = 0;
+            while (end < length && head[end] != '\n') end++;
+            if (end == length && length == head.length) {
+                return null; // First line does not fit into head
+            }
+            String first = new String(head, 0, end, StandardCharsets.UTF_8).trim();
+            if (first.startsWith("\uFEFF")) first = first.substring(1);
+            if (first.isEmpty() || first.charAt(0) == '{' || first.charAt(0) == '[' || first.charAt(0) == 0x1E) {
+                return null;
+            }
+
+            Layout layout = new Layout();
+            int commas = count(first, ','), semicolons = count(first, ';'), tabs = count(first, '\t');
+            if (tabs > commas && tabs > semicolons) layout.delimiter = '\t';
+            else if (semicolons > commas) layout.delimiter = ';';
+            String[] fields = first.split(String.valueOf((char) layout.delimiter), -1);
+            if (fields.length < 2) {
+                return null;
+            }
+
+            boolean numeric = true;
+            for (int i = 0; i < 2; i++) {
+                numeric &= isNumber(unquote(fields[i]));
+            }
+            if (numeric) {
+                if (fields.length > 2 && unquote(fields[2]).matches("-?\\d+")) layout.categoryIndex = 2;
+                return layout;
+            }
+
+            // Header line, map columns by name
+            layout.hasHeader = true;
+            layout.lonIndex = -1;
+            layout.latIndex = -1;
+            for (int i = 0; i < fields.length; i++) {
+                String name = unquote(fields[i]).toLowerCase(Locale.US);
+                if (layout.lonIndex < 0 && (name.equals("lon") || name.equals("lng") || name.equals("long")
+                        || name.equals("longitude") || name.equals("x"))) {
+                    layout.lonIndex = i;
+                } else if (layout.latIndex < 0 && (name.equals("lat") || name.equals("latitude") || name.equals("y"))) {
+                    layout.latIndex = i;
+                } else if (layout.categoryIndex < 0 && (name.equals("category") || name.equals("class"))) {
+                    layout.categoryIndex = i;
+                }
+            }
+            return (layout.lonIndex >= 0 && layout.latIndex >= 0) ? layout : null;
+        }
+
+        private static int count(String text, char c) {
+            int n = 0;
+            for (int i = 0; i < text.length(); i++) if (text.charAt(i) == c) n++;
+            return n;
+        }
+
+        private static String unquote(String field) {
+            field = field.trim();
+            if (field.length() >= 2 && field.charAt(0) == '"' && field.charAt(field.length() - 1) == '"') {
+                field = field.substring(1, field.length() - 1).trim();
+            }
+            return field;
+        }
+
+        private static boolean isNumber(String text) {
+            return text.matches("[-+]?(\\d+\\.?\\d*|\\.\\d+)([eE][-+]?\\d+)?");
+        }
+    }
+
+    private final Layout layout;
+    private final PointStore points = new PointStore();
+    private GeoJsonReader.ProgressListener listener;
+    private int rows = 0;
+    private int malformedRows = 0;
+    private volatile long position = 0;
+
+    /** Fields of the current row, set by scanRow. */
+    private float rowLon;
+    private float rowLat;
+    private int rowCategory;
+    private int rowFound;
+
+    /**
+     * Creates the reader.
+     * @param layout Column mapping of the file.
+     */
+    public CsvPointReader(Layout layout) {
+        this.layout = layout;
+        points.hasCategory = layout.categoryIndex >= 0;
+    }
+
+    /**
+     * Sets the listener notified with the number of rows read so far.
+     * @param listener Listener object or null.
+     */
+    public void setProgressListener(GeoJsonReader.ProgressListener listener) {
+        this.listener = listener;
+    }
+
+    /** @return Position of the last progress report in a mapped file. */
+    public long getBytesRead() {
+        return position;
+    }
+
+    /**
+     * Reads all rows of a mapped file.
+     * @param buffer File contents.
+     * @return Points of all valid rows.
+     * @throws InterruptedIOException if the reading thread was interrupted.
+     */
+    public PointStore read(ByteBuffer buffer) throws IOException {
+        int start = skipByteOrderMark(buffer, buffer.position(), buffer.limit());
+        if (layout.hasHeader) {
+            start = skipLine(buffer, start, buffer.limit());
+        }
+        scan(buffer, start, buffer.limit(), true);
+        return finish();
+    }
+
+    /**
+     * Reads all rows of a stream, for inputs that can not be mapped. The stream is read in large blocks
+     * and a partial last line is carried over to the next block.
+     * @param in Stream of file contents.
+     * @return Points of all valid rows.
+     * @throws IOException if the stream can not be read.
+     */
+    public PointStore read(InputStream in) throws IOException {
+        byte[] block = new byte[STREAM_BUFFER_SIZE];
+        ByteBuffer buffer = ByteBuffer.wrap(block);
+        // Strip the byte order mark once, before blocks are carried over or grown
+        int length = 0;
+        while (length < 3) {
+            int n = in.read(block, length, 3 - length);
+            if (n < 0) break;
+            length += n;
+        }
+        if (skipByteOrderMark(buffer, 0, length) > 0) {
+            length = 0;
+        }
+        boolean headerSkipped = !layout.hasHeader;
+        boolean eof = false;
+        while (!eof) {
+            int n = in.read(block, length, block.length - length);
+            if (n < 0) {
+                eof = true;
+            } else {
+                length += n;
+                if (length < block.length) continue;
+            }
+            int start = 0;
+            if (!headerSkipped) {
+                start = skipLine(buffer, start, length);
+                headerSkipped = start < length || eof;
+                if (!headerSkipped) {
+                    // Header longer than the block, grow it
+                    block = Arrays.copyOf(block, block.length * 2);
+                    buffer = ByteBuffer.wrap(block);
+                    continue;
+                }
+            }
+            int consumed = scan(buffer, start, length, eof);
+            if (consumed == 0 && length == block.length) {
+                // Single line longer than the block, grow it
+                block = Arrays.copyOf(block, block.length * 2);
+                buffer = ByteBuffer.wrap(block);
+                continue;
+            }
+            System.arraycopy(block, consumed, block, 0, length - consumed);
+            length -= consumed;
+        }
+        return finish();
+    }
+
+    private PointStore finish() {
+        if (listener != null) {
+            listener.onProgress(rows);
+        }
+        if (malformedRows > 0) {
+            Log.w(TAG, malformedRows + " of " + rows + " rows have no valid coordinates");
+        }
+        return points;
+    }
+
+    /**
+     * Scans complete lines of a byte range and stores their points.
+     * @param buffer Bytes to be scanned.
+     * @param start Index of the first byte.
+     * @param end Index after the last byte.
+     * @param last If true, a last line without line break is scanned as well.
+     * @return Index of the first byte that was not consumed.
+     * @throws InterruptedIOException if the reading thread was interrupted.
+     */
+    private int scan(ByteBuffer buffer, int start, int end, boolean last) throws InterruptedIOException {
+        int lineStart = start;
+        while (lineStart < end) {
+            int lineEnd = lineStart;
+            while (lineEnd < end && buffer.get(lineEnd) != '\n') lineEnd++;
+            if (lineEnd == end && !last) {
+                break; // Partial line, scanned with the next block
+            }
+            if (scanRow(buffer, lineStart, lineEnd)) {
+                rows++;
+                if (rowFound >= 2) {
+                    points.add(rowLon, rowLat, rowCategory);
+                } else {
+                    malformedRows++;
+                }
+                if (rows % PROGRESS_INTERVAL == 0) {
+                    if (Thread.currentThread().isInterrupted()) {
+                        throw new InterruptedIOException("Reading cancelled after " + rows + " rows");
+                    }
+                    position = lineEnd;
+                    if (listener != null) listener.onProgress(rows);
+                }
+            }
+            lineStart = lineEnd + 1;
+        }
+        return Math.min(lineStart, end);
+    }
+
+    /**
+     * Scans fields of a single line into the row fields.
+     * @param buffer Bytes to be scanned.
+     * @param start Index of the first byte of the line.
+     * @param end Index of the line break or end of data.
+     * @return false if the line is empty.
+     */
+    private boolean scanRow(ByteBuffer buffer, int start, int end) {
+        if (end > start && buffer.get(end - 1) == '\r') end--;
+        if (end == start) {
+            return false;
+        }
+        rowFound = 0;
+        rowCategory = PointStore.NO_CATEGORY;
+        int field = 0;
+        int fieldStart = start;
+        boolean quoted = false;
+        for (int i = start; i <= end; i++) {
+            byte b = i < end ? buffer.get(i) : layout.delimiter;
+            if (b == '"') {
+                quoted = !quoted;
+            } else if (b == layout.delimiter && !quoted) {
+                if (field == layout.lonIndex) {
+                    double value = parseNumber(buffer, fieldStart, i);
+                    if (!Double.isNaN(value)) { rowLon = (float) value; rowFound++; }
+                } else if (field == layout.latIndex) {
+                    double value = parseNumber(buffer, fieldStart, i);
+                    if (!Double.isNaN(value)) { rowLat = (float) value; rowFound++; }
+                } else if (field == layout.categoryIndex) {
+                    double value = parseNumber(buffer, fieldStart, i);
+                    if (!Double.isNaN(value) && value == Math.rint(value)) rowCategory = (int) value;
+                }
+                field++;
+                fieldStart = i + 1;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Parses a decimal number of a field. Surrounding spaces and quotes are ignored.
+     * @param buffer Bytes of the file.
+     * @param start Index of the first byte of the field.
+     * @param end Index after the last byte of the field.
+     * @return Parsed value or NaN if the field is not a number.
+     */
+    static double parseNumber(ByteBuffer buffer, int start, int end) {
+        while (start < end && (buffer.get(start) == ' ' || buffer.get(start) == '"')) start++;
+        while (end > start && (buffer.get(end - 1) == ' ' || buffer.get(end - 1) == '"')) end--;
+        if (start == end) {
+            return Double.NaN;
+        }
+        int i = start;
+        boolean negative = false;
+        byte b = buffer.get(i);
+        if (b == '-' || b == '+') {
+            negative = b == '-';
+            i++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int exponent = 0;
+        boolean any = false;
+        // Integer part
+        for (; i < end; i++) {
+            b = buffer.get(i);
+            if (b < '0' || b > '9') break;
+            any = true;
+            if (digits < 18) {
+                mantissa = mantissa * 10 + (b - '0');
+                if (mantissa != 0) digits++;
+            } else {
+                exponent++;
+            }
+        }
+        // Fraction part
+        if (i < end && buffer.get(i) == '.') {
+            for (i++; i < end; i++) {
+                b = buffer.get(i);
+                if (b < '0' || b > '9') break;
+                any = true;
+                if (digits < 18) {
+                    mantissa = mantissa * 10 + (b - '0');
+                    if (mantissa != 0) digits++;
+                    exponent--;
+                }
+            }
+        }
+        if (!any) {
+            return Double.NaN;
+        }
+        // Exponent part
+        if (i < end && (buffer.get(i) == 'e' || buffer.get(i) == 'E')) {
+            i++;
+            boolean negativeExponent = false;
+            if (i < end && (buffer.get(i) == '-' || buffer.get(i) == '+')) {
+                negativeExponent = buffer.get(i) == '-';
+                i++;
+            }
+            int value = 0;
+            boolean expDigits = false;
+            for (; i < end; i++) {
+                b = buffer.get(i);
+                if (b < '0' || b > '9') break;
+                expDigits = true;
+                if (value < 10000) value = value * 10 + (b - '0');
+            }
+            if (!expDigits) return Double.NaN;
+            exponent += negativeExponent ? -value : value;
+        }
+        if (i != end) {
+            return Double.NaN;
+        }
+        double result = mantissa;
+        if (exponent != 0) {
+            if (exponent > 0 && exponent < POWERS_OF_TEN.length) {
+                result *= POWERS_OF_TEN[exponent];
+            } else if (exponent < 0 && -exponent < POWERS_OF_TEN.length) {
+                result /= POWERS_OF_TEN[-exponent];
+            } else {
+                result *= Math.pow(10, exponent);
+            }
+        }
+        return negative ? -result : result;
+    }
+
+    /**
+     * @return Index after the UTF-8 byte order mark at start, or start if there is none.
+     */
+    private static int skipByteOrderMark(ByteBuffer buffer, int start, int end) {
+        if (end - start >= 3 && (buffer.get(start) & 0xFF) == 0xEF && (buffer.get(start + 1) & 0xFF) == 0xBB
+                && (buffer.get(start + 2) & 0xFF) == 0xBF) {
+            return start + 3;
+        }
+        return start;
+    }
+
+    /**
+     * @return Index after the line break of the line starting at start, or end if there is none.
+     */
+    private static int skipLine(ByteBuffer buffer, int start, int end) {
+        while (start < end && buffer.get(start) != '\n') start++;
+        return Math.min(start + 1, end);
+    }
+}
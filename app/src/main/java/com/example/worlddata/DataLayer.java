@@ -0,0 +1,82 @@
+package com.example.worlddata;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Rect;
+
+/**
+ * Single loaded dataset shown on the world model. Holds the parsed points and the overlay rendered from them,
+ * cropped to the bounds of the data, so visibility can be toggled without parsing or binning again.
+ */
+public class DataLayer {
+
+    /** Colors of layers without categories, assigned in load order. */
+    private static final int[] COLORS = {Color.WHITE, Color.YELLOW, Color.CYAN, Color.MAGENTA,
+            Color.rgb(255, 140, 0), Color.rgb(120, 255, 120)};
+
+    public final String name;
+    public final int color;
+    /** Replaced by the loading threads while the UI and GL threads read it. */
+    public volatile PointStore points;
+    public volatile boolean visible = true;
+    /** Reader of a spatially indexed file read window by window, null if all points are loaded. */
+    public volatile FlatGeobufReader windowReader;
+    /**
+     * Binned counts of a categorized layer, null if the layer has no categories. Kept to compose the overlay again
+     * with another color scale or as heatmap without binning, only the allocated tiles of the grid take memory.
+     */
+    public volatile DensityGrid grid;
+    /** Points on the GPU, drawn when the renderer draws points from vertex buffers. Used on the GL thread only. */
+    public PointCloud cloud;
+    /**
+     * True once points were handed to the GL thread to become the cloud, which may not have been installed yet.
+     * Tells worker threads which layers still need a cloud without reading it.
+     */
+    public volatile boolean cloudQueued;
+
+    /** Rendered overlay and its pixel position on the world texture. */
+    private Bitmap overlay;
+    private int left;
+    private int top;
+
+    /**
+     * Creates an empty layer.
+     * @param name Name shown in the layer list.
+     * @param index Load order of the layer, used to pick its color.
+     */
+    public DataLayer(String name, int index) {
+        this.name = name;
+        this.color = COLORS[index % COLORS.length];
+    }
+
+    /**
+     * Replaces the rendered overlay of the layer.
+     * @param overlay Overlay Bitmap covering the bounds of the layer, or null if nothing was drawn.
+     * @param left Horizontal pixel position of the overlay on the world texture.
+     * @param top Vertical pixel position of the overlay on the world texture.
+     */
+    public synchronized void setOverlay(Bitmap overlay, int left, int top) {
+        this.overlay = overlay;
+        this.left = left;
+        this.top = top;
+    }
+
+    /** @return Pixel region of the overlay on the world texture, or null if nothing was drawn. */
+    public synchronized Rect getBounds() {
+        if (overlay == null) {
+            return null;
+        }
+        return new Rect(left, top, left + overlay.getWidth(), top + overlay.getHeight());
+    }
+
+    /**
+     * Draws the overlay of the layer on a world texture sized canvas.
+     * @param canvas Canvas of the combined data overlay.
+     */
+    public synchronized void drawOverlay(Canvas canvas) {
+        if (overlay != null) {
+            canvas.drawBitmap(overlay, left, top, null);
+        }
+    }
+}
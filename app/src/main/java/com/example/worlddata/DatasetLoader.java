@@ -0,0 +1,678 @@
+package com.example.worlddata;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
+import android.provider.OpenableColumns;
+import android.util.Log;
+
+import com.google.gson.JsonParseException;
+import com.google.gson.stream.MalformedJsonException;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
+
+public class DatasetLoader {
+
+    /** Used for debug logs. */
+    private static final String TAG = "DatasetLoader";
+
+    /** Minimal time between two progress reports in milliseconds. */
+    private static final long PROGRESS_INTERVAL = 200;
+    /** Number of bytes at the start of a file used for format detection. */
+    private static final int HEAD_SIZE = 1 << 16;
+    /** Size of the compressed input buffer of gzip decompression. */
+    private static final int GZIP_BUFFER_SIZE = 1 << 16;
+    /** FlatGeobuf files with more features are read window by window if they have a spatial index. */
+    private static final long WINDOW_FEATURES = 500000;
+    /** Number of files of one selection loaded at the same time. */
+    private static final int FILE_THREADS = Math.max(1, Math.min(3, Runtime.getRuntime().availableProcessors()));
+
+    /** Receives the state of a load. All methods are called on the UI thread. */
+    public interface Listener {
+        void onProgress(String text);
+        void onLoaded(List<DataLayer> layers);
+        void onError(String message);
+    }
+
+    private final ContentResolver resolver;
+    private final PointCache cache;
+    private final OpenGLView view;
+    private final Listener listener;
+    private final Handler uiHandler = new Handler(Looper.getMainLooper());
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    /** Loads files of one selection concurrently, bounded so parsers and their overlays do not exhaust memory. */
+    private final ExecutorService filePool = Executors.newFixedThreadPool(FILE_THREADS);
+
+    /** Currently running load or window read and its id. Results of older loads are ignored. */
+    private Future<?> current;
+    private boolean currentIsWindow = false;
+    private volatile int currentId = 0;
+
+    /**
+     * Creates the loader. Loads run one at a time on a single worker thread, their files on a bounded pool.
+     * @param resolver Content resolver used to open picked files.
+     * @param cache Cache of previously parsed files.
+     * @param view View holding the renderer that receives loaded data.
+     * @param listener Listener of load progress and results.
+     */
+    public DatasetLoader(ContentResolver resolver, PointCache cache, OpenGLView view, Listener listener) {
+        this.resolver = resolver;
+        this.cache = cache;
+        this.view = view;
+        this.listener = listener;
+    }
+
+    /**
+     * Cancels the running load and starts loading the given file.
+     * @param uri Content Uri of the picked file.
+     */
+    public void load(Uri uri) {
+        load(Collections.singletonList(uri));
+    }
+
+    /**
+     * Cancels the running load and starts loading the given files, each as its own data layer.
+     * Files are read, parsed and rendered concurrently; only composition and texture refresh are queued to the GL thread.
+     * @param uris Content Uris of the picked files.
+     */
+    public void load(final List<Uri> uris) {
+        cancel();
+        final int id = ++currentId;
+        currentIsWindow = false;
+        current = executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                runLoad(id, uris);
+            }
+        });
+    }
+
+    /**
+     * Reads the features of the visible window again for layers of files read window by window.
+     * Called after the view was rotated or zoomed. A running window read is cancelled, a running load is not.
+     */
+    public void loadVisible() {
+        if (current != null && !current.isDone() && !currentIsWindow) {
+            return;
+        }
+        final List<DataLayer> windowed = new ArrayList<>();
+        for (DataLayer layer : view.renderer.layers) {
+            if (layer.windowReader != null) windowed.add(layer);
+        }
+        if (windowed.isEmpty()) {
+            return;
+        }
+        cancel();
+        final int id = ++currentId;
+        currentIsWindow = true;
+        current = executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                runWindow(id, windowed);
+            }
+        });
+    }
+
+    /**
+     * Changes the color scale of categorized layers and composes their overlays again from the kept counts.
+     * Runs after a load in progress, whose layers are then composed with the new scale already.
+     * @param scale New color scale.
+     */
+    public void setColorScale(OpenGLRenderer.ColorScale scale) {
+        view.renderer.colorScale = scale;
+        recompose();
+    }
+
+    /**
+     * Switches categorized layers between category colors and heatmap and composes their overlays again from
+     * the kept counts. Points are not binned again, a new radius only blurs the counts again.
+     * @param heatmap If true, layers are shown as heatmap.
+     * @param radius Standard deviation of the heatmap kernel in pixels at the equator.
+     */
+    public void setHeatmap(boolean heatmap, float radius) {
+        if (view.renderer.heatmap == heatmap && (!heatmap || view.renderer.heatmapRadius == radius)) {
+            return;
+        }
+        view.renderer.heatmap = heatmap;
+        view.renderer.heatmapRadius = radius;
+        recompose();
+    }
+
+    /**
+     * Switches layers between points drawn from vertex buffers, density binned on the GPU from vertex buffers
+     * and the data overlay texture. Vertex buffers of loaded layers are created after a load in progress.
+     * @param gpuPoints If true, points are drawn from vertex buffers.
+     * @param gpuDensity If true, points are binned on the GPU. Ignored if gpuPoints is set.
+     */
+    public void setGpuMode(boolean gpuPoints, boolean gpuDensity) {
+        view.renderer.gpuPoints = gpuPoints;
+        view.renderer.gpuDensity = gpuDensity && !gpuPoints;
+        if (!gpuPoints && !gpuDensity) {
+            return;
+        }
+        executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                long start = SystemClock.elapsedRealtime();
+                for (DataLayer layer : view.renderer.layers) {
+                    if (!layer.cloudQueued) {
+                        view.renderer.setPointCloud(layer, view.renderer.createPointCloud(layer.points));
+                    }
+                }
+                Log.i(TAG, "Created point buffers in " + (SystemClock.elapsedRealtime() - start) + " ms");
+            }
+        });
+    }
+
+    /** Composes overlays of categorized layers again from their kept counts, after a load in progress. */
+    private void recompose() {
+        executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                long start = SystemClock.elapsedRealtime();
+                view.renderer.recomposeCategories();
+                view.renderer.requestCompose();
+                Log.i(TAG, "Recomposed layers in " + (SystemClock.elapsedRealtime() - start) + " ms");
+            }
+        });
+    }
+
+    /** Cancels the running load, if any. Drawing of its overlays stops at the next stage or check point. */
+    public void cancel() {
+        if (current != null) {
+            current.cancel(true);
+            current = null;
+        }
+        currentId++;
+    }
+
+    /** Cancels the running load and stops the worker threads. */
+    public void shutdown() {
+        cancel();
+        executor.shutdownNow();
+        filePool.shutdownNow();
+    }
+
+    /**
+     * Runs a load of one or more files on the worker thread. Files are loaded on the file pool,
+     * so the load takes about as long as its largest file. Layers are shown together once all files are done.
+     * @param id Id of this load.
+     * @param uris Content Uris of the picked files.
+     */
+    private void runLoad(final int id, List<Uri> uris) {
+        long start = SystemClock.elapsedRealtime();
+        List<Future<DataLayer>> futures = new ArrayList<>();
+        try {
+            for (int i = 0; i < uris.size(); i++) {
+                final int index = i;
+                final Uri uri = uris.get(i);
+                final int count = uris.size();
+                futures.add(filePool.submit(new Callable<DataLayer>() {
+                    @Override
+                    public DataLayer call() {
+                        return loadLayer(id, uri, index, count);
+                    }
+                }));
+            }
+            List<DataLayer> layers = new ArrayList<>();
+            boolean windowed = false;
+            for (Future<DataLayer> future : futures) {
+                DataLayer layer = future.get();
+                if (layer != null) {
+                    layers.add(layer);
+                    windowed |= layer.windowReader != null;
+                }
+            }
+            if (isCancelled(id) || layers.isEmpty()) return;
+
+            // Windowed files already moved the view to their extent
+            if (!windowed) goToLayers(layers);
+            view.renderer.setLayers(layers);
+            Log.i(TAG, "Loaded " + layers.size() + " of " + uris.size() + " files in "
+                    + (SystemClock.elapsedRealtime() - start) + " ms");
+            postLoaded(id, layers);
+        } catch (InterruptedException e) {
+            Log.i(TAG, "Load cancelled");
+        } catch (ExecutionException e) {
+            e.printStackTrace();
+            postError(id, "Could not process selected file.");
+        } finally {
+            // Stops files still loading when the load was cancelled
+            for (Future<DataLayer> future : futures) future.cancel(true);
+        }
+    }
+
+    /**
+     * Reads, parses and renders a single file on the file pool. Errors are posted to the listener.
+     * @param id Id of this load.
+     * @param uri Content Uri of the picked file.
+     * @param index Position of the file in the selection.
+     * @param count Number of selected files.
+     * @return Rendered layer or null if the file could not be loaded or the load was cancelled.
+     */
+    private DataLayer loadLayer(int id, Uri uri, int index, int count) {
+        long start = SystemClock.elapsedRealtime();
+        String name = getDisplayName(uri);
+        String prefix = count > 1 ? name + ": " : "";
+        DataLayer layer = new DataLayer(name, index);
+        try {
+            // Previously parsed files are read from the columnar cache
+            String key = PointCache.key(resolver, uri);
+            layer.points = key != null ? cache.read(key) : null;
+            boolean cached = layer.points != null;
+            if (cached) {
+                Log.i(TAG, "Read " + layer.points.size + " cached points of " + name + " in "
+                        + (SystemClock.elapsedRealtime() - start) + " ms");
+            } else {
+                try {
+                    layer.points = parse(id, uri, layer, prefix);
+                } catch (IllegalStateException | JsonParseException | MalformedJsonException e) {
+                    e.printStackTrace();
+                    postError(id, prefix + "Please select file with GeoJSON or CSV structure");
+                    return null;
+                }
+                Log.i(TAG, "Parsed " + layer.points.size + " points of " + name + " in "
+                        + (SystemClock.elapsedRealtime() - start) + " ms");
+            }
+
+            if (!render(id, layer, prefix)) return null;
+            Log.i(TAG, "Layer " + name + " finished in " + (SystemClock.elapsedRealtime() - start) + " ms");
+            if (!cached && layer.windowReader == null && key != null) {
+                cache.write(key, layer.points);
+            }
+            return layer;
+        } catch (InterruptedIOException e) {
+            Log.i(TAG, "Load of " + name + " cancelled: " + e.getMessage());
+        } catch (IOException e) {
+            e.printStackTrace();
+            postError(id, prefix + "Could not read selected file.");
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+            postError(id, prefix + "Could not process selected file.");
+        }
+        return null;
+    }
+
+    /**
+     * Reads and renders the features of the visible window of layers from spatially indexed files.
+     * @param id Id of this read.
+     * @param layers Layers with a window reader.
+     */
+    private void runWindow(int id, List<DataLayer> layers) {
+        long start = SystemClock.elapsedRealtime();
+        try {
+            float[] window = view.renderer.getVisibleWindow();
+            postProgress(id, "Reading visible area");
+            for (DataLayer layer : layers) {
+                PointStore points = layer.windowReader.read(window[0], window[1], window[2], window[3]);
+                Log.i(TAG, String.format(Locale.US, "Read %d points of %s in window %.1f, %.1f, %.1f, %.1f in %d ms",
+                        points.size, layer.name, window[0], window[1], window[2], window[3],
+                        SystemClock.elapsedRealtime() - start));
+                if (isCancelled(id)) return;
+                layer.points = points;
+                if (!render(id, layer, "")) return;
+            }
+            view.renderer.requestCompose();
+            postLoaded(id, new ArrayList<>(view.renderer.layers));
+        } catch (InterruptedIOException e) {
+            Log.i(TAG, "Window read cancelled: " + e.getMessage());
+        } catch (IOException e) {
+            e.printStackTrace();
+            postError(id, "Could not read selected file.");
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+            postError(id, "Could not process selected file.");
+        }
+    }
+
+    /**
+     * Bin and compose stages. The overlay Bitmap of the layer is drawn off the GL thread and swapped into the layer
+     * once finished, it is composed with other layers on the GL thread later. A cancelled load leaves the overlay
+     * of the layer as it was.
+     * @param id Id of this load.
+     * @param layer Layer with loaded points.
+     * @param prefix Text put before progress reports.
+     * @return false if the load was cancelled.
+     */
+    private boolean render(int id, DataLayer layer, String prefix) {
+        OpenGLRenderer renderer = view.renderer;
+        PointStore points = layer.points;
+        if (points.hasCategory) {
+            Log.i("Interpretation", "Found that properties contain - category.");
+            postProgress(id, prefix + "Binning " + points.size + " points");
+            OpenGLRenderer.CategoryLayers layers = renderer.binCategories(points);
+            if (isCancelled(id)) return false;
+            postProgress(id, prefix + "Composing overlay");
+            renderer.composeCategories(layers, layer);
+        } else {
+            Log.i("Interpretation", "Did not find property - category.");
+            postProgress(id, prefix + "Drawing " + points.size + " points");
+            renderer.drawPoints(points, layer);
+        }
+        if ((renderer.gpuPoints || renderer.gpuDensity) && !isCancelled(id)) {
+            renderer.setPointCloud(layer, renderer.createPointCloud(points));
+        }
+        return !isCancelled(id);
+    }
+
+    /**
+     * Moves the view to the middle of all loaded layers.
+     * @param layers Loaded layers.
+     */
+    private void goToLayers(List<DataLayer> layers) {
+        float minLon = 180, maxLon = -180, minLat = 90, maxLat = -90;
+        for (DataLayer layer : layers) {
+            PointStore points = layer.points;
+            if (points.size == 0) continue;
+            minLon = Math.min(minLon, points.minLon);
+            maxLon = Math.max(maxLon, points.maxLon);
+            minLat = Math.min(minLat, points.minLat);
+            maxLat = Math.max(maxLat, points.maxLat);
+        }
+        if (minLon <= maxLon) {
+            view.renderer.goToBounds(minLon, maxLon, minLat, maxLat);
+        }
+    }
+
+    /**
+     * @param uri Content Uri of a picked file.
+     * @return File name shown to the user, or last segment of the Uri if the name is not known.
+     */
+    private String getDisplayName(Uri uri) {
+        Cursor cursor = null;
+        try {
+            cursor = resolver.query(uri, null, null, null, null);
+            if (cursor != null && cursor.moveToFirst()) {
+                int nameIndex = cursor.getColumnIndex(OpenableColumns.DISPLAY_NAME);
+                if (nameIndex >= 0 && !cursor.isNull(nameIndex)) return cursor.getString(nameIndex);
+            }
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Could not query file name", e);
+        } finally {
+            if (cursor != null) cursor.close();
+        }
+        String segment = uri.getLastPathSegment();
+        return segment != null ? segment : "Data";
+    }
+
+    /**
+     * Read and parse stages. Detects gzip compression, FlatGeobuf, CSV and newline-delimited GeoJSON from the first bytes
+     * of the file, otherwise the file is streamed through GeoJsonReader. Compressed files are decompressed while streaming.
+     * Large FlatGeobuf files with a spatial index are read only in the visible window around their extent.
+     * @param id Id of this load.
+     * @param uri Content Uri of the picked file.
+     * @param layer Layer of the file, receives the window reader of large indexed files.
+     * @param prefix Text put before progress reports.
+     * @return Parsed points.
+     * @throws IOException if the file can not be read or is not valid JSON.
+     */
+    private PointStore parse(final int id, Uri uri, DataLayer layer, String prefix) throws IOException {
+        long start = SystemClock.elapsedRealtime();
+        final CountingInputStream counter = new CountingInputStream(resolver.openInputStream(uri));
+        InputStream in = new BufferedInputStream(counter, HEAD_SIZE);
+        try {
+            // Sniff the file format
+            byte[] head = new byte[HEAD_SIZE];
+            int length = readHead(in, head);
+            boolean gzip = length >= 2 && (head[0] & 0xFF) == 0x1F && (head[1] & 0xFF) == 0x8B;
+            if (gzip) {
+                Log.i(TAG, "Detected gzip compressed file");
+                in = new BufferedInputStream(new GZIPInputStream(in, GZIP_BUFFER_SIZE), HEAD_SIZE);
+                length = readHead(in, head);
+            }
+
+            PointStore points;
+            long bytes;
+            CsvPointReader.Layout layout = null;
+            if (FlatGeobufReader.isFlatGeobuf(head, length)) {
+                Log.i(TAG, "Detected FlatGeobuf");
+                // Index and features are read in place, compressed files are decompressed to memory first
+                ByteBuffer map = gzip ? null : mapFile(uri);
+                if (map == null) map = readFully(in);
+                FlatGeobufReader reader = new FlatGeobufReader(map);
+                double[] envelope = reader.envelope;
+                if (reader.hasIndex() && reader.featuresCount > WINDOW_FEATURES && envelope != null) {
+                    if (isCancelled(id)) {
+                        throw new InterruptedIOException("Cancelled before moving the view");
+                    }
+                    view.renderer.goToBounds((float) envelope[0], (float) envelope[2], (float) envelope[1], (float) envelope[3]);
+                    float[] window = view.renderer.getVisibleWindow();
+                    points = reader.read(window[0], window[1], window[2], window[3]);
+                    layer.windowReader = reader;
+                    Log.i(TAG, "Read " + points.size + " of " + reader.featuresCount + " features in visible window");
+                } else {
+                    points = reader.read();
+                }
+                bytes = map.limit();
+            } else if ((layout = CsvPointReader.Layout.detect(head, length)) != null) {
+                Log.i(TAG, "Detected CSV with lon column " + layout.lonIndex + ", lat column " + layout.latIndex
+                        + ", category column " + layout.categoryIndex);
+                final CsvPointReader csvReader = new CsvPointReader(layout);
+                ByteBuffer map = gzip ? null : mapFile(uri);
+                final boolean mapped = map != null;
+                csvReader.setProgressListener(new ThrottledProgress(id, prefix) {
+                    @Override
+                    long getBytes() {
+                        return mapped ? csvReader.getBytesRead() : counter.getCount();
+                    }
+                });
+                points = mapped ? csvReader.read(map) : csvReader.read(in);
+                bytes = mapped ? map.limit() : counter.getCount();
+            } else if (GeoJsonSeqReader.isSequence(head, length)) {
+                Log.i(TAG, "Detected newline-delimited GeoJSON");
+                final GeoJsonSeqReader seqReader = new GeoJsonSeqReader();
+                ByteBuffer map = gzip ? null : mapFile(uri);
+                final boolean mapped = map != null;
+                seqReader.setProgressListener(new ThrottledProgress(id, prefix) {
+                    @Override
+                    long getBytes() {
+                        return mapped ? seqReader.getBytesRead() : counter.getCount();
+                    }
+                });
+                points = mapped ? seqReader.read(map) : seqReader.read(in);
+                bytes = mapped ? seqReader.getBytesRead() : counter.getCount();
+            } else {
+                GeoJsonReader reader = new GeoJsonReader(new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8)));
+                reader.setProgressListener(new ThrottledProgress(id, prefix) {
+                    @Override
+                    long getBytes() {
+                        return counter.getCount();
+                    }
+                });
+                points = reader.read();
+                bytes = counter.getCount();
+            }
+
+            // Log file bytes to points throughput for comparing compressed and raw input
+            long time = Math.max(1, SystemClock.elapsedRealtime() - start);
+            Log.i(TAG, String.format(Locale.US, "%s input: %.1f MB to %d points in %d ms, %.1f MB/s, %d points/s",
+                    gzip ? "Gzip" : "Raw", bytes / 1048576f, points.size, time,
+                    bytes / 1048576f * 1000 / time, points.size * 1000L / time));
+            return points;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Reads the first bytes of a stream and resets it back to the start.
+     * @param in Stream supporting mark and reset.
+     * @param head Array receiving the bytes.
+     * @return Number of bytes read.
+     * @throws IOException
+     */
+    private static int readHead(InputStream in, byte[] head) throws IOException {
+        in.mark(head.length);
+        int length = 0, n;
+        while (length < head.length && (n = in.read(head, length, head.length - length)) > 0) length += n;
+        in.reset();
+        return length;
+    }
+
+    /**
+     * Reads the rest of a stream into memory, for files that need random access but can not be mapped.
+     * @param in Stream of file contents.
+     * @return Buffer holding all bytes.
+     * @throws IOException if the stream can not be read.
+     */
+    private static ByteBuffer readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] block = new byte[HEAD_SIZE];
+        int n;
+        while ((n = in.read(block)) > 0) {
+            if (Thread.currentThread().isInterrupted()) throw new InterruptedIOException("Reading cancelled");
+            out.write(block, 0, n);
+        }
+        return ByteBuffer.wrap(out.toByteArray());
+    }
+
+    /**
+     * Maps the picked file into memory.
+     * @param uri Content Uri of the picked file.
+     * @return Read only mapping of the whole file, or null if the file can not be mapped.
+     */
+    private ByteBuffer mapFile(Uri uri) {
+        ParcelFileDescriptor descriptor = null;
+        FileInputStream in = null;
+        try {
+            descriptor = resolver.openFileDescriptor(uri, "r");
+            if (descriptor == null) return null;
+            in = new FileInputStream(descriptor.getFileDescriptor());
+            FileChannel channel = in.getChannel();
+            long size = channel.size();
+            if (size <= 0 || size > Integer.MAX_VALUE) return null;
+            // Mapping stays valid after the channel is closed
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "Could not map file, reading it as a stream", e);
+            return null;
+        } finally {
+            try {
+                if (in != null) in.close();
+                if (descriptor != null) descriptor.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Checks if the load was cancelled or replaced by a newer one.
+     * @param id Id of the load.
+     * @return true if the load should stop.
+     */
+    private boolean isCancelled(int id) {
+        return id != currentId || Thread.currentThread().isInterrupted();
+    }
+
+    private void postProgress(final int id, final String text) {
+        uiHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (id == currentId) listener.onProgress(text);
+            }
+        });
+    }
+
+    private void postLoaded(final int id, final List<DataLayer> layers) {
+        uiHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (id == currentId) listener.onLoaded(layers);
+            }
+        });
+    }
+
+    private void postError(final int id, final String message) {
+        uiHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (id == currentId) listener.onError(message);
+            }
+        });
+    }
+
+    /** Posts parse progress at most once per PROGRESS_INTERVAL. */
+    private abstract class ThrottledProgress implements GeoJsonReader.ProgressListener {
+        private final int id;
+        private final String prefix;
+        private long lastReport = 0;
+
+        ThrottledProgress(int id, String prefix) {
+            this.id = id;
+            this.prefix = prefix;
+        }
+
+        /** @return Number of bytes read so far. */
+        abstract long getBytes();
+
+        @Override
+        public void onProgress(int features) {
+            long now = SystemClock.elapsedRealtime();
+            if (now - lastReport >= PROGRESS_INTERVAL) {
+                lastReport = now;
+                postProgress(id, prefix + String.format(Locale.US, "Reading: %.1f MB, %d features",
+                        getBytes() / 1048576f, features));
+            }
+        }
+    }
+
+    /** Input stream that counts the bytes read through it. */
+    private static class CountingInputStream extends FilterInputStream {
+        private volatile long count = 0;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        long getCount() {
+            return count;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) count++;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) count += n;
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+    }
+}
@@ -0,0 +1,256 @@
+package com.example.worlddata;
+
+/**
+ * Per-category point counts of every pixel of the world texture, stored in square tiles.
+ * Tiles are allocated only where points fall, so regional data costs a few tiles instead of the whole texture.
+ * Every tile holds the counts of all categories of a cell next to each other.
+ * Per-category maximum and sum and a histogram of pixel counts are kept up to date while counting,
+ * so color scaling never has to scan the grid.
+ */
+public class DensityGrid {
+
+    /** Tile edge length in pixels, a power of two. */
+    public static final int TILE_SIZE = 256;
+    /** Number of counted categories, one per color channel. */
+    public static final int CHANNELS = 3;
+    public static final int RED = 0;
+    public static final int GREEN = 1;
+    public static final int BLUE = 2;
+
+    private static final int TILE_SHIFT = 8;
+    private static final int TILE_MASK = TILE_SIZE - 1;
+    /** Counts below this have their own histogram bin, larger counts share one bin per power of two. */
+    private static final int EXACT_BINS = 1024;
+    private static final int EXACT_BITS = 10;
+    public static final int HISTOGRAM_BINS = EXACT_BINS + 32 - EXACT_BITS;
+
+    public final int width;
+    public final int height;
+    public final int tilesX;
+    public final int tilesY;
+    /** Tiles in row order, null where no point fell. Cell (x, y) of a tile starts at (y * TILE_SIZE + x) * CHANNELS. */
+    private final int[][] tiles;
+    private int allocated = 0;
+    /** Number of points binned into every channel. */
+    public final int[] points = new int[CHANNELS];
+    /** Highest count and sum of counts of every channel. */
+    private final int[] max = new int[CHANNELS];
+    private final long[] sum = new long[CHANNELS];
+    /** Number of pixels by their highest count of any category, see getBin. Empty pixels are not counted. */
+    private final long[] histogram = new long[HISTOGRAM_BINS];
+
+    /**
+     * Creates an empty grid. No tiles are allocated.
+     * @param width Width in pixels.
+     * @param height Height in pixels.
+     */
+    public DensityGrid(int width, int height) {
+        this.width = width;
+        this.height = height;
+        tilesX = (width + TILE_SIZE - 1) >> TILE_SHIFT;
+        tilesY = (height + TILE_SIZE - 1) >> TILE_SHIFT;
+        tiles = new int[tilesX * tilesY][];
+    }
+
+    /**
+     * Increments the count of a category in a pixel. Pixels outside the grid are ignored.
+     * @param x Horizontal pixel coordinate from left side.
+     * @param y Vertical pixel coordinate from the top.
+     * @param channel Category channel, RED, GREEN or BLUE.
+     */
+    public void add(int x, int y, int channel) {
+        if (x < 0 || y < 0 || x >= width || y >= height) {
+            return;
+        }
+        int index = (y >> TILE_SHIFT) * tilesX + (x >> TILE_SHIFT);
+        int[] tile = tiles[index];
+        if (tile == null) {
+            tile = tiles[index] = new int[TILE_SIZE * TILE_SIZE * CHANNELS];
+            allocated++;
+        }
+        int cell = (((y & TILE_MASK) << TILE_SHIFT) + (x & TILE_MASK)) * CHANNELS;
+        int count = ++tile[cell + channel];
+        sum[channel]++;
+        if (count > max[channel]) max[channel] = count;
+        // The pixel moves to the next histogram bin only if the category is now its strongest
+        if (count > maxOfOthers(tile, cell, channel)) {
+            if (count > 1) histogram[getBin(count - 1)]--;
+            histogram[getBin(count)]++;
+        }
+    }
+
+    private static int maxOfOthers(int[] tile, int cell, int channel) {
+        int others = 0;
+        for (int c = 0; c < CHANNELS; c++) {
+            if (c != channel && tile[cell + c] > others) others = tile[cell + c];
+        }
+        return others;
+    }
+
+    private static int maxOfCell(int[] tile, int cell) {
+        return Math.max(tile[cell + RED], Math.max(tile[cell + GREEN], tile[cell + BLUE]));
+    }
+
+    /**
+     * Adds counts of another grid of the same size, for example a partial grid of another thread.
+     * Tiles allocated only in the other grid are taken over, not copied, so the other grid must not be used afterwards.
+     * @param other Grid to be added.
+     */
+    public void add(DensityGrid other) {
+        for (int i = 0; i < tiles.length; i++) {
+            int[] source = other.tiles[i];
+            if (source == null) continue;
+            int[] target = tiles[i];
+            if (target == null) {
+                tiles[i] = source;
+                allocated++;
+                continue;
+            }
+            // Pixels counted in both grids move to the bin of their summed count
+            for (int cell = 0; cell < target.length; cell += CHANNELS) {
+                int sourceMax = maxOfCell(source, cell);
+                if (sourceMax == 0) continue;
+                int targetMax = maxOfCell(target, cell);
+                for (int c = 0; c < CHANNELS; c++) {
+                    int count = target[cell + c] += source[cell + c];
+                    if (count > max[c]) max[c] = count;
+                }
+                histogram[getBin(sourceMax)]--;
+                if (targetMax > 0) histogram[getBin(targetMax)]--;
+                histogram[getBin(maxOfCell(target, cell))]++;
+            }
+        }
+        for (int c = 0; c < CHANNELS; c++) {
+            points[c] += other.points[c];
+            sum[c] += other.sum[c];
+            if (other.max[c] > max[c]) max[c] = other.max[c];
+        }
+        for (int b = 0; b < HISTOGRAM_BINS; b++) histogram[b] += other.histogram[b];
+    }
+
+    /**
+     * @param x Horizontal pixel coordinate from left side.
+     * @param y Vertical pixel coordinate from the top.
+     * @param channel Category channel, RED, GREEN or BLUE.
+     * @return Count of the category in the pixel.
+     */
+    public int get(int x, int y, int channel) {
+        if (x < 0 || y < 0 || x >= width || y >= height) {
+            return 0;
+        }
+        int[] tile = tiles[(y >> TILE_SHIFT) * tilesX + (x >> TILE_SHIFT)];
+        return tile == null ? 0 : tile[(((y & TILE_MASK) << TILE_SHIFT) + (x & TILE_MASK)) * CHANNELS + channel];
+    }
+
+    /**
+     * Returns counts of a tile.
+     * @param tileX Horizontal tile index.
+     * @param tileY Vertical tile index.
+     * @return Interleaved counts of the tile or null if no point fell into it.
+     */
+    public int[] getTile(int tileX, int tileY) {
+        return tiles[tileY * tilesX + tileX];
+    }
+
+    /** @return Number of allocated tiles. */
+    public int getAllocatedTiles() {
+        return allocated;
+    }
+
+    /** @return Bytes used by allocated tiles. */
+    public long getMemory() {
+        return (long) allocated * TILE_SIZE * TILE_SIZE * CHANNELS * 4;
+    }
+
+    /** @return Highest count of any category in any pixel. */
+    public int getMax() {
+        return Math.max(max[RED], Math.max(max[GREEN], max[BLUE]));
+    }
+
+    /**
+     * @param channel Category channel, RED, GREEN or BLUE.
+     * @return Highest count of the category in any pixel.
+     */
+    public int getMax(int channel) {
+        return max[channel];
+    }
+
+    /**
+     * @param channel Category channel, RED, GREEN or BLUE.
+     * @return Sum of counts of the category over all pixels.
+     */
+    public long getSum(int channel) {
+        return sum[channel];
+    }
+
+    /** @return Copy of the number of pixels in every histogram bin of their highest count. */
+    public long[] getHistogram() {
+        return histogram.clone();
+    }
+
+    /**
+     * Returns the histogram bin of a count. Counts below 1024 have their own bin, larger ones share a bin
+     * with all counts of the same power of two.
+     * @param count Highest count of a pixel, at least 1.
+     * @return Histogram bin of the count.
+     */
+    public static int getBin(int count) {
+        if (count < EXACT_BINS) {
+            return count;
+        }
+        return EXACT_BINS + (31 - Integer.numberOfLeadingZeros(count)) - EXACT_BITS;
+    }
+
+    /**
+     * @param bin Histogram bin.
+     * @return Largest count falling into the bin.
+     */
+    public static int getBinEnd(int bin) {
+        if (bin < EXACT_BINS) {
+            return bin;
+        }
+        int bits = bin - EXACT_BINS + EXACT_BITS;
+        return bits >= 30 ? Integer.MAX_VALUE : (2 << bits) - 1;
+    }
+
+    /**
+     * Returns the count below which the given fraction of non-empty pixels lies, read from the histogram.
+     * @param fraction Fraction of non-empty pixels between 0 and 1.
+     * @return Count of the percentile, at most the highest count, 0 if the grid is empty.
+     */
+    public int getPercentile(double fraction) {
+        long total = 0;
+        for (long pixels : histogram) total += pixels;
+        long rank = (long) Math.ceil(total * fraction);
+        long cumulative = 0;
+        for (int b = 1; b < HISTOGRAM_BINS; b++) {
+            cumulative += histogram[b];
+            if (cumulative >= rank && cumulative > 0) {
+                return Math.min(getBinEnd(b), getMax());
+            }
+        }
+        return getMax();
+    }
+
+    /**
+     * Returns the pixel area covered by allocated tiles, clipped to the grid.
+     * @return Left, top, right and bottom pixel edges, or null if no tile is allocated.
+     */
+    public int[] getAllocatedArea() {
+        int minX = tilesX, minY = tilesY, maxX = -1, maxY = -1;
+        for (int ty = 0; ty < tilesY; ty++) {
+            for (int tx = 0; tx < tilesX; tx++) {
+                if (tiles[ty * tilesX + tx] == null) continue;
+                minX = Math.min(minX, tx);
+                maxX = Math.max(maxX, tx);
+                minY = Math.min(minY, ty);
+                maxY = Math.max(maxY, ty);
+            }
+        }
+        if (maxX < 0) {
+            return null;
+        }
+        return new int[]{minX * TILE_SIZE, minY * TILE_SIZE,
+                Math.min(width, (maxX + 1) * TILE_SIZE), Math.min(height, (maxY + 1) * TILE_SIZE)};
+    }
+}
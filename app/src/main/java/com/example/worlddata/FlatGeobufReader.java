@@ -0,0 +1,498 @@
+package com.example.worlddata;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Reads Point and MultiPoint features of FlatGeobuf (.fgb) files from a mapped file.
+ * The FlatBuffers header and features are parsed in place. If the file has a packed Hilbert R-tree index,
+ * only features intersecting a lon/lat window can be read.
+ */
+public class FlatGeobufReader {
+
+    /** Used for debug logs. */
+    private static final String TAG = "FlatGeobufReader";
+
+    /** Magic bytes at the start of every file, byte 3 is the major version and byte 7 the patch version. */
+    private static final byte[] MAGIC = {'f', 'g', 'b', 3, 'f', 'g', 'b', 0};
+    /** Leading magic bytes compared, up to the major version. Any patch version is read. */
+    private static final int MAGIC_CHECKED = 7;
+    /** Size of one R-tree node: min x, min y, max x, max y and offset. */
+    private static final int NODE_ITEM_SIZE = 40;
+    /** Default node size of the index when the header does not set it. */
+    private static final int DEFAULT_NODE_SIZE = 16;
+    /** Number of features read between cancellation checks. */
+    private static final int CHECK_INTERVAL = 1 << 14;
+
+    // Field indexes of FlatBuffers tables, as defined in header.fbs and feature.fbs
+    private static final int HEADER_NAME = 0;
+    private static final int HEADER_ENVELOPE = 1;
+    private static final int HEADER_GEOMETRY_TYPE = 2;
+    private static final int HEADER_COLUMNS = 7;
+    private static final int HEADER_FEATURES_COUNT = 8;
+    private static final int HEADER_INDEX_NODE_SIZE = 9;
+    private static final int HEADER_TITLE = 11;
+    private static final int COLUMN_NAME = 0;
+    private static final int COLUMN_TYPE = 1;
+    private static final int FEATURE_GEOMETRY = 0;
+    private static final int FEATURE_PROPERTIES = 1;
+    private static final int GEOMETRY_XY = 1;
+    private static final int GEOMETRY_TYPE = 6;
+
+    // Geometry and column types used by the reader
+    private static final int GEOMETRY_POINT = 1;
+    private static final int GEOMETRY_MULTIPOINT = 4;
+    private static final int TYPE_BYTE = 0, TYPE_UBYTE = 1, TYPE_BOOL = 2, TYPE_SHORT = 3, TYPE_USHORT = 4,
+            TYPE_INT = 5, TYPE_UINT = 6, TYPE_LONG = 7, TYPE_ULONG = 8, TYPE_FLOAT = 9, TYPE_DOUBLE = 10,
+            TYPE_STRING = 11, TYPE_JSON = 12, TYPE_DATETIME = 13, TYPE_BINARY = 14;
+
+    private final ByteBuffer buffer;
+    /** Dataset name, title and extent (min lon, min lat, max lon, max lat) from the header, null if not set. */
+    public final String name;
+    public final String title;
+    public final double[] envelope;
+    /** Number of features, 0 if unknown. */
+    public final long featuresCount;
+
+    private final int geometryType;
+    private final String[] columnNames;
+    private final int[] columnTypes;
+    private final int categoryColumn;
+    private final int indexOffset;
+    private final int featuresOffset;
+    private final int nodeSize;
+    private final long numNodes;
+    /** End node of every index level, level 0 holds the leaves. */
+    private final long[] levelEnds;
+
+    /** Property columns of the current read, by FlatGeobuf column index. Null for columns that are not stored. */
+    private PropertyTable.Column[] columns;
+    /** Feature offsets found by index searches of the current read. */
+    private long[] offsets = new long[1024];
+    private int offsetCount = 0;
+    private int skipped = 0;
+    private byte[] scratch = new byte[256];
+
+    /**
+     * Checks if the start of a file is FlatGeobuf.
+     * @param head First bytes of the file.
+     * @param length Number of valid bytes in head.
+     * @return true if the magic bytes of major version 3 match.
+     */
+    public static boolean isFlatGeobuf(byte[] head, int length) {
+        if (length < MAGIC.length) return false;
+        for (int i = 0; i < MAGIC_CHECKED; i++) {
+            if (head[i] != MAGIC[i]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Parses the header and locates index and features.
+     * @param map Mapped file contents.
+     * @throws IOException if the file is not FlatGeobuf or the header is damaged.
+     */
+    public FlatGeobufReader(ByteBuffer map) throws IOException {
+        buffer = map.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        byte[] head = new byte[MAGIC.length];
+        if (buffer.limit() < MAGIC.length + 4) throw new IOException("File too short for FlatGeobuf");
+        for (int i = 0; i < head.length; i++) head[i] = buffer.get(i);
+        if (!isFlatGeobuf(head, head.length)) throw new IOException("Not a FlatGeobuf file");
+
+        int headerSize = buffer.getInt(MAGIC.length);
+        int headerStart = MAGIC.length + 4;
+        if (headerSize <= 0 || headerStart + headerSize > buffer.limit()) throw new IOException("Damaged FlatGeobuf header");
+        int header = root(headerStart);
+
+        name = readString(header, HEADER_NAME);
+        title = readString(header, HEADER_TITLE);
+        int envelopeVector = vector(header, HEADER_ENVELOPE);
+        if (envelopeVector >= 0 && buffer.getInt(envelopeVector) >= 4) {
+            envelope = new double[4];
+            for (int i = 0; i < 4; i++) envelope[i] = buffer.getDouble(envelopeVector + 4 + i * 8);
+        } else {
+            envelope = null;
+        }
+        geometryType = readUByte(header, HEADER_GEOMETRY_TYPE, 0);
+        featuresCount = readLong(header, HEADER_FEATURES_COUNT, 0);
+        int size = readUShort(header, HEADER_INDEX_NODE_SIZE, DEFAULT_NODE_SIZE);
+
+        // Property columns
+        int columnVector = vector(header, HEADER_COLUMNS);
+        int columnCount = columnVector >= 0 ? buffer.getInt(columnVector) : 0;
+        columnNames = new String[columnCount];
+        columnTypes = new int[columnCount];
+        int category = -1;
+        for (int i = 0; i < columnCount; i++) {
+            int entry = columnVector + 4 + i * 4;
+            int column = entry + buffer.getInt(entry);
+            columnNames[i] = readString(column, COLUMN_NAME);
+            columnTypes[i] = readUByte(column, COLUMN_TYPE, TYPE_BYTE);
+            if ("category".equals(columnNames[i]) && columnTypes[i] <= TYPE_LONG && columnTypes[i] != TYPE_BOOL) {
+                category = i;
+            }
+        }
+        categoryColumn = category;
+
+        // Packed R-tree index between header and features
+        indexOffset = headerStart + headerSize;
+        if (size > 1 && featuresCount > 0) {
+            long n = featuresCount;
+            long nodes = n;
+            long[] levelSizes = new long[64];
+            int levels = 0;
+            levelSizes[levels++] = n;
+            do {
+                n = (n + size - 1) / size;
+                nodes += n;
+                levelSizes[levels++] = n;
+            } while (n != 1);
+            levelEnds = new long[levels];
+            long end = nodes;
+            for (int i = 0; i < levels; i++) {
+                levelEnds[i] = end;
+                end -= levelSizes[i];
+            }
+            nodeSize = size;
+            numNodes = nodes;
+        } else {
+            levelEnds = null;
+            nodeSize = 0;
+            numNodes = 0;
+        }
+        long start = indexOffset + numNodes * NODE_ITEM_SIZE;
+        if (start > buffer.limit()) throw new IOException("Damaged FlatGeobuf index");
+        featuresOffset = (int) start;
+        Log.i(TAG, "Header: " + featuresCount + " features, " + columnCount + " columns, "
+                + (hasIndex() ? "index of " + numNodes + " nodes" : "no index"));
+    }
+
+    /** @return true if the file has a spatial index, so windows can be read. */
+    public boolean hasIndex() {
+        return levelEnds != null;
+    }
+
+    /**
+     * Reads all features in file order.
+     * @return Points of all Point and MultiPoint features.
+     * @throws InterruptedIOException if the reading thread was interrupted.
+     */
+    public PointStore read() throws IOException {
+        PointStore points = createStore(featuresCount > 0 && featuresCount < Integer.MAX_VALUE ? (int) featuresCount : 0);
+        int position = featuresOffset;
+        int count = 0;
+        while (position + 4 <= buffer.limit()) {
+            int size = buffer.getInt(position);
+            if (size <= 0 || position + 4L + size > buffer.limit()) break;
+            readFeature(position, points);
+            position += 4 + size;
+            if (++count % CHECK_INTERVAL == 0) checkInterrupted(count);
+        }
+        return finish(points, count);
+    }
+
+    /**
+     * Reads features whose bounding box intersects a lon/lat window, using the spatial index.
+     * A window with west greater than east crosses the antimeridian.
+     * @param west Western longitude of the window.
+     * @param south Southern latitude of the window.
+     * @param east Eastern longitude of the window.
+     * @param north Northern latitude of the window.
+     * @return Points of intersecting Point and MultiPoint features.
+     * @throws InterruptedIOException if the reading thread was interrupted.
+     */
+    public PointStore read(float west, float south, float east, float north) throws IOException {
+        if (!hasIndex()) {
+            throw new IllegalStateException("FlatGeobuf file has no spatial index");
+        }
+        offsetCount = 0;
+        if (west <= east) {
+            search(west, south, east, north);
+        } else {
+            search(west, south, 180, north);
+            search(-180, south, east, north);
+        }
+
+        // Read in file order, features found by both searches only once
+        Arrays.sort(offsets, 0, offsetCount);
+        PointStore points = createStore(offsetCount);
+        int count = 0;
+        for (int i = 0; i < offsetCount; i++) {
+            if (i > 0 && offsets[i] == offsets[i - 1]) continue;
+            long position = featuresOffset + offsets[i];
+            if (position + 4 > buffer.limit()) throw new IOException("Index points outside of file");
+            readFeature((int) position, points);
+            if (++count % CHECK_INTERVAL == 0) checkInterrupted(count);
+        }
+        return finish(points, count);
+    }
+
+    /**
+     * Searches the packed R-tree for leaf items intersecting a box and adds their feature offsets to offsets.
+     * Nodes are visited depth first, starting at the root which is the first node of the index.
+     */
+    private void search(double minX, double minY, double maxX, double maxY) {
+        long leafStart = numNodes - featuresCount;
+        long[] stack = new long[64];
+        int depth = 0;
+        stack[depth++] = 0;
+        stack[depth++] = levelEnds.length - 1;
+        while (depth > 0) {
+            int level = (int) stack[--depth];
+            long node = stack[--depth];
+            boolean leaf = node >= leafStart;
+            long end = Math.min(node + nodeSize, levelEnds[level]);
+            for (long pos = node; pos < end; pos++) {
+                int item = (int) (indexOffset + pos * NODE_ITEM_SIZE);
+                if (maxX < buffer.getDouble(item) || maxY < buffer.getDouble(item + 8)
+                        || minX > buffer.getDouble(item + 16) || minY > buffer.getDouble(item + 24)) {
+                    continue;
+                }
+                // Leaves hold byte offsets of features, other nodes the index of their first child
+                long offset = buffer.getLong(item + 32);
+                if (leaf) {
+                    if (offsetCount == offsets.length) offsets = Arrays.copyOf(offsets, offsetCount * 2);
+                    offsets[offsetCount++] = offset;
+                } else {
+                    if (depth + 2 > stack.length) stack = Arrays.copyOf(stack, stack.length * 2);
+                    stack[depth++] = offset;
+                    stack[depth++] = level - 1;
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads a single feature and stores its points with their properties. Other geometries are skipped.
+     * @param position Position of the size prefix of the feature.
+     * @param points Point store receiving the points.
+     */
+    private void readFeature(int position, PointStore points) {
+        int feature = root(position + 4);
+        int geometry = field(feature, FEATURE_GEOMETRY);
+        if (geometry < 0) {
+            skipped++;
+            return;
+        }
+        geometry = indirect(geometry);
+        int type = readUByte(geometry, GEOMETRY_TYPE, geometryType);
+        int xy = vector(geometry, GEOMETRY_XY);
+        if ((type != GEOMETRY_POINT && type != GEOMETRY_MULTIPOINT) || xy < 0) {
+            skipped++;
+            return;
+        }
+        int pairs = buffer.getInt(xy) / 2;
+        if (type == GEOMETRY_POINT) pairs = Math.min(pairs, 1);
+        int properties = vector(feature, FEATURE_PROPERTIES);
+        // Every point of a MultiPoint gets its own row with the same properties
+        for (int i = 0; i < pairs; i++) {
+            int category = readProperties(properties, points.properties);
+            points.add((float) buffer.getDouble(xy + 4 + i * 16), (float) buffer.getDouble(xy + 12 + i * 16), category);
+            points.properties.commitRow();
+        }
+    }
+
+    /**
+     * Reads binary properties of a feature into the pending row of a table.
+     * Properties are stored as column index followed by a value encoded according to the column type.
+     * @param vector Position of the properties vector or -1 if the feature has none.
+     * @param table Table receiving the values.
+     * @return Category of the feature or NO_CATEGORY.
+     */
+    private int readProperties(int vector, PropertyTable table) {
+        int category = PointStore.NO_CATEGORY;
+        if (vector < 0) {
+            return category;
+        }
+        int position = vector + 4;
+        int end = position + buffer.getInt(vector);
+        while (position + 2 <= end) {
+            int index = buffer.getShort(position) & 0xFFFF;
+            position += 2;
+            if (index >= columnTypes.length) {
+                Log.w(TAG, "Property of unknown column " + index);
+                break;
+            }
+            int type = columnTypes[index];
+            long integer = 0;
+            double real = Double.NaN;
+            String text = null;
+            switch (type) {
+                case TYPE_BYTE: integer = buffer.get(position); position += 1; break;
+                case TYPE_UBYTE: integer = buffer.get(position) & 0xFF; position += 1; break;
+                case TYPE_BOOL: integer = buffer.get(position) != 0 ? 1 : 0; position += 1; break;
+                case TYPE_SHORT: integer = buffer.getShort(position); position += 2; break;
+                case TYPE_USHORT: integer = buffer.getShort(position) & 0xFFFF; position += 2; break;
+                case TYPE_INT: integer = buffer.getInt(position); position += 4; break;
+                case TYPE_UINT: integer = buffer.getInt(position) & 0xFFFFFFFFL; position += 4; break;
+                case TYPE_LONG:
+                case TYPE_ULONG: integer = buffer.getLong(position); position += 8; break;
+                case TYPE_FLOAT: real = buffer.getFloat(position); position += 4; break;
+                case TYPE_DOUBLE: real = buffer.getDouble(position); position += 8; break;
+                case TYPE_STRING:
+                case TYPE_JSON:
+                case TYPE_DATETIME:
+                case TYPE_BINARY: {
+                    int length = buffer.getInt(position);
+                    position += 4;
+                    if (type != TYPE_BINARY) text = decode(position, length);
+                    position += length;
+                    break;
+                }
+                default:
+                    // Size of unknown types is not known, the rest of the row can not be read
+                    Log.w(TAG, "Unsupported column type " + type);
+                    return category;
+            }
+            if (index == categoryColumn && integer >= Integer.MIN_VALUE && integer <= Integer.MAX_VALUE) {
+                category = (int) integer;
+            }
+
+            PropertyTable.Column column = columns[index];
+            if (column == null) {
+                table.ignoredValues++;
+            } else if (column.type == PropertyTable.Type.STRING) {
+                table.setString(column, text);
+            } else if (column.type == PropertyTable.Type.BOOL) {
+                table.setBool(column, integer != 0);
+            } else if (column.type == PropertyTable.Type.INT) {
+                table.setInt(column, (int) integer);
+            } else {
+                table.setDouble(column, (type == TYPE_FLOAT || type == TYPE_DOUBLE) ? real : integer);
+            }
+        }
+        return category;
+    }
+
+    /**
+     * Creates an empty point store with property columns of the header schema.
+     * @param capacity Expected number of points.
+     * @return Point store with property table.
+     */
+    private PointStore createStore(int capacity) {
+        PointStore points = new PointStore(capacity);
+        points.title = title != null ? title : name;
+        points.hasCategory = categoryColumn >= 0;
+        points.properties = new PropertyTable(capacity);
+        columns = new PropertyTable.Column[columnTypes.length];
+        for (int i = 0; i < columnTypes.length; i++) {
+            PropertyTable.Type type = getPropertyType(columnTypes[i]);
+            if (type != null && columnNames[i] != null && points.properties.getColumn(columnNames[i]) == null) {
+                columns[i] = points.properties.addColumn(columnNames[i], type);
+            }
+        }
+        skipped = 0;
+        return points;
+    }
+
+    /**
+     * @param type FlatGeobuf column type.
+     * @return Property column type holding its values, or null for binary columns that are not stored.
+     */
+    private static PropertyTable.Type getPropertyType(int type) {
+        switch (type) {
+            case TYPE_BYTE:
+            case TYPE_UBYTE:
+            case TYPE_SHORT:
+            case TYPE_USHORT:
+            case TYPE_INT:
+                return PropertyTable.Type.INT;
+            case TYPE_BOOL:
+                return PropertyTable.Type.BOOL;
+            case TYPE_UINT:
+            case TYPE_LONG:
+            case TYPE_ULONG:
+            case TYPE_FLOAT:
+            case TYPE_DOUBLE:
+                return PropertyTable.Type.DOUBLE;
+            case TYPE_STRING:
+            case TYPE_JSON:
+            case TYPE_DATETIME:
+                return PropertyTable.Type.STRING;
+            default:
+                return null;
+        }
+    }
+
+    private PointStore finish(PointStore points, int features) {
+        if (skipped > 0) {
+            Log.w(TAG, skipped + " of " + features + " features are not points and were skipped");
+        }
+        return points;
+    }
+
+    private void checkInterrupted(int features) throws InterruptedIOException {
+        if (Thread.currentThread().isInterrupted()) {
+            throw new InterruptedIOException("Reading cancelled after " + features + " features");
+        }
+    }
+
+    /** @return Position of the root table of a FlatBuffer starting at start. */
+    private int root(int start) {
+        return indirect(start);
+    }
+
+    /** @return Position referenced by the offset stored at position. */
+    private int indirect(int position) {
+        return position + buffer.getInt(position);
+    }
+
+    /**
+     * Finds a field of a table through its vtable.
+     * @param table Position of the table.
+     * @param index Field index in the schema.
+     * @return Position of the field value or -1 if the field is not set.
+     */
+    private int field(int table, int index) {
+        int vtable = table - buffer.getInt(table);
+        int entry = 4 + index * 2;
+        if (entry >= (buffer.getShort(vtable) & 0xFFFF)) {
+            return -1;
+        }
+        int offset = buffer.getShort(vtable + entry) & 0xFFFF;
+        return offset == 0 ? -1 : table + offset;
+    }
+
+    /** @return Position of the length of a vector or string field, or -1 if the field is not set. */
+    private int vector(int table, int index) {
+        int field = field(table, index);
+        return field < 0 ? -1 : indirect(field);
+    }
+
+    private String readString(int table, int index) {
+        int vector = vector(table, index);
+        return vector < 0 ? null : decode(vector + 4, buffer.getInt(vector));
+    }
+
+    private int readUByte(int table, int index, int defaultValue) {
+        int field = field(table, index);
+        return field < 0 ? defaultValue : buffer.get(field) & 0xFF;
+    }
+
+    private int readUShort(int table, int index, int defaultValue) {
+        int field = field(table, index);
+        return field < 0 ? defaultValue : buffer.getShort(field) & 0xFFFF;
+    }
+
+    private long readLong(int table, int index, long defaultValue) {
+        int field = field(table, index);
+        return field < 0 ? defaultValue : buffer.getLong(field);
+    }
+
+    /** Decodes UTF-8 text of the mapped file through a reused scratch array. */
+    private String decode(int position, int length) {
+        if (length > scratch.length) {
+            scratch = new byte[Math.max(length, scratch.length * 2)];
+        }
+        ByteBuffer source = buffer.duplicate();
+        source.position(position);
+        source.get(scratch, 0, length);
+        return new String(scratch, 0, length, StandardCharsets.UTF_8);
+    }
+}
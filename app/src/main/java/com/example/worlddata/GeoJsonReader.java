@@ -0,0 +1,453 @@
+package com.example.worlddata;
+
+import android.util.Log;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class GeoJsonReader {
+
+    /** Used for debug logs. */
+    private static final String TAG = "GeoJsonReader";
+
+    /** Number of features read between progress reports and cancellation checks. */
+    private static final int PROGRESS_INTERVAL = 4096;
+    /** Number of point features sampled before types of property columns are chosen. */
+    private static final int SCHEMA_SAMPLE_SIZE = 256;
+    /** Marks sampled object and array property values, which are not stored. */
+    private static final Object COMPLEX_VALUE = new Object();
+
+    /** Receives the number of features read so far. Called on the reading thread. */
+    public interface ProgressListener {
+        void onProgress(int features);
+    }
+
+    private final JsonReader reader;
+    private ProgressListener listener;
+    private AtomicBoolean cancelSignal;
+    private final PointStore data = new PointStore();
+    private final PropertyTable table = new PropertyTable();
+
+    /** Properties of sampled features, null once the schema is defined. */
+    private List<Map<String, Object>> samples = new ArrayList<>();
+
+    /** Last scalar property value read by readValue. */
+    private JsonToken valueToken;
+    private double numberValue;
+    private String stringValue;
+    private boolean boolValue;
+
+    /** Counters for features that were read but could not be stored as points. */
+    private int featureCount = 0;
+    private int skippedCount = 0;
+
+    /**
+     * Creates a streaming GeoJSON reader. Features are read one at a time, so the file is never held in memory.
+     * @param in Reader of GeoJSON file contents.
+     */
+    public GeoJsonReader(Reader in) {
+        reader = new JsonReader(in);
+    }
+
+    /**
+     * Sets the listener notified while features are being read.
+     * @param listener Listener object or null.
+     */
+    public void setProgressListener(ProgressListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Sets a flag that cancels reading when set, for reading on threads that are not interrupted.
+     * @param cancelSignal Shared cancellation flag or null.
+     */
+    public void setCancelSignal(AtomicBoolean cancelSignal) {
+        this.cancelSignal = cancelSignal;
+    }
+
+    /**
+     * Reads the GeoJSON FeatureCollection and stores its point features.
+     * @return Point coordinates and categories of all Point features.
+     * @throws IOException if the file can not be read or is not valid JSON.
+     * @throws InterruptedIOException if the reading thread was interrupted.
+     */
+    public PointStore read() throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (name.equals("features")) {
+                readFeatures();
+            } else if (name.equals("title") && reader.peek() == JsonToken.STRING) {
+                data.title = reader.nextString();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        finish();
+        return data;
+    }
+
+    /**
+     * Reads a sequence of top-level GeoJSON features (GeoJSONSeq or newline-delimited GeoJSON).
+     * Record separators must already be replaced by whitespace.
+     * @return Point coordinates and categories of all Point features.
+     * @throws IOException if the input can not be read or is not valid JSON.
+     * @throws InterruptedIOException if the reading thread was interrupted or reading was cancelled.
+     */
+    public PointStore readSequence() throws IOException {
+        reader.setLenient(true);
+        while (reader.peek() != JsonToken.END_DOCUMENT) {
+            if (reader.peek() == JsonToken.BEGIN_OBJECT) {
+                readFeature();
+            } else {
+                reader.skipValue();
+            }
+        }
+        finish();
+        return data;
+    }
+
+    /** Defines the schema if less features than the sample size were read, and reports the final state. */
+    private void finish() {
+        if (samples != null) {
+            defineSchema();
+        }
+        data.properties = table;
+        if (listener != null) {
+            listener.onProgress(featureCount);
+        }
+        if (skippedCount > 0) {
+            Log.e(TAG, skippedCount + " of " + featureCount + " features are not of geometry type Point");
+        }
+        if (table.malformedRows > 0) {
+            Log.w(TAG, table.malformedRows + " features have property values not matching their column type");
+        }
+    }
+
+    /** Closes the underlying reader. */
+    public void close() throws IOException {
+        reader.close();
+    }
+
+    /**
+     * Reads the features array one feature at a time.
+     * @throws IOException
+     */
+    private void readFeatures() throws IOException {
+        reader.beginArray();
+        while (reader.hasNext()) {
+            readFeature();
+        }
+        reader.endArray();
+    }
+
+    /**
+     * Reads a single feature. Geometry and properties may come in any order, so values are kept until the object ends.
+     * @throws IOException
+     */
+    private void readFeature() throws IOException {
+        boolean isPoint = false;
+        float[] coords = null;
+        int category = PointStore.NO_CATEGORY;
+        boolean categoryFound = false;
+        Map<String, Object> sample = samples != null ? new HashMap<String, Object>() : null;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (name.equals("geometry") && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String key = reader.nextName();
+                    if (key.equals("type")) {
+                        isPoint = reader.nextString().equals("Point");
+                    } else if (key.equals("coordinates") && reader.peek() == JsonToken.BEGIN_ARRAY) {
+                        coords = readCoordinates();
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } else if (name.equals("properties") && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String key = reader.nextName();
+                    readValue();
+                    if (key.equals("category")) {
+                        categoryFound = true;
+                        category = getCategory();
+                    }
+                    if (sample != null) {
+                        sample.put(key, getBoxedValue());
+                    } else {
+                        storeValue(key);
+                    }
+                }
+                reader.endObject();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        // Category detection is based on the first feature of the file
+        if (featureCount == 0) {
+            data.hasCategory = categoryFound;
+        }
+        featureCount++;
+        if (featureCount % PROGRESS_INTERVAL == 0) {
+            if (Thread.currentThread().isInterrupted() || (cancelSignal != null && cancelSignal.get())) {
+                throw new InterruptedIOException("Reading cancelled after " + featureCount + " features");
+            }
+            if (listener != null) {
+                listener.onProgress(featureCount);
+            }
+        }
+        if (!isPoint || coords == null) {
+            skippedCount++;
+            if (sample == null) table.discardRow();
+            return;
+        }
+        data.add(coords[0], coords[1], category);
+        if (sample != null) {
+            samples.add(sample);
+            if (samples.size() == SCHEMA_SAMPLE_SIZE) defineSchema();
+        } else {
+            table.commitRow();
+        }
+    }
+
+    /**
+     * Reads Point coordinates. Values after longitude and latitude (altitude) are ignored.
+     * @return Longitude and latitude, or null if the array holds less than two numbers.
+     * @throws IOException
+     */
+    private float[] readCoordinates() throws IOException {
+        float[] coords = new float[2];
+        int i = 0;
+        boolean valid = true;
+        reader.beginArray();
+        while (reader.hasNext()) {
+            if (i < 2 && reader.peek() == JsonToken.NUMBER) {
+                coords[i++] = (float) reader.nextDouble();
+            } else {
+                if (i < 2) valid = false;
+                reader.skipValue();
+            }
+        }
+        reader.endArray();
+        return (valid && i == 2) ? coords : null;
+    }
+
+    /**
+     * Reads a property value into the value fields. Objects and arrays are skipped.
+     * @throws IOException
+     */
+    private void readValue() throws IOException {
+        valueToken = reader.peek();
+        switch (valueToken) {
+            case NUMBER:
+                numberValue = reader.nextDouble();
+                break;
+            case STRING:
+                stringValue = reader.nextString();
+                break;
+            case BOOLEAN:
+                boolValue = reader.nextBoolean();
+                break;
+            case NULL:
+                reader.nextNull();
+                break;
+            default:
+                reader.skipValue();
+        }
+    }
+
+    /**
+     * Interprets the last read value as category of a feature.
+     * @return Category as integer or NO_CATEGORY if the value is not an integer.
+     */
+    private int getCategory() {
+        if (valueToken == JsonToken.NUMBER) {
+            return (int) numberValue;
+        } else if (valueToken == JsonToken.STRING) {
+            return parseInt(stringValue.trim(), PointStore.NO_CATEGORY);
+        }
+        return PointStore.NO_CATEGORY;
+    }
+
+    /** @return Last read value as object, kept for sampled features until the schema is defined. */
+    private Object getBoxedValue() {
+        switch (valueToken) {
+            case NUMBER: return numberValue;
+            case STRING: return stringValue;
+            case BOOLEAN: return boolValue;
+            case NULL: return null;
+            default: return COMPLEX_VALUE;
+        }
+    }
+
+    /**
+     * Writes the last read value into its column of the pending table row. Values not matching the column type
+     * are counted as malformed. Keys first found after the sampled features get a column typed by their first
+     * value, earlier rows are missing.
+     * @param key Property key.
+     */
+    private void storeValue(String key) {
+        PropertyTable.Column column = table.getColumn(key);
+        if (column == null) {
+            if (valueToken == JsonToken.NULL) {
+                return; // Column is added with the first value that has a type
+            }
+            PropertyTable.Type type = getType(getBoxedValue());
+            if (type == null) {
+                table.ignoredValues++;
+                return;
+            }
+            column = table.addColumn(key, type);
+        }
+        if (valueToken == JsonToken.NULL) {
+            return; // Stored as missing when the row is committed
+        }
+        switch (column.type) {
+            case INT:
+                if (valueToken == JsonToken.NUMBER && isInt(numberValue)) {
+                    table.setInt(column, (int) numberValue);
+                } else {
+                    table.setMalformed(column);
+                }
+                break;
+            case DOUBLE:
+                if (valueToken == JsonToken.NUMBER) {
+                    table.setDouble(column, numberValue);
+                } else {
+                    table.setMalformed(column);
+                }
+                break;
+            case BOOL:
+                if (valueToken == JsonToken.BOOLEAN) {
+                    table.setBool(column, boolValue);
+                } else {
+                    table.setMalformed(column);
+                }
+                break;
+            default:
+                if (valueToken == JsonToken.STRING) {
+                    table.setString(column, stringValue);
+                } else if (valueToken == JsonToken.NUMBER) {
+                    table.setString(column, isInt(numberValue)
+                            ? String.valueOf((long) numberValue) : String.valueOf(numberValue));
+                } else if (valueToken == JsonToken.BOOLEAN) {
+                    table.setString(column, String.valueOf(boolValue));
+                } else {
+                    table.setMalformed(column);
+                }
+        }
+    }
+
+    /**
+     * Chooses column types from sampled features and stores the sampled rows.
+     * Keys with only booleans become bool columns, only integers int columns, only numbers double columns,
+     * anything else string columns. Keys with only object or array values are not stored.
+     */
+    private void defineSchema() {
+        LinkedHashMap<String, PropertyTable.Type> types = new LinkedHashMap<>();
+        for (Map<String, Object> sample : samples) {
+            for (Map.Entry<String, Object> entry : sample.entrySet()) {
+                if (entry.getValue() == COMPLEX_VALUE) continue;
+                PropertyTable.Type type = getType(entry.getValue());
+                PropertyTable.Type previous = types.get(entry.getKey());
+                if (previous == null || type == null) {
+                    types.put(entry.getKey(), previous != null ? previous : type);
+                } else {
+                    types.put(entry.getKey(), PropertyTable.promote(previous, type));
+                }
+            }
+        }
+        for (Map.Entry<String, PropertyTable.Type> entry : types.entrySet()) {
+            table.addColumn(entry.getKey(), entry.getValue() != null ? entry.getValue() : PropertyTable.Type.STRING);
+        }
+
+        // Replay the sampled rows through the typed path
+        for (Map<String, Object> sample : samples) {
+            for (Map.Entry<String, Object> entry : sample.entrySet()) {
+                setValue(entry.getValue());
+                storeValue(entry.getKey());
+            }
+            table.commitRow();
+        }
+        samples = null;
+    }
+
+    /**
+     * @param value Sampled value.
+     * @return Narrowest column type holding the value, or null for missing, object and array values.
+     */
+    private static PropertyTable.Type getType(Object value) {
+        if (value instanceof Boolean) return PropertyTable.Type.BOOL;
+        if (value instanceof Double) return isInt((Double) value) ? PropertyTable.Type.INT : PropertyTable.Type.DOUBLE;
+        if (value instanceof String) return PropertyTable.Type.STRING;
+        return null;
+    }
+
+    /**
+     * Sets the value fields from a sampled value.
+     * @param value Sampled value.
+     */
+    private void setValue(Object value) {
+        if (value instanceof Double) {
+            valueToken = JsonToken.NUMBER;
+            numberValue = (Double) value;
+        } else if (value instanceof String) {
+            valueToken = JsonToken.STRING;
+            stringValue = (String) value;
+        } else if (value instanceof Boolean) {
+            valueToken = JsonToken.BOOLEAN;
+            boolValue = (Boolean) value;
+        } else if (value == null) {
+            valueToken = JsonToken.NULL;
+        } else {
+            valueToken = JsonToken.BEGIN_OBJECT;
+        }
+    }
+
+    private static boolean isInt(double value) {
+        return value == Math.rint(value) && value >= Integer.MIN_VALUE + 1 && value <= Integer.MAX_VALUE;
+    }
+
+    /**
+     * Parses a decimal integer without throwing on invalid input.
+     * @param text Text to be parsed.
+     * @param fallback Value returned if text is not an integer.
+     * @return Parsed integer or fallback.
+     */
+    private static int parseInt(String text, int fallback) {
+        int length = text.length();
+        if (length == 0 || length > 10) return fallback;
+        int i = 0;
+        boolean negative = text.charAt(0) == '-';
+        if (negative || text.charAt(0) == '+') {
+            if (length == 1) return fallback;
+            i = 1;
+        }
+        long value = 0;
+        for (; i < length; i++) {
+            char c = text.charAt(i);
+            if (c < '0' || c > '9') return fallback;
+            value = value * 10 + (c - '0');
+        }
+        value = negative ? -value : value;
+        return (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) ? fallback : (int) value;
+    }
+}
@@ -0,0 +1,283 @@
+package com.example.worlddata;
+
+import android.util.Log;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reads newline-delimited GeoJSON (GeoJSONSeq, RFC 8142) with one feature per line.
+ * Mapped files are split into byte ranges on line boundaries that are parsed in parallel.
+ */
+public class GeoJsonSeqReader {
+
+    /** Used for debug logs. */
+    private static final String TAG = "GeoJsonSeqReader";
+
+    /** ASCII record separator that starts every record of RFC 8142 GeoJSONSeq. */
+    private static final byte RECORD_SEPARATOR = 0x1E;
+    /** Smallest byte range parsed as one chunk. */
+    private static final int MIN_CHUNK_SIZE = 1 << 20;
+    /** Number of chunks per worker thread, so threads finishing early can take over remaining work. */
+    private static final int CHUNKS_PER_THREAD = 4;
+
+    private final AtomicBoolean cancelled = new AtomicBoolean(false);
+    private final AtomicInteger featuresRead = new AtomicInteger(0);
+    private final AtomicLong bytesRead = new AtomicLong(0);
+    private GeoJsonReader.ProgressListener listener;
+
+    /**
+     * Checks if the start of a file is GeoJSONSeq or newline-delimited GeoJSON.
+     * The first record must be a complete Feature object on a single line.
+     * @param head First bytes of the file.
+     * @param length Number of valid bytes in head.
+     * @return true if the file holds one feature per line.
+     */
+    public static boolean isSequence(byte[] head, int length) {
+        int start = 0;
+        while (start < length && isWhitespace(head[start])) start++;
+        if (start < length && head[start] == RECORD_SEPARATOR) {
+            return true;
+        }
+        if (start >= length || head[start] != '{') {
+            return false;
+        }
+        int end = start;
+        while (end < length && head[end] != '\n') end++;
+        if (end == length) {
+            return false; // First line does not fit into head, can not be a single feature line
+        }
+        try {
+            JsonReader reader = new JsonReader(new StringReader(
+                    new String(head, start, end - start, StandardCharsets.UTF_8)));
+            reader.beginObject();
+            boolean isFeature = false;
+            while (reader.hasNext()) {
+                if (reader.nextName().equals("type") && reader.peek() == JsonToken.STRING) {
+                    isFeature = reader.nextString().equals("Feature");
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+            return isFeature;
+        } catch (IOException | RuntimeException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Sets the listener notified with the total number of features read by all chunks.
+     * @param listener Listener object or null.
+     */
+    public void setProgressListener(GeoJsonReader.ProgressListener listener) {
+        this.listener = listener;
+    }
+
+    /** @return Number of bytes in chunks that were completely parsed. */
+    public long getBytesRead() {
+        return bytesRead.get();
+    }
+
+    /**
+     * Parses a mapped file in parallel chunks split on line boundaries. Chunk results are merged in file order.
+     * @param map Mapped file contents.
+     * @return Point data of all Point features.
+     * @throws IOException if a chunk is not valid JSON.
+     * @throws InterruptedIOException if the calling thread was interrupted.
+     */
+    public PointStore read(ByteBuffer map) throws IOException {
+        ForkJoinPool pool = WorkerPool.get();
+        int size = map.limit();
+        int chunks = Math.max(1, Math.min(pool.getParallelism() * CHUNKS_PER_THREAD, size / MIN_CHUNK_SIZE));
+
+        // Split on the first line break after each even split position
+        final List<ChunkTask> tasks = new ArrayList<>();
+        int start = 0;
+        for (int i = 1; i <= chunks && start < size; i++) {
+            int end = (i == chunks) ? size : Math.max(start, (int) ((long) size * i / chunks));
+            while (end < size && map.get(end) != '\n') end++;
+            if (end < size) end++;
+            if (end > start) {
+                tasks.add(new ChunkTask(map, start, end));
+            }
+            start = end;
+        }
+
+        ForkJoinTask<Void> root = pool.submit(new RecursiveAction() {
+            @Override
+            protected void compute() {
+                invokeAll(tasks);
+            }
+        });
+        try {
+            root.get();
+        } catch (InterruptedException e) {
+            cancelled.set(true);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Reading cancelled");
+        } catch (ExecutionException e) {
+            // Chunk parsing errors are wrapped in unchecked exceptions, find the original one
+            for (Throwable cause = e.getCause(); cause != null; cause = cause.getCause()) {
+                if (cause instanceof IOException) throw (IOException) cause;
+            }
+            if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+            throw new IOException(e.getCause());
+        }
+
+        List<PointStore> parts = new ArrayList<>();
+        for (ChunkTask task : tasks) {
+            parts.add(task.join());
+        }
+        Log.i(TAG, "Parsed " + tasks.size() + " chunks on " + pool.getParallelism() + " threads");
+        return PointStore.merge(parts);
+    }
+
+    /**
+     * Parses a stream sequentially, for inputs that can not be mapped.
+     * @param in Stream of file contents.
+     * @return Point data of all Point features.
+     * @throws IOException if the stream is not valid JSON.
+     */
+    public PointStore read(InputStream in) throws IOException {
+        GeoJsonReader reader = new GeoJsonReader(new InputStreamReader(new SeparatorFilter(in), StandardCharsets.UTF_8));
+        reader.setProgressListener(listener);
+        return reader.readSequence();
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\n' || b == '\r' || b == '\t';
+    }
+
+    /** Parses features of a single byte range. */
+    private class ChunkTask extends RecursiveTask<PointStore> {
+        private final ByteBuffer map;
+        private final int start;
+        private final int end;
+
+        ChunkTask(ByteBuffer map, int start, int end) {
+            this.map = map;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected PointStore compute() {
+            ByteBuffer slice = map.duplicate();
+            slice.limit(end);
+            slice.position(start);
+            GeoJsonReader reader = new GeoJsonReader(new InputStreamReader(
+                    new SeparatorFilter(new ByteBufferInputStream(slice.slice())), StandardCharsets.UTF_8));
+            reader.setCancelSignal(cancelled);
+            reader.setProgressListener(new GeoJsonReader.ProgressListener() {
+                private int reported = 0;
+
+                @Override
+                public void onProgress(int features) {
+                    int total = featuresRead.addAndGet(features - reported);
+                    reported = features;
+                    reportProgress(total);
+                }
+            });
+            try {
+                PointStore points = reader.readSequence();
+                bytesRead.addAndGet(end - start);
+                return points;
+            } catch (IOException e) {
+                cancelled.set(true);
+                throw new ChunkException(e);
+            }
+        }
+    }
+
+    /**
+     * Passes progress of all chunks to the listener one call at a time.
+     * @param total Number of features read by all chunks.
+     */
+    private synchronized void reportProgress(int total) {
+        if (listener != null) {
+            listener.onProgress(total);
+        }
+    }
+
+    /** Wraps checked exceptions of chunk parsing. Unwrapped to the cause when rethrown by read. */
+    private static class ChunkException extends RuntimeException {
+        ChunkException(IOException cause) {
+            super(cause);
+        }
+    }
+
+    /** Input stream reading the remaining bytes of a ByteBuffer. */
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (!buffer.hasRemaining()) return -1;
+            int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+
+    /** Replaces GeoJSONSeq record separators with spaces, so records can be read as whitespace separated JSON values. */
+    private static class SeparatorFilter extends InputStream {
+        private final InputStream in;
+
+        SeparatorFilter(InputStream in) {
+            this.in = in;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            return b == RECORD_SEPARATOR ? ' ' : b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = in.read(b, off, len);
+            for (int i = off; i < off + n; i++) {
+                if (b[i] == RECORD_SEPARATOR) b[i] = ' ';
+            }
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
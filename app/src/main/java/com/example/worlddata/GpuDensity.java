@@ -0,0 +1,329 @@
+package com.example.worlddata;
+
+import android.opengl.GLES20;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.List;
+
+/**
+ * Point density of data layers binned on the GPU. Points of the layer vertex buffers are drawn once into an
+ * offscreen texture in equirectangular texture space, where additive blending sums their category colors per pixel.
+ * The texture is halved down to a single pixel keeping the highest sums, and a color ramp pass scales every pixel
+ * by that maximum into a data layer texture the globe samples, so no count ever returns to the CPU.
+ * Counts are summed in half floats where the GPU can render to them, otherwise in 8 bit channels saturating at
+ * 255 points per pixel. All methods must run on the GL thread.
+ */
+public class GpuDensity {
+
+    /** Used for debug logs. */
+    private static final String TAG = "GpuDensity";
+    /** Pixel type of OES_texture_half_float, not defined by GLES20. */
+    private static final int GL_HALF_FLOAT_OES = 0x8D61;
+    /** Floats per vertex of the full screen quad. */
+    private static final int QUAD_VERTEX_SIZE = 2;
+    /** Texture coordinates of large textures need more than medium precision. */
+    private static final String FRAGMENT_PRECISION = "#ifdef GL_FRAGMENT_PRECISION_HIGH\n"
+            + "precision highp float;\n"
+            + "#else\n"
+            + "precision mediump float;\n"
+            + "#endif\n";
+
+    public final int width;
+    public final int height;
+    /** True if counts are summed in half floats, false if in 8 bit channels. */
+    public final boolean halfFloat;
+
+    /** Programs of the passes and their handles. */
+    private final int accumulateProgram;
+    private final int accumulateColorsHandle;
+    private final int accumulatePositionHandle;
+    private final int accumulateCategoryHandle;
+    private final int reduceProgram;
+    private final int reduceTextureHandle;
+    private final int reduceTexelSizeHandle;
+    private final int rampProgram;
+    private final int rampDensityHandle;
+    private final int rampMaxHandle;
+    private final int rampLogarithmicHandle;
+
+    /** Textures and their framebuffers: counts first, then every reduction level down to 1x1, the ramp last. */
+    private final int[] textures;
+    private final int[] framebuffers;
+    private final int[] widths;
+    private final int[] heights;
+    private final FloatBuffer quad;
+    /** Colors of the point categories, the layer color first. */
+    private final float[] colors = new float[4 * (PointCloud.MAX_CATEGORY + 1)];
+
+    /**
+     * Creates the programs, textures and framebuffers of the passes.
+     * @param width Width of the density texture in pixels.
+     * @param height Height of the density texture in pixels.
+     */
+    public GpuDensity(int width, int height) {
+        this.width = width;
+        this.height = height;
+
+        // Every reduction level halves the previous one, rounding up, until a single pixel is left
+        int levels = 1;
+        for (int w = width, h = height; w > 1 || h > 1; w = (w + 1) / 2, h = (h + 1) / 2) levels++;
+        widths = new int[levels + 1];
+        heights = new int[levels + 1];
+        for (int i = 0, w = width, h = height; i < levels; i++, w = (w + 1) / 2, h = (h + 1) / 2) {
+            widths[i] = w;
+            heights[i] = h;
+        }
+        widths[levels] = width;
+        heights[levels] = height;
+        textures = new int[levels + 1];
+        framebuffers = new int[levels + 1];
+        GLES20.glGenTextures(textures.length, textures, 0);
+        GLES20.glGenFramebuffers(framebuffers.length, framebuffers, 0);
+
+        String extensions = GLES20.glGetString(GLES20.GL_EXTENSIONS);
+        boolean halfFloat = extensions != null && extensions.contains("GL_OES_texture_half_float")
+                && extensions.contains("GL_EXT_color_buffer_half_float")
+                && attach(0, GL_HALF_FLOAT_OES);
+        if (!halfFloat && !attach(0, GLES20.GL_UNSIGNED_BYTE)) {
+            release();
+            throw new RuntimeException("Error creating density framebuffer.");
+        }
+        this.halfFloat = halfFloat;
+        for (int i = 1; i < levels; i++) {
+            if (!attach(i, halfFloat ? GL_HALF_FLOAT_OES : GLES20.GL_UNSIGNED_BYTE)) {
+                release();
+                throw new RuntimeException("Error creating density reduction framebuffer.");
+            }
+        }
+        if (!attach(levels, GLES20.GL_UNSIGNED_BYTE)) {
+            release();
+            throw new RuntimeException("Error creating density ramp framebuffer.");
+        }
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+
+        accumulateProgram = OpenGLRenderer.createAndLinkProgram(
+                OpenGLRenderer.compileShader(GLES20.GL_VERTEX_SHADER, getAccumulateVertexShader()),
+                OpenGLRenderer.compileShader(GLES20.GL_FRAGMENT_SHADER, getAccumulateFragmentShader()),
+                new String[] {"a_Position", "a_Category"});
+        accumulateColorsHandle = GLES20.glGetUniformLocation(accumulateProgram, "u_Colors");
+        accumulatePositionHandle = GLES20.glGetAttribLocation(accumulateProgram, "a_Position");
+        accumulateCategoryHandle = GLES20.glGetAttribLocation(accumulateProgram, "a_Category");
+        int quadShader = OpenGLRenderer.compileShader(GLES20.GL_VERTEX_SHADER, getQuadVertexShader());
+        reduceProgram = OpenGLRenderer.createAndLinkProgram(quadShader,
+                OpenGLRenderer.compileShader(GLES20.GL_FRAGMENT_SHADER, getReduceFragmentShader()),
+                new String[] {"a_Position"});
+        reduceTextureHandle = GLES20.glGetUniformLocation(reduceProgram, "u_Texture");
+        reduceTexelSizeHandle = GLES20.glGetUniformLocation(reduceProgram, "u_TexelSize");
+        rampProgram = OpenGLRenderer.createAndLinkProgram(quadShader,
+                OpenGLRenderer.compileShader(GLES20.GL_FRAGMENT_SHADER, getRampFragmentShader()),
+                new String[] {"a_Position"});
+        rampDensityHandle = GLES20.glGetUniformLocation(rampProgram, "u_Density");
+        rampMaxHandle = GLES20.glGetUniformLocation(rampProgram, "u_Max");
+        rampLogarithmicHandle = GLES20.glGetUniformLocation(rampProgram, "u_Logarithmic");
+
+        quad = ByteBuffer.allocateDirect(4 * QUAD_VERTEX_SIZE * 4).order(ByteOrder.nativeOrder()).asFloatBuffer();
+        quad.put(new float[] {-1, -1, 1, -1, -1, 1, 1, 1}).position(0);
+        Log.i(TAG, "Density texture " + width + "x" + height + (halfFloat ? " in half floats" : " in bytes")
+                + ", " + (levels - 1) + " reduction levels");
+    }
+
+    /**
+     * Vertex shader of the accumulation pass. Points on the sphere are placed at their equirectangular texture
+     * position, north at the first texture row like in the base map.
+     * @return Shader source.
+     */
+    private static String getAccumulateVertexShader() {
+        return "uniform vec4 u_Colors[" + (PointCloud.MAX_CATEGORY + 1) + "];\n"	// Layer color and category colors.
+                + "attribute vec4 a_Position;\n"
+                + "attribute float a_Category;\n"
+                + "varying vec4 v_Color;\n"
+                + "void main()\n"
+                + "{\n"
+                + "   vec3 position = normalize(a_Position.xyz);\n"
+                + "   float u = fract(1.0 - atan(position.z, position.x) / 6.2831853);\n"	// (lon + 180) / 360
+                + "   float v = acos(clamp(position.y, -1.0, 1.0)) / 3.1415927;\n"		// (90 - lat) / 180
+                + "   v_Color = u_Colors[int(a_Category + 0.5)];\n"
+                + "   gl_PointSize = 1.0;\n"
+                + "   gl_Position = vec4(u * 2.0 - 1.0, v * 2.0 - 1.0, 0.0, 1.0);\n"
+                + "}\n";
+    }
+
+    /**
+     * Fragment shader of the accumulation pass. Adds the point color, one 255th of it in 8 bit channels.
+     * @return Shader source.
+     */
+    private String getAccumulateFragmentShader() {
+        return "precision mediump float;\n"
+                + "varying vec4 v_Color;\n"
+                + "void main()\n"
+                + "{\n"
+                + "   gl_FragColor = v_Color * " + (halfFloat ? "1.0" : "(1.0 / 255.0)") + ";\n"
+                + "}\n";
+    }
+
+    /**
+     * Vertex shader of the full texture passes, drawing a quad over the whole framebuffer.
+     * @return Shader source.
+     */
+    private static String getQuadVertexShader() {
+        return "attribute vec2 a_Position;\n"
+                + "varying vec2 v_TexCoordinate;\n"
+                + "void main()\n"
+                + "{\n"
+                + "   v_TexCoordinate = a_Position * 0.5 + 0.5;\n"
+                + "   gl_Position = vec4(a_Position, 0.0, 1.0);\n"
+                + "}\n";
+    }
+
+    /**
+     * Fragment shader of a reduction pass. Every pixel keeps the highest sums of 2x2 pixels of the level before.
+     * Pixels beyond the edge of an odd sized level repeat the edge.
+     * @return Shader source.
+     */
+    private static String getReduceFragmentShader() {
+        return FRAGMENT_PRECISION
+                + "uniform sampler2D u_Texture;\n"
+                + "uniform vec2 u_TexelSize;\n"	// Pixel size of the level before in texture coordinates.
+                + "void main()\n"
+                + "{\n"
+                + "   vec2 corner = (floor(gl_FragCoord.xy) * 2.0 + 0.5) * u_TexelSize;\n"
+                + "   vec4 a = texture2D(u_Texture, corner);\n"
+                + "   vec4 b = texture2D(u_Texture, corner + vec2(u_TexelSize.x, 0.0));\n"
+                + "   vec4 c = texture2D(u_Texture, corner + vec2(0.0, u_TexelSize.y));\n"
+                + "   vec4 d = texture2D(u_Texture, corner + u_TexelSize);\n"
+                + "   gl_FragColor = max(max(a, b), max(c, d));\n"
+                + "}\n";
+    }
+
+    /**
+     * Fragment shader of the color ramp pass. Colors every pixel by the ratio of its category sums and sets its
+     * opacity from its highest sum relative to the highest of all pixels, like the binned overlay.
+     * Writes premultiplied alpha for the globe shader.
+     * @return Shader source.
+     */
+    private static String getRampFragmentShader() {
+        return FRAGMENT_PRECISION
+                + "uniform sampler2D u_Density;\n"
+                + "uniform sampler2D u_Max;\n"		// Single pixel with the highest sums.
+                + "uniform bool u_Logarithmic;\n"
+                + "varying vec2 v_TexCoordinate;\n"
+                + "void main()\n"
+                + "{\n"
+                + "   vec4 sums = texture2D(u_Density, v_TexCoordinate);\n"
+                + "   float count = max(max(sums.r, sums.g), sums.b);\n"
+                + "   if (count <= 0.0) {\n"
+                + "      gl_FragColor = vec4(0.0);\n"
+                + "      return;\n"
+                + "   }\n"
+                + "   vec4 top = texture2D(u_Max, vec2(0.5));\n"
+                + "   float highest = max(max(top.r, top.g), top.b);\n"
+                + "   float level = u_Logarithmic ? log(1.0 + count) / log(1.0 + highest) : count / highest;\n"
+                + "   float alpha = (100.0 + level * 155.0) / 255.0;\n"
+                + "   gl_FragColor = vec4(sums.rgb / count * alpha, alpha);\n"
+                + "}\n";
+    }
+
+    /**
+     * Allocates a texture and attaches it to its framebuffer.
+     * @param index Index of the texture and framebuffer.
+     * @param type Pixel type of the texture.
+     * @return true if the framebuffer can be rendered to.
+     */
+    private boolean attach(int index, int type) {
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textures[index]);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_NEAREST);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_NEAREST);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+        GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, widths[index], heights[index], 0,
+                GLES20.GL_RGBA, type, null);
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, framebuffers[index]);
+        GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0, GLES20.GL_TEXTURE_2D,
+                textures[index], 0);
+        return GLES20.glCheckFramebufferStatus(GLES20.GL_FRAMEBUFFER) == GLES20.GL_FRAMEBUFFER_COMPLETE;
+    }
+
+    /**
+     * Sums the points of visible layers with vertex buffers, one draw call per layer, and colors the sums into
+     * the density texture. Leaves the framebuffer, viewport, depth test and culling changed for the caller to restore.
+     * @param layers Data layers in drawing order.
+     * @param logarithmic If true, opacity follows the logarithm of the sums, otherwise the sums.
+     * @return Number of summed points.
+     */
+    public int render(List<DataLayer> layers, boolean logarithmic) {
+        GLES20.glDisable(GLES20.GL_DEPTH_TEST);
+        GLES20.glDisable(GLES20.GL_CULL_FACE);
+
+        // Sum the category colors of all points of every pixel
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, framebuffers[0]);
+        GLES20.glViewport(0, 0, width, height);
+        GLES20.glClearColor(0, 0, 0, 0);
+        GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+        GLES20.glUseProgram(accumulateProgram);
+        GLES20.glEnable(GLES20.GL_BLEND);
+        GLES20.glBlendFunc(GLES20.GL_ONE, GLES20.GL_ONE);
+        int points = 0;
+        for (DataLayer layer : layers) {
+            if (!layer.visible || layer.cloud == null) continue;
+            PointCloud.getColors(layer.color, colors);
+            GLES20.glUniform4fv(accumulateColorsHandle, PointCloud.MAX_CATEGORY + 1, colors, 0);
+            layer.cloud.draw(accumulatePositionHandle, accumulateCategoryHandle);
+            points += layer.cloud.count;
+        }
+        GLES20.glDisable(GLES20.GL_BLEND);
+
+        // Halve the sums down to the single pixel holding their maximum
+        GLES20.glUseProgram(reduceProgram);
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+        GLES20.glUniform1i(reduceTextureHandle, 0);
+        int last = textures.length - 2;
+        for (int i = 1; i <= last; i++) {
+            GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, framebuffers[i]);
+            GLES20.glViewport(0, 0, widths[i], heights[i]);
+            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textures[i - 1]);
+            GLES20.glUniform2f(reduceTexelSizeHandle, 1f / widths[i - 1], 1f / heights[i - 1]);
+            drawQuad();
+        }
+
+        // Color the sums scaled by their maximum
+        GLES20.glUseProgram(rampProgram);
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, framebuffers[last + 1]);
+        GLES20.glViewport(0, 0, width, height);
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE1);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textures[last]);
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textures[0]);
+        GLES20.glUniform1i(rampDensityHandle, 0);
+        GLES20.glUniform1i(rampMaxHandle, 1);
+        GLES20.glUniform1i(rampLogarithmicHandle, logarithmic ? 1 : 0);
+        drawQuad();
+        return points;
+    }
+
+    /** Draws the full screen quad with the bound quad program. */
+    private void drawQuad() {
+        quad.position(0);
+        GLES20.glVertexAttribPointer(0, QUAD_VERTEX_SIZE, GLES20.GL_FLOAT, false, 0, quad);
+        GLES20.glEnableVertexAttribArray(0);
+        GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+        GLES20.glDisableVertexAttribArray(0);
+    }
+
+    /** @return Handle of the colored density texture, with premultiplied alpha. */
+    public int getTexture() {
+        return textures[textures.length - 1];
+    }
+
+    /** Deletes the programs, textures and framebuffers. */
+    public void release() {
+        GLES20.glDeleteFramebuffers(framebuffers.length, framebuffers, 0);
+        GLES20.glDeleteTextures(textures.length, textures, 0);
+        GLES20.glDeleteProgram(accumulateProgram);
+        GLES20.glDeleteProgram(reduceProgram);
+        GLES20.glDeleteProgram(rampProgram);
+    }
+}
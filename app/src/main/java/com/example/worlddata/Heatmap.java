@@ -0,0 +1,249 @@
+package com.example.worlddata;
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Kernel density of binned points, smoothed by a Gaussian blur approximated with three box blurs in each direction.
+ * Every box blur keeps a running sum, so the cost depends on the number of pixels, not on the bandwidth.
+ * Horizontal boxes are widened towards the poles like the point footprint, so the kernel stays round on the globe.
+ * The density covers the full texture width, so the blur wraps over the antimeridian.
+ */
+public class Heatmap {
+
+    /** Number of box blurs approximating the Gaussian. */
+    private static final int BOXES = 3;
+    /** Colors of the heat ramp from the lowest to the highest density. */
+    private static final int[] RAMP = {Color.argb(0, 0, 0, 255), Color.argb(150, 0, 0, 255),
+            Color.argb(190, 0, 255, 255), Color.argb(210, 0, 255, 0), Color.argb(230, 255, 255, 0),
+            Color.argb(255, 255, 0, 0)};
+
+    public final int width;
+    /** First texture row covered by the density. */
+    public final int top;
+    public final int height;
+    /** Height of the whole texture, used to find the latitude of a row. */
+    private final int textureHeight;
+    /** Density of every pixel in row order. */
+    private final float[] plane;
+
+    /**
+     * Sums the counts of all categories of a range of grid rows.
+     * @param grid Binned point counts.
+     * @param top First row.
+     * @param bottom Row after the last one.
+     */
+    public Heatmap(final DensityGrid grid, int top, int bottom) {
+        this.width = grid.width;
+        this.top = top;
+        this.height = bottom - top;
+        this.textureHeight = grid.height;
+        plane = new float[width * height];
+        inBands(height, new Band() {
+            @Override
+            public void run(int start, int end) {
+                for (int row = start; row < end; row++) {
+                    int y = row + Heatmap.this.top;
+                    int tileY = y / DensityGrid.TILE_SIZE;
+                    int offset = (y % DensityGrid.TILE_SIZE) * DensityGrid.TILE_SIZE * DensityGrid.CHANNELS;
+                    for (int tileX = 0; tileX < grid.tilesX; tileX++) {
+                        int[] tile = grid.getTile(tileX, tileY);
+                        if (tile == null) continue;
+                        int x0 = tileX * DensityGrid.TILE_SIZE;
+                        int x1 = Math.min(x0 + DensityGrid.TILE_SIZE, width);
+                        for (int x = x0, cell = offset; x < x1; x++, cell += DensityGrid.CHANNELS) {
+                            plane[row * width + x] = tile[cell] + tile[cell + 1] + tile[cell + 2];
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Blurs the density in parallel bands, rows first and columns second.
+     * @param sigma Standard deviation of the kernel in pixels at the equator.
+     */
+    public void blur(final float sigma) {
+        if (sigma <= 0) {
+            return;
+        }
+        inBands(height, new Band() {
+            @Override
+            public void run(int start, int end) {
+                float[] row = new float[width];
+                float[] temp = new float[width];
+                for (int r = start; r < end; r++) {
+                    // Rows are stretched by the projection towards the poles
+                    float stretch = (float) Math.sin((r + top + 0.5f) / textureHeight * Math.PI);
+                    int[] radii = getBoxRadii(sigma / Math.max(stretch, 1e-3f), (width - 1) / 2);
+                    System.arraycopy(plane, r * width, row, 0, width);
+                    for (int radius : radii) {
+                        boxBlurWrapped(row, temp, radius);
+                        float[] swap = row;
+                        row = temp;
+                        temp = swap;
+                    }
+                    System.arraycopy(row, 0, plane, r * width, width);
+                }
+            }
+        });
+        final int[] radii = getBoxRadii(sigma, height);
+        inBands(width, new Band() {
+            @Override
+            public void run(int start, int end) {
+                float[] column = new float[height];
+                float[] temp = new float[height];
+                for (int x = start; x < end; x++) {
+                    for (int y = 0; y < height; y++) column[y] = plane[y * width + x];
+                    for (int radius : radii) {
+                        boxBlur(column, temp, radius);
+                        float[] swap = column;
+                        column = temp;
+                        temp = swap;
+                    }
+                    for (int y = 0; y < height; y++) plane[y * width + x] = column[y];
+                }
+            }
+        });
+    }
+
+    /**
+     * Colors the density with the heat ramp, scaled to its highest value.
+     * @param logarithmic If true, the ramp follows the logarithm of the density, so sparse areas stay visible.
+     * @return Overlay Bitmap covering the density rows over the full texture width.
+     */
+    public Bitmap toBitmap(final boolean logarithmic) {
+        float max = 0;
+        for (float value : plane) {
+            if (value > max) max = value;
+        }
+        final int[] colors = getRamp(256);
+        final float scale = max > 0 ? (colors.length - 1) / (logarithmic ? (float) Math.log1p(max) : max) : 0;
+        final Bitmap overlay = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        inBands(height, new Band() {
+            @Override
+            public void run(int start, int end) {
+                int[] band = new int[width * (end - start)];
+                for (int i = 0, p = start * width; i < band.length; i++, p++) {
+                    float value = logarithmic ? (float) Math.log1p(plane[p]) : plane[p];
+                    band[i] = colors[Math.min((int) (value * scale), colors.length - 1)];
+                }
+                synchronized (overlay) {
+                    overlay.setPixels(band, 0, width, 0, start, width, end - start);
+                }
+            }
+        });
+        return overlay;
+    }
+
+    /**
+     * Splits a standard deviation into box radii whose successive blurs approximate the Gaussian.
+     * @param sigma Standard deviation in pixels.
+     * @param maxRadius Largest usable radius.
+     * @return Radius of every box.
+     */
+    static int[] getBoxRadii(float sigma, int maxRadius) {
+        // Widths of the smaller and larger boxes and how many of the smaller ones to use
+        int lower = (int) Math.sqrt(12 * sigma * sigma / BOXES + 1);
+        if (lower % 2 == 0) lower--;
+        int upper = lower + 2;
+        int smaller = Math.round((12 * sigma * sigma - BOXES * lower * lower - 4 * BOXES * lower - 3 * BOXES)
+                / (-4f * lower - 4));
+        int[] radii = new int[BOXES];
+        for (int i = 0; i < BOXES; i++) {
+            radii[i] = Math.min(((i < smaller ? lower : upper) - 1) / 2, maxRadius);
+        }
+        return radii;
+    }
+
+    /** Box blur of a row wrapping around its ends. */
+    private static void boxBlurWrapped(float[] in, float[] out, int radius) {
+        int n = in.length;
+        float sum = 0;
+        for (int k = -radius; k <= radius; k++) sum += in[(k + n) % n];
+        float weight = 1f / (2 * radius + 1);
+        for (int x = 0; x < n; x++) {
+            out[x] = sum * weight;
+            int add = x + radius + 1;
+            int remove = x - radius;
+            sum += in[add >= n ? add - n : add] - in[remove < 0 ? remove + n : remove];
+        }
+    }
+
+    /** Box blur of a column, treating pixels beyond its ends as empty. */
+    private static void boxBlur(float[] in, float[] out, int radius) {
+        int n = in.length;
+        float sum = 0;
+        for (int k = 0; k <= radius && k < n; k++) sum += in[k];
+        float weight = 1f / (2 * radius + 1);
+        for (int y = 0; y < n; y++) {
+            out[y] = sum * weight;
+            if (y + radius + 1 < n) sum += in[y + radius + 1];
+            if (y - radius >= 0) sum -= in[y - radius];
+        }
+    }
+
+    /**
+     * Interpolates the heat ramp into a lookup table.
+     * @param size Number of colors.
+     * @return Colors from the lowest to the highest density.
+     */
+    private static int[] getRamp(int size) {
+        int[] colors = new int[size];
+        for (int i = 0; i < size; i++) {
+            float position = (float) i / (size - 1) * (RAMP.length - 1);
+            int stop = Math.min((int) position, RAMP.length - 2);
+            float t = position - stop;
+            int from = RAMP[stop], to = RAMP[stop + 1];
+            colors[i] = Color.argb(mix(Color.alpha(from), Color.alpha(to), t), mix(Color.red(from), Color.red(to), t),
+                    mix(Color.green(from), Color.green(to), t), mix(Color.blue(from), Color.blue(to), t));
+        }
+        return colors;
+    }
+
+    private static int mix(int from, int to, float t) {
+        return Math.round(from + (to - from) * t);
+    }
+
+    /** Work on a range of rows or columns. */
+    private interface Band {
+        void run(int start, int end);
+    }
+
+    /**
+     * Runs work split into bands on the worker pool and waits for it.
+     * @param count Number of rows or columns.
+     * @param band Work on one band.
+     */
+    private static void inBands(int count, final Band band) {
+        ForkJoinPool pool = WorkerPool.get();
+        int bands = Math.min(count, pool.getParallelism() * 4);
+        if (bands <= 1) {
+            band.run(0, count);
+            return;
+        }
+        final List<RecursiveAction> tasks = new ArrayList<>();
+        for (int i = 0; i < bands; i++) {
+            final int start = (int) ((long) count * i / bands);
+            final int end = (int) ((long) count * (i + 1) / bands);
+            tasks.add(new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    band.run(start, end);
+                }
+            });
+        }
+        pool.invoke(new RecursiveAction() {
+            @Override
+            protected void compute() {
+                invokeAll(tasks);
+            }
+        });
+    }
+}
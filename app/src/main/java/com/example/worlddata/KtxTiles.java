@@ -0,0 +1,175 @@
+package com.example.worlddata;
+
+import android.content.res.AssetManager;
+import android.opengl.GLES20;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Base map tiles of the texture pyramid encoded at build time as ETC2 textures with full mip chains, in KTX
+ * containers in the assets. They are uploaded as they are, without decoding the base map, and take an eighth
+ * of the GPU memory of ARGB tiles. Written by the encodeBaseMapTiles task of the app build.
+ * Tiles can be opened on any thread, the support check and uploads must run on the GL thread.
+ */
+public class KtxTiles {
+
+    private static final String TAG = "KtxTiles";
+    /** Internal format of ETC2 RGB textures, core in OpenGL ES 3.0 and listed as compressed format by ES 2.0. */
+    public static final int GL_COMPRESSED_RGB8_ETC2 = 0x9274;
+    /** Folder of the tiles in the assets, one subfolder per base map. */
+    private static final String ASSET_FOLDER = "tiles";
+    /** File identifier and header size of KTX 1.1. */
+    private static final byte[] IDENTIFIER = {(byte) 0xAB, 'K', 'T', 'X', ' ', '1', '1', (byte) 0xBB,
+            '\r', '\n', 0x1A, '\n'};
+    private static final int HEADER_SIZE = 64;
+    /** Value of the endianness field read in the byte order of the file. */
+    private static final int ENDIANNESS = 0x04030201;
+
+    private final AssetManager assets;
+    private final String folder;
+    /** Read buffer of the asset streams. */
+    private final byte[] buffer = new byte[64 * 1024];
+
+    private KtxTiles(AssetManager assets, String folder) {
+        this.assets = assets;
+        this.folder = folder;
+    }
+
+    /**
+     * Opens the encoded tiles of a base map if tiles of every level are in the assets. The GPU must decode ETC2,
+     * see isSupported.
+     * @param assets Assets of the app.
+     * @param name Resource name of the base map.
+     * @param levels Number of levels of the pyramid.
+     * @return Tiles, or null if the base map has to be drawn from its PNG.
+     */
+    public static KtxTiles open(AssetManager assets, String name, int levels) {
+        String folder = ASSET_FOLDER + "/" + name;
+        // Level 0 has 2 tiles, every further level four times as many
+        int expected = 0;
+        for (int level = 0; level < levels; level++) {
+            expected += 2 << (2 * level);
+        }
+        try {
+            String[] files = assets.list(folder);
+            if (files == null || files.length < expected) {
+                Log.i(TAG, "No encoded tiles of " + name);
+                return null;
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Could not list " + folder, e);
+            return null;
+        }
+        return new KtxTiles(assets, folder);
+    }
+
+    /** @return true if ETC2 RGB is one of the compressed texture formats of the GPU. */
+    public static boolean isSupported() {
+        int[] count = new int[1];
+        GLES20.glGetIntegerv(GLES20.GL_NUM_COMPRESSED_TEXTURE_FORMATS, count, 0);
+        if (count[0] <= 0) {
+            return false;
+        }
+        int[] formats = new int[count[0]];
+        GLES20.glGetIntegerv(GLES20.GL_COMPRESSED_TEXTURE_FORMATS, formats, 0);
+        for (int format : formats) {
+            if (format == GL_COMPRESSED_RGB8_ETC2) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Uploads a tile with all its mipmap levels to the texture bound to the active unit.
+     * @param level Level of the tile.
+     * @param x Horizontal tile index from longitude -180.
+     * @param y Vertical tile index from the north pole.
+     * @return true if uploaded, false if the file is missing or not an ETC2 texture with a full mip chain.
+     */
+    public boolean load(int level, int x, int y) {
+        String name = folder + "/" + level + "_" + x + "_" + y + ".ktx";
+        ByteBuffer file;
+        try {
+            file = read(name);
+        } catch (IOException e) {
+            Log.e(TAG, "Could not read " + name, e);
+            return false;
+        }
+        if (file.remaining() < HEADER_SIZE) {
+            Log.e(TAG, name + " is not a KTX file");
+            return false;
+        }
+        for (int i = 0; i < IDENTIFIER.length; i++) {
+            if (file.get(i) != IDENTIFIER[i]) {
+                Log.e(TAG, name + " is not a KTX file");
+                return false;
+            }
+        }
+        file.order(ByteOrder.LITTLE_ENDIAN);
+        if (file.getInt(12) != ENDIANNESS) {
+            file.order(ByteOrder.BIG_ENDIAN);
+        }
+        int internalFormat = file.getInt(28);
+        int width = file.getInt(36);
+        int height = file.getInt(40);
+        int mipmapLevels = file.getInt(56);
+        int keyValueBytes = file.getInt(60);
+        // Compressed textures get no glGenerateMipmap, so every level down to 1 x 1 must be in the file
+        int fullLevels = 32 - Integer.numberOfLeadingZeros(Math.max(width, height));
+        if (internalFormat != GL_COMPRESSED_RGB8_ETC2 || mipmapLevels != fullLevels) {
+            Log.e(TAG, name + " has format " + Integer.toHexString(internalFormat) + " and " + mipmapLevels
+                    + " levels");
+            return false;
+        }
+        int offset = HEADER_SIZE + keyValueBytes;
+        for (int mip = 0; mip < mipmapLevels; mip++) {
+            if (offset + 4 > file.limit()) {
+                Log.e(TAG, name + " is truncated");
+                return false;
+            }
+            int imageSize = file.getInt(offset);
+            offset += 4;
+            if (offset + imageSize > file.limit()) {
+                Log.e(TAG, name + " is truncated");
+                return false;
+            }
+            file.position(offset);
+            GLES20.glCompressedTexImage2D(GLES20.GL_TEXTURE_2D, mip, internalFormat, width, height, 0, imageSize,
+                    file);
+            // Image data is padded to 4 bytes
+            offset += (imageSize + 3) & ~3;
+            width = Math.max(1, width / 2);
+            height = Math.max(1, height / 2);
+        }
+        return true;
+    }
+
+    /**
+     * Reads an asset into a direct buffer, as needed for upload.
+     * @param name Path of the asset.
+     * @return Content of the asset.
+     */
+    private ByteBuffer read(String name) throws IOException {
+        InputStream input = assets.open(name);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try {
+            int count;
+            while ((count = input.read(buffer)) != -1) {
+                output.write(buffer, 0, count);
+            }
+        } finally {
+            input.close();
+        }
+        byte[] bytes = output.toByteArray();
+        ByteBuffer file = ByteBuffer.allocateDirect(bytes.length);
+        file.put(bytes);
+        file.position(0);
+        return file;
+    }
+}
@@ -4,7 +4,10 @@ import static android.os.Build.VERSION.SDK_INT;
 
 import android.Manifest;
 import android.app.ActivityManager;
+import android.app.AlertDialog;
+import android.content.ClipData;
 import android.content.Context;
+import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.pm.ConfigurationInfo;
 import android.content.pm.PackageManager;
@@ -16,6 +19,7 @@ import android.util.Log;
 import android.view.View;
 import android.view.WindowManager;
 import android.webkit.MimeTypeMap;
+import android.widget.SeekBar;
 import android.widget.TextView;
 import android.widget.Toast;
 
@@ -25,20 +29,15 @@ import androidx.core.content.ContextCompat;
 
 import com.google.android.material.button.MaterialButton;
 
-import java.io.BufferedReader;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-
-import com.google.gson.Gson;
-import com.google.gson.JsonArray;
-import com.google.gson.JsonObject;
+import java.util.ArrayList;
+import java.util.List;
 
 public class MainActivity extends AppCompatActivity {
 
     private OpenGLView openGLView;
     private static MainActivity instance;
     private TextView debugText;
+    private DatasetLoader loader;
 
     private static final int PICKFILE_REQUEST_CODE = 8777;
 
@@ -59,6 +58,42 @@ public class MainActivity extends AppCompatActivity {
         debugText = (TextView) findViewById(R.id.debugText);
         MaterialButton loadBtn = (MaterialButton) findViewById(R.id.loadBtn);
         MaterialButton swapTexture = (MaterialButton) findViewById(R.id.swapTexture);
+        MaterialButton layersBtn = (MaterialButton) findViewById(R.id.layersBtn);
+        MaterialButton scaleBtn = (MaterialButton) findViewById(R.id.scaleBtn);
+        final MaterialButton heatmapBtn = (MaterialButton) findViewById(R.id.heatmapBtn);
+        final SeekBar radiusBar = (SeekBar) findViewById(R.id.radiusBar);
+        final MaterialButton modeBtn = (MaterialButton) findViewById(R.id.modeBtn);
+
+        loader = new DatasetLoader(getContentResolver(), new PointCache(getCacheDir()), openGLView, new DatasetLoader.Listener() {
+            @Override
+            public void onProgress(String text) {
+                debugText.setText(text);
+            }
+
+            @Override
+            public void onLoaded(List<DataLayer> layers) {
+                if (layers.size() == 1) {
+                    PointStore points = layers.get(0).points;
+                    debugText.setText(points.title != null ? points.title : "");
+                } else {
+                    debugText.setText(layers.size() + " layers loaded");
+                }
+            }
+
+            @Override
+            public void onError(String message) {
+                debugText.setText("");
+                Toast.makeText(MainActivity.this, message, Toast.LENGTH_SHORT).show();
+            }
+        });
+
+        // Spatially indexed files are read again for the visible region after rotation or zoom
+        openGLView.setViewChangeListener(new OpenGLView.ViewChangeListener() {
+            @Override
+            public void onViewChanged() {
+                loader.loadVisible();
+            }
+        });
 
         // Check if the system supports OpenGL ES 2.0.
         final ActivityManager activityManager = (ActivityManager) getSystemService(Context.ACTIVITY_SERVICE);
@@ -78,6 +113,7 @@ public class MainActivity extends AppCompatActivity {
                     Intent chooseFile = new Intent(Intent.ACTION_GET_CONTENT);
                     chooseFile.addCategory(Intent.CATEGORY_OPENABLE);
                     chooseFile.setType("*/*");
+                    chooseFile.putExtra(Intent.EXTRA_ALLOW_MULTIPLE, true);
                     startActivityForResult(Intent.createChooser(chooseFile, "Choose a file"), PICKFILE_REQUEST_CODE);
                 } else {
                     // Permission denied
@@ -96,6 +132,86 @@ public class MainActivity extends AppCompatActivity {
                 openGLView.swapTexture();
             }
         });
+
+        layersBtn.setOnClickListener(new View.OnClickListener() {
+            /**
+             * Opens the list of loaded layers for toggling their visibility.
+             * @param v
+             */
+            @Override
+            public void onClick(View v) {
+                showLayers();
+            }
+        });
+
+        scaleBtn.setOnClickListener(new View.OnClickListener() {
+            /**
+             * Opens the choice of color scales for categorized layers.
+             * @param v
+             */
+            @Override
+            public void onClick(View v) {
+                showColorScales();
+            }
+        });
+
+        heatmapBtn.setOnClickListener(new View.OnClickListener() {
+            /**
+             * Switches categorized layers between category colors and heatmap. The radius slider is shown with heatmap.
+             * @param v
+             */
+            @Override
+            public void onClick(View v) {
+                boolean heatmap = !openGLView.renderer.heatmap;
+                heatmapBtn.setText(heatmap ? "Categories" : "Heatmap");
+                radiusBar.setVisibility(heatmap ? View.VISIBLE : View.GONE);
+                loader.setHeatmap(heatmap, getHeatmapRadius(radiusBar));
+            }
+        });
+
+        modeBtn.setOnClickListener(new View.OnClickListener() {
+            /**
+             * Cycles between points drawn into the texture, points drawn by the GPU, sharp at any zoom,
+             * and points binned by the GPU. The button names the next mode.
+             * @param v
+             */
+            @Override
+            public void onClick(View v) {
+                OpenGLRenderer renderer = openGLView.renderer;
+                boolean gpuPoints = !renderer.gpuPoints && !renderer.gpuDensity;
+                boolean gpuDensity = renderer.gpuPoints;
+                modeBtn.setText(gpuPoints ? "GPU density" : gpuDensity ? "Texture" : "GPU points");
+                loader.setGpuMode(gpuPoints, gpuDensity);
+            }
+        });
+
+        radiusBar.setOnSeekBarChangeListener(new SeekBar.OnSeekBarChangeListener() {
+            @Override
+            public void onProgressChanged(SeekBar seekBar, int progress, boolean fromUser) {
+            }
+
+            @Override
+            public void onStartTrackingTouch(SeekBar seekBar) {
+            }
+
+            /**
+             * Blurs the kept counts again with the picked radius once the slider is released.
+             * @param seekBar
+             */
+            @Override
+            public void onStopTrackingTouch(SeekBar seekBar) {
+                loader.setHeatmap(true, getHeatmapRadius(seekBar));
+            }
+        });
+    }
+
+    /**
+     * Reads the heatmap radius from the slider.
+     * @param radiusBar Heatmap radius slider.
+     * @return Standard deviation of the heatmap kernel in pixels, at least 1.
+     */
+    private static float getHeatmapRadius(SeekBar radiusBar) {
+        return radiusBar.getProgress() + 1;
     }
 
     /**
@@ -118,8 +234,15 @@ public class MainActivity extends AppCompatActivity {
         openGLView.onPause();
     }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        loader.shutdown();
+    }
+
     /**
-     * Loads GeoJSON file contents and sends them to interpretation and display.
+     * Starts loading of picked files for interpretation and display, each file as its own layer.
+     * A load still running is cancelled.
      * @param requestCode request code defined in the beginning of class file.
      * @param resultCode result code must be RESULT_OK to proceed.
      * @param data Intent object must be ACTION_GET_CONTENT.
@@ -128,61 +251,64 @@ public class MainActivity extends AppCompatActivity {
     protected void onActivityResult(int requestCode, int resultCode, Intent data) {
         super.onActivityResult(requestCode, resultCode, data);
         if (requestCode == PICKFILE_REQUEST_CODE && resultCode == RESULT_OK) {
-            Uri content_describer = data.getData();
-            BufferedReader reader = null;
-            try {
-                // Open the user-picked file for reading:
-                InputStream in = getContentResolver().openInputStream(content_describer);
-                // Read the content:
-                reader = new BufferedReader(new InputStreamReader(in));
-                String line;
-                StringBuilder builder = new StringBuilder();
-                while ((line = reader.readLine()) != null){
-                    builder.append(line);
-                }
-                // Interpret opened file data
-                JsonObject geoJson = null;
-                try {
-                    geoJson = new Gson().fromJson(builder.toString(), JsonObject.class);
-                } catch (Exception e) {
-                    e.printStackTrace();
-                    Toast.makeText(MainActivity.this, "Please select file with GeoJSON structure", Toast.LENGTH_SHORT).show();
-                }
-                interpretGeoJson(geoJson);
-            } catch (IOException e) {
-                e.printStackTrace();
-            } finally {
-                if (reader != null) {
-                    try {
-                        reader.close();
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
+            // Multiple files are returned as clip data, a single file as data Uri
+            List<Uri> uris = new ArrayList<>();
+            ClipData clipData = data.getClipData();
+            if (clipData != null) {
+                for (int i = 0; i < clipData.getItemCount(); i++) {
+                    uris.add(clipData.getItemAt(i).getUri());
                 }
+            } else if (data.getData() != null) {
+                uris.add(data.getData());
+            }
+            if (!uris.isEmpty()) {
+                loader.load(uris);
             }
         }
     }
 
-    /**
-     * Checks the GeoJSON data to see if point data contains categories. Visualizes them accordingly.
-     * @param gson JsonObject of GeoJSON data features.
-     */
-    private void interpretGeoJson(JsonObject gson) {
-        try {
-            // Get necessary data from GeoJSON
-            JsonArray geometry = gson.getAsJsonArray("features");
-            debugText.setText(String.valueOf(gson.get("title").getAsString()));
-            if (geometry.get(0).getAsJsonObject().get("properties").getAsJsonObject().keySet().contains("category")) {
-                Log.i("Interpretation", "Found that properties contain - category.");
-                openGLView.drawCategories(geometry);
-            } else {
-                Log.i("Interpretation", "Did not find property - category.");
-                openGLView.drawPoints(geometry);
-            }
-        } catch (Exception e) {
-            e.printStackTrace();
-            Toast.makeText(MainActivity.this, "Could not process selected file.", Toast.LENGTH_SHORT).show();
+    /** Shows loaded layers in a dialog where their visibility can be toggled. */
+    private void showLayers() {
+        final List<DataLayer> layers = openGLView.getLayers();
+        if (layers.isEmpty()) {
+            Toast.makeText(MainActivity.this, "No data loaded.", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        String[] names = new String[layers.size()];
+        boolean[] visible = new boolean[layers.size()];
+        for (int i = 0; i < layers.size(); i++) {
+            names[i] = layers.get(i).name;
+            visible[i] = layers.get(i).visible;
         }
+        new AlertDialog.Builder(MainActivity.this)
+                .setTitle("Layers")
+                .setMultiChoiceItems(names, visible, new DialogInterface.OnMultiChoiceClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which, boolean isChecked) {
+                        openGLView.setLayerVisible(layers.get(which), isChecked);
+                    }
+                })
+                .setPositiveButton("Close", null)
+                .show();
+    }
+
+    /** Shows color scales of categorized layers in a dialog. Picking one composes their overlays again. */
+    private void showColorScales() {
+        final OpenGLRenderer.ColorScale[] scales = OpenGLRenderer.ColorScale.values();
+        String[] names = new String[scales.length];
+        for (int i = 0; i < scales.length; i++) {
+            names[i] = scales[i].label;
+        }
+        new AlertDialog.Builder(MainActivity.this)
+                .setTitle("Color scale")
+                .setSingleChoiceItems(names, openGLView.renderer.colorScale.ordinal(), new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        loader.setColorScale(scales[which]);
+                        dialog.dismiss();
+                    }
+                })
+                .show();
     }
 
     /**
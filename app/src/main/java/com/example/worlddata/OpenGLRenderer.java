@@ -1,23 +1,27 @@
 package com.example.worlddata;
 
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
+import android.graphics.PorterDuff;
 import android.graphics.Rect;
 import android.opengl.GLES20;
 import android.opengl.GLSurfaceView;
-import android.opengl.GLUtils;
 import android.opengl.Matrix;
+import android.os.SystemClock;
 import android.util.Log;
 
-import com.google.gson.JsonArray;
-import com.google.gson.JsonObject;
-
-import java.nio.FloatBuffer;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.microedition.khronos.egl.EGLConfig;
 import javax.microedition.khronos.opengles.GL10;
@@ -26,6 +30,21 @@ public class OpenGLRenderer implements GLSurfaceView.Renderer {
 
     /** Used for debug logs. */
     private static final String TAG = "Renderer";
+    /** Enlargement of the visible window requested from spatially indexed files. */
+    private static final float WINDOW_MARGIN = 1.25f;
+    /** Margin in pixels around the bounds of a data layer, so points at its edge are fully drawn. */
+    private static final int LAYER_MARGIN = 8;
+    /** Fewer points are binned on the calling thread, sorting them into stripes costs more than it saves. */
+    private static final int MIN_BIN_RANGE = 1 << 16;
+    /** Point sprite size in pixels with the whole globe in view, and its largest size when zoomed in. */
+    private static final float POINT_SIZE = 2f;
+    private static final float MAX_POINT_SIZE = 12f;
+    /** Points lie slightly above the sphere, so they are not hidden by its surface. */
+    private static final float POINT_ELEVATION = 1.002f;
+    /** Downscaling of the GPU density texture from the world texture. One density pixel is 2x2 texture pixels. */
+    private static final int DENSITY_SCALE = 2;
+    /** Interval of frame time logs in milliseconds. */
+    private static final long FRAME_LOG_INTERVAL = 5000;
 
     /**
      * Store the model matrix. This matrix is used to move models from object space (where each model can be thought
@@ -44,11 +63,8 @@ public class OpenGLRenderer implements GLSurfaceView.Renderer {
     public float[] mInverseProjectionMatrix = new float[16];
     /** Allocate storage for the final combined matrix. This will be passed into the shader program. */
     private float[] mMVPMatrix = new float[16];
-
-    /** Store our model data in a float buffer. */
-    public final FloatBuffer mObjectPositions;
-    public final FloatBuffer mObjectColors;
-    public final FloatBuffer mObjectTextures;
+    /** Store the model view matrix of the globe. This is used to find tiles in view. */
+    private float[] mMVMatrix = new float[16];
 
     /** This will be used to pass in the transformation matrix. */
     private int mMVPMatrixHandle;
@@ -56,34 +72,88 @@ public class OpenGLRenderer implements GLSurfaceView.Renderer {
     private int mMVMatrixHandle;
     /** This will be used to pass in model position information. */
     private int mPositionHandle;
-    /** This will be used to pass in model color information. */
-    private int mColorHandle;
 
-    /** These will be used to hold object textures */
+    /** These will be used to hold object textures. Each is uploaded to its own GL texture and blended in the shader. */
     public Canvas DataOverlay;
     public Canvas PointOverlay;
-    public Canvas Result;
     public Paint paint;
-    public static Bitmap bitmap;
     public static Bitmap dataOverlay;
     public static Bitmap pointOverlay;
-    public static Bitmap bitmapSum;
+
+    /** Opacity and visibility of the overlay textures, applied in the fragment shader. */
+    public volatile float dataOpacity = 1f;
+    public volatile float pointOpacity = 1f;
+    public volatile boolean dataVisible = true;
+    public volatile boolean pointVisible = true;
+    /** If true, the point overlay is blended over the data overlay, otherwise under it. */
+    public volatile boolean pointsOnTop = true;
+    /** If true, layers are drawn as points from vertex buffers instead of the data overlay texture. */
+    public volatile boolean gpuPoints = false;
+    /** If true, layers are binned on the GPU from their vertex buffers instead of shown from the data overlay. */
+    public volatile boolean gpuDensity = false;
+    /**
+     * Loaded data layers in drawing order, composed into dataOverlay. Read on the UI, GL and worker threads and
+     * replaced as a whole, never changed in place, so every reader iterates a consistent snapshot.
+     */
+    public volatile List<DataLayer> layers = Collections.emptyList();
+    /** Regions of the overlays changed since the last texture upload. Used on the GL thread only. */
+    private final List<Rect> dataUploadRects = new ArrayList<>();
+    private final List<Rect> pointUploadRects = new ArrayList<>();
+    /** Regions covered by composed layer overlays and by the point marker, cleared when they change. */
+    private final List<Rect> layerRects = new ArrayList<>();
+    private final List<Rect> markerRects = new ArrayList<>();
+    /** Version of the overlays, bumped whenever they change, and the version last uploaded to the GL textures. */
+    private int textureGeneration = 0;
+    private int uploadedGeneration = 0;
+    /** Base maps, decoded once with the first GL context. */
+    private TextureManager baseMaps;
+    /** Density binned on the GPU, created on first use. Used on the GL thread only. */
+    private GpuDensity density;
+    private boolean densityFailed = false;
+    /** Version of the layers and their vertex buffers, and the version and color scale last binned by the GPU. */
+    private int layerGeneration = 0;
+    private int densityGeneration = 0;
+    private boolean densityLogarithmic;
+
+    /** Frame time statistics since the last frame time log. */
+    private long frameLogStart = 0;
+    private int frames = 0;
+    private int uploads = 0;
+    private long frameNanos = 0;
+    private long maxFrameNanos = 0;
+    private long uploadNanos = 0;
 
     /** This will be used to pass in the texture. */
     private int mTextureUniformHandle;
+    /** These will be used to pass in the tile rectangles of the base map, data and point textures. */
+    private final int[] mTileRectHandles = new int[3];
     /** This will be used to pass in model texture coordinate information. */
     private int mTextureCoordinateHandle;
-    /** This is a handle to our texture data. */
-    private static int mTextureDataHandle;
-
-    /** Size of the texture coordinate data in elements. */
-    private final int mTextureDataSize = 2;
-    /** Size of the position data in elements. */
-    private final int mPositionDataSize = 3;
-    /** Size of the color data in elements. */
-    private final int mColorDataSize = 4;
+    /** Tiles of the base map and overlays, each with its own GL textures blended in the shader. */
+    private TilePyramid pyramid;
+    /** These will be used to pass in the overlay textures and their blending. */
+    private int mDataTextureUniformHandle;
+    private int mPointTextureUniformHandle;
+    private int mDataOpacityHandle;
+    private int mPointOpacityHandle;
+    private int mDataVisibleHandle;
+    private int mPointVisibleHandle;
+    private int mPointsOnTopHandle;
+
     /** This is a handle to our per-vertex cube shading program. */
     private int mPerVertexProgramHandle;
+    /** Program drawing layer points as sprites and its handles. */
+    private int mPointProgramHandle;
+    private int mPointMVPMatrixHandle;
+    private int mPointMVMatrixHandle;
+    private int mPointSizeHandle;
+    private int mPointColorsHandle;
+    private int mPointPositionHandle;
+    private int mPointCategoryHandle;
+    /** Model view matrix of the points. */
+    private final float[] mPointMVMatrix = new float[16];
+    /** Colors of the point categories, the layer color first. */
+    private final float[] mPointColors = new float[4 * (PointCloud.MAX_CATEGORY + 1)];
 
     public float xAngle = -70; // X -70 and Y -16 centers initial rotation above Mediterranean
     public float yAngle = -16;
@@ -94,10 +164,36 @@ public class OpenGLRenderer implements GLSurfaceView.Renderer {
     public int viewportHeight;
     public int viewportWidth;
 
-    public int imageId = R.drawable.map_world_big;
+    /** Base map shown, swapped in on the next frame once decoded. */
+    public volatile int imageId = R.drawable.map_world_big;
     public int pWidth = 5400;
     public int pHeight = 2700;
 
+    /** Mapping of pixel counts of categorized layers to overlay opacity. */
+    public enum ColorScale {
+        /** Proportional to the highest count. */
+        LINEAR("Linear"),
+        /** Proportional to the logarithm of the count, so sparse pixels stay visible next to dense ones. */
+        LOG("Logarithmic"),
+        /** Proportional to the count, saturated at the 99th percentile of non-empty pixels. */
+        PERCENTILE("Percentile clipped"),
+        /** By rank of the count among non-empty pixels, so every opacity step covers about as many pixels. */
+        EQUALIZED("Equalized");
+
+        /** Name shown in the color scale dialog. */
+        public final String label;
+
+        ColorScale(String label) {
+            this.label = label;
+        }
+    }
+
+    public volatile ColorScale colorScale = ColorScale.LINEAR;
+    /** If true, categorized layers are shown as a smoothed density of all categories instead of category colors. */
+    public volatile boolean heatmap = false;
+    /** Standard deviation of the heatmap kernel in pixels at the equator. */
+    public volatile float heatmapRadius = 8;
+
     // Position the eye in front of the origin.
     public final float[] eye = {0.0f, 0.0f, 5.0f};
     // We are looking toward the distance
@@ -106,17 +202,13 @@ public class OpenGLRenderer implements GLSurfaceView.Renderer {
     private final float[] up = {0.0f, 1.0f, 0.0f};
 
     // Define the 3D object
-    Sphere Object = new Sphere(radius, sphereStep);
+    Sphere Object = new Sphere(radius, sphereStep, TilePyramid.getLevels(pWidth));
 
     OpenGLView mActivityContext;
 
     /** Initialize the model data. */
     public OpenGLRenderer( OpenGLView surfaceView) {
-        // Initialize the buffers.
         mActivityContext = surfaceView;
-        mObjectPositions = Object.objectVertex;
-        mObjectColors = Object.objectColor;
-        mObjectTextures = Object.objectTexture;
     }
 
     protected String getVertexShader() {
@@ -124,15 +216,19 @@ public class OpenGLRenderer implements GLSurfaceView.Renderer {
                 "uniform mat4 u_MVPMatrix;        \n"	// A constant representing the combined model/view/projection matrix.
                         + "uniform mat4 u_MVMatrix;       \n"	// A constant representing the combined model/view matrix.
                         + "attribute vec4 a_Position;     \n"	// Per-vertex position information we will pass in.
-                        + "attribute vec4 a_Color;        \n"	// Per-vertex color information we will pass in.
                         + "attribute vec2 a_TexCoordinate;\n"
+                        + "uniform vec4 u_TextureRect;    \n"	// Offset and scale from globe texture coordinates to the tile.
+                        + "uniform vec4 u_DataRect;       \n"
+                        + "uniform vec4 u_PointRect;      \n"
                         + "varying vec2 v_TexCoordinate;  \n"
-                        + "varying vec4 v_Color;          \n"	// This will be passed into the fragment shader.
+                        + "varying vec2 v_DataCoordinate; \n"
+                        + "varying vec2 v_PointCoordinate;\n"
                         + "void main()                    \n" 	// The entry point for our vertex shader.
                         + "{                              \n"   // Transform the vertex into eye space.
                         + "   vec3 modelViewVertex = vec3(u_MVMatrix * a_Position);\n"    // Multiply the color by the illumination level. It will be interpolated across the triangle.
-                        + "   v_Color = a_Color;\n"             // Pass the color through to the fragment shader.
-                        +"v_TexCoordinate = a_TexCoordinate;\n"
+                        + "   v_TexCoordinate = (a_TexCoordinate - u_TextureRect.xy) * u_TextureRect.zw;\n"
+                        + "   v_DataCoordinate = (a_TexCoordinate - u_DataRect.xy) * u_DataRect.zw;\n"
+                        + "   v_PointCoordinate = (a_TexCoordinate - u_PointRect.xy) * u_PointRect.zw;\n"
                         + "   gl_Position = u_MVPMatrix   \n" 	// gl_Position is a special variable used to store the final position.
                         + "               * a_Position;   \n"   // Multiply the vertex by the matrix to get the final point in
                         + "}\n";                                // normalized screen coordinates.
@@ -141,17 +237,79 @@ public class OpenGLRenderer implements GLSurfaceView.Renderer {
 
     protected String getFragmentShader() {
         final String fragmentShader =
-                "precision mediump float;         \n"		// Set the default precision to medium. We don't need as high of a precision in the fragment shader.
-                        + "varying vec4 v_Color;          \n"		// This is the color from the vertex shader interpolated across the triangle per fragment.
-                        + "uniform sampler2D u_Texture;   \n"
+                "#ifdef GL_FRAGMENT_PRECISION_HIGH\n"	// Tile coordinates need more than medium precision where available.
+                        + "precision highp float;         \n"
+                        + "#else                          \n"
+                        + "precision mediump float;       \n"
+                        + "#endif                         \n"
+                        + "uniform sampler2D u_Texture;   \n"		// Base map.
+                        + "uniform sampler2D u_DataTexture;  \n"	// Overlays with premultiplied alpha.
+                        + "uniform sampler2D u_PointTexture; \n"
+                        + "uniform float u_DataOpacity;   \n"
+                        + "uniform float u_PointOpacity;  \n"
+                        + "uniform float u_DataVisible;   \n"		// 1 if the overlay is shown, 0 if hidden.
+                        + "uniform float u_PointVisible;  \n"
+                        + "uniform bool u_PointsOnTop;    \n"		// Blending order of the overlays.
                         + "varying vec2 v_TexCoordinate;  \n"
+                        + "varying vec2 v_DataCoordinate; \n"
+                        + "varying vec2 v_PointCoordinate;\n"
                         + "void main()                    \n"		// The entry point for our fragment shader.
                         + "{                              \n"
-                        + "   gl_FragColor = (v_Color * texture2D(u_Texture, v_TexCoordinate)); \n"	// Pass the color directly through the pipeline.
+                        + "   vec4 color = texture2D(u_Texture, v_TexCoordinate);\n"
+                        + "   vec4 data = texture2D(u_DataTexture, v_DataCoordinate) * (u_DataOpacity * u_DataVisible);\n"
+                        + "   vec4 point = texture2D(u_PointTexture, v_PointCoordinate) * (u_PointOpacity * u_PointVisible);\n"
+                        + "   vec4 lower = u_PointsOnTop ? data : point;\n"
+                        + "   vec4 upper = u_PointsOnTop ? point : data;\n"
+                        + "   color.rgb = color.rgb * (1.0 - lower.a) + lower.rgb;\n"	// Source over with premultiplied alpha.
+                        + "   color.rgb = color.rgb * (1.0 - upper.a) + upper.rgb;\n"
+                        + "   gl_FragColor = color;       \n"
                         + "}                              \n";
         return fragmentShader;
     }
 
+    /**
+     * Vertex shader of layer points. Points on the far side of the globe are moved out of the view.
+     * @return Shader source.
+     */
+    protected String getPointVertexShader() {
+        return "uniform mat4 u_MVPMatrix;\n"
+                + "uniform mat4 u_MVMatrix;\n"
+                + "uniform float u_PointSize;\n"
+                + "uniform vec4 u_Colors[" + (PointCloud.MAX_CATEGORY + 1) + "];\n"	// Layer color and category colors.
+                + "attribute vec4 a_Position;\n"
+                + "attribute float a_Category;\n"
+                + "varying vec4 v_Color;\n"
+                + "void main()\n"
+                + "{\n"
+                + "   vec3 eyePosition = vec3(u_MVMatrix * a_Position);\n"
+                + "   vec3 normal = (u_MVMatrix * vec4(a_Position.xyz, 0.0)).xyz;\n"	// The sphere is centered at the origin.
+                + "   if (dot(normal, eyePosition) >= 0.0) {\n"			// Facing away from the eye.
+                + "      gl_Position = vec4(0.0, 0.0, 2.0, 1.0);\n"		// Beyond the far plane, clipped.
+                + "      gl_PointSize = 0.0;\n"
+                + "      return;\n"
+                + "   }\n"
+                + "   v_Color = u_Colors[int(a_Category + 0.5)];\n"
+                + "   gl_PointSize = u_PointSize;\n"
+                + "   gl_Position = u_MVPMatrix * a_Position;\n"
+                + "}\n";
+    }
+
+    /**
+     * Fragment shader of layer points, drawing round anti-aliased sprites.
+     * @return Shader source.
+     */
+    protected String getPointFragmentShader() {
+        return "precision mediump float;\n"
+                + "varying vec4 v_Color;\n"
+                + "void main()\n"
+                + "{\n"
+                + "   float distance = length(gl_PointCoord - vec2(0.5));\n"
+                + "   float alpha = 1.0 - smoothstep(0.35, 0.5, distance);\n"
+                + "   if (alpha <= 0.0) discard;\n"
+                + "   gl_FragColor = vec4(v_Color.rgb, v_Color.a * alpha);\n"
+                + "}\n";
+    }
+
     /**
      * Called when the surface is created or recreated.
      * @param gl the GL interface. Use instanceof to test if the interface supports GL11 or higher interfaces.
@@ -181,7 +339,25 @@ public class OpenGLRenderer implements GLSurfaceView.Renderer {
         final int fragmentShaderHandle = compileShader(GLES20.GL_FRAGMENT_SHADER, fragmentShader);
 
         mPerVertexProgramHandle = createAndLinkProgram(vertexShaderHandle, fragmentShaderHandle,
-                new String[] {"a_Position",  "a_Color", "a_TexCoordinate"});
+                new String[] {"a_Position", "a_TexCoordinate"});
+        loadTexture(mActivityContext, imageId);
+
+        mPointProgramHandle = createAndLinkProgram(compileShader(GLES20.GL_VERTEX_SHADER, getPointVertexShader()),
+                compileShader(GLES20.GL_FRAGMENT_SHADER, getPointFragmentShader()),
+                new String[] {"a_Position", "a_Category"});
+        mPointMVPMatrixHandle = GLES20.glGetUniformLocation(mPointProgramHandle, "u_MVPMatrix");
+        mPointMVMatrixHandle = GLES20.glGetUniformLocation(mPointProgramHandle, "u_MVMatrix");
+        mPointSizeHandle = GLES20.glGetUniformLocation(mPointProgramHandle, "u_PointSize");
+        mPointColorsHandle = GLES20.glGetUniformLocation(mPointProgramHandle, "u_Colors");
+        mPointPositionHandle = GLES20.glGetAttribLocation(mPointProgramHandle, "a_Position");
+        mPointCategoryHandle = GLES20.glGetAttribLocation(mPointProgramHandle, "a_Category");
+        // Buffers of a previous context are gone
+        Object.invalidate();
+        for (DataLayer layer : layers) {
+            if (layer.cloud != null) layer.cloud.invalidate();
+        }
+        density = null;
+        densityFailed = false;
     }
 
     /**
@@ -252,6 +428,13 @@ public class OpenGLRenderer implements GLSurfaceView.Renderer {
      */
     @Override
     public void onDrawFrame(GL10 gl) {
+        long frameStart = System.nanoTime();
+        if (gpuDensity) {
+            updateDensity();
+        } else if (density != null) {
+            density.release();
+            density = null;
+        }
         GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT | GLES20.GL_DEPTH_BUFFER_BIT);
 
         // Set our per-vertex lighting program.
@@ -261,8 +444,17 @@ public class OpenGLRenderer implements GLSurfaceView.Renderer {
         mMVPMatrixHandle = GLES20.glGetUniformLocation(mPerVertexProgramHandle, "u_MVPMatrix");
         mMVMatrixHandle = GLES20.glGetUniformLocation(mPerVertexProgramHandle, "u_MVMatrix");
         mTextureUniformHandle = GLES20.glGetUniformLocation(mPerVertexProgramHandle, "u_Texture");
+        mDataTextureUniformHandle = GLES20.glGetUniformLocation(mPerVertexProgramHandle, "u_DataTexture");
+        mPointTextureUniformHandle = GLES20.glGetUniformLocation(mPerVertexProgramHandle, "u_PointTexture");
+        mDataOpacityHandle = GLES20.glGetUniformLocation(mPerVertexProgramHandle, "u_DataOpacity");
+        mPointOpacityHandle = GLES20.glGetUniformLocation(mPerVertexProgramHandle, "u_PointOpacity");
+        mDataVisibleHandle = GLES20.glGetUniformLocation(mPerVertexProgramHandle, "u_DataVisible");
+        mPointVisibleHandle = GLES20.glGetUniformLocation(mPerVertexProgramHandle, "u_PointVisible");
+        mPointsOnTopHandle = GLES20.glGetUniformLocation(mPerVertexProgramHandle, "u_PointsOnTop");
+        mTileRectHandles[TilePyramid.BASE] = GLES20.glGetUniformLocation(mPerVertexProgramHandle, "u_TextureRect");
+        mTileRectHandles[TilePyramid.DATA] = GLES20.glGetUniformLocation(mPerVertexProgramHandle, "u_DataRect");
+        mTileRectHandles[TilePyramid.POINT] = GLES20.glGetUniformLocation(mPerVertexProgramHandle, "u_PointRect");
         mPositionHandle = GLES20.glGetAttribLocation(mPerVertexProgramHandle, "a_Position");
-        mColorHandle = GLES20.glGetAttribLocation(mPerVertexProgramHandle, "a_Color");
         mTextureCoordinateHandle = GLES20.glGetAttribLocation(mPerVertexProgramHandle, "a_TexCoordinate");
 
         // Draw the object
@@ -297,38 +489,150 @@ public class OpenGLRenderer implements GLSurfaceView.Renderer {
         Matrix.rotateM(mModelMatrix, 0, 0, 1.0f, 0.0f, 0.0f); // pitch  // -yAngle
         Matrix.rotateM(mModelMatrix, 0, -xAngle, 0.0f, 1.0f, 0.0f); // roll
 
-        // Set the active texture unit
-        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
-        // Update existing texture|
-        GLUtils.texSubImage2D(GLES20.GL_TEXTURE_2D,0,0,0, bitmapSum);
-        // Bind the texture to this unit.
-        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mTextureDataHandle);
-        // Tell the texture uniform sampler to use this texture in the shader by binding to texture unit 0.
+        // Swap the base map once it is decoded. Overlay tiles are kept.
+        TilePyramid.BaseMap base = baseMaps.get(imageId);
+        if (base != null) {
+            pyramid.setBase(base);
+        }
+
+        // Mark changed regions of overlay tiles, only if they changed since the last upload.
+        // Tiles are drawn and uploaded again when they are drawn next. The base map never changes.
+        if (uploadedGeneration != textureGeneration) {
+            long uploadStart = System.nanoTime();
+            pyramid.invalidate(TilePyramid.DATA, dataUploadRects);
+            pyramid.invalidate(TilePyramid.POINT, pointUploadRects);
+            dataUploadRects.clear();
+            pointUploadRects.clear();
+            uploadedGeneration = textureGeneration;
+            uploads++;
+            uploadNanos += System.nanoTime() - uploadStart;
+        }
+        // Tell the texture uniform samplers which texture units to use. The tiles bind the base map to unit 0
+        // and the overlays to units 1 and 2.
         GLES20.glUniform1i(mTextureUniformHandle, 0);
+        GLES20.glUniform1i(mDataTextureUniformHandle, 1);
+        GLES20.glUniform1i(mPointTextureUniformHandle, 2);
+        // Blending of the overlays, changing it needs no upload
+        GLES20.glUniform1f(mDataOpacityHandle, dataOpacity);
+        GLES20.glUniform1f(mPointOpacityHandle, pointOpacity);
+        GLES20.glUniform1f(mDataVisibleHandle, dataVisible && !gpuPoints ? 1 : 0);
+        GLES20.glUniform1f(mPointVisibleHandle, pointVisible ? 1 : 0);
+        GLES20.glUniform1i(mPointsOnTopHandle, pointsOnTop ? 1 : 0);
 
         drawObject();
+        if (gpuPoints && dataVisible) drawPointClouds();
+        logFrameTime(System.nanoTime() - frameStart);
+    }
+
+    /** Draws points of visible layers from their vertex buffers, with the model and view of the globe. */
+    private void drawPointClouds() {
+        GLES20.glUseProgram(mPointProgramHandle);
+        Matrix.multiplyMM(mPointMVMatrix, 0, mViewMatrix, 0, mModelMatrix, 0);
+        GLES20.glUniformMatrix4fv(mPointMVMatrixHandle, 1, false, mPointMVMatrix, 0);
+        // mMVPMatrix holds the combined matrix of the globe drawn before
+        GLES20.glUniformMatrix4fv(mPointMVPMatrixHandle, 1, false, mMVPMatrix, 0);
+        // Points grow when zooming in
+        GLES20.glUniform1f(mPointSizeHandle, Math.min(MAX_POINT_SIZE, POINT_SIZE / OpenGLView.sizeCoef));
+        GLES20.glEnable(GLES20.GL_BLEND);
+        GLES20.glBlendFunc(GLES20.GL_SRC_ALPHA, GLES20.GL_ONE_MINUS_SRC_ALPHA);
+        for (DataLayer layer : layers) {
+            if (!layer.visible || layer.cloud == null) continue;
+            PointCloud.getColors(layer.color, mPointColors);
+            GLES20.glUniform4fv(mPointColorsHandle, PointCloud.MAX_CATEGORY + 1, mPointColors, 0);
+            layer.cloud.draw(mPointPositionHandle, mPointCategoryHandle);
+        }
+        GLES20.glDisable(GLES20.GL_BLEND);
+    }
+
+    /**
+     * Bins the points of visible layers on the GPU, if layers or their vertex buffers changed since the last time.
+     * Falls back to the data overlay if the GPU cannot render to the density texture.
+     */
+    private void updateDensity() {
+        boolean logarithmic = colorScale == ColorScale.LOG;
+        if (density != null && densityGeneration == layerGeneration && densityLogarithmic == logarithmic) {
+            return;
+        }
+        if (density == null) {
+            if (densityFailed) {
+                return;
+            }
+            final int[] maxSize = new int[1];
+            GLES20.glGetIntegerv(GLES20.GL_MAX_TEXTURE_SIZE, maxSize, 0);
+            try {
+                density = new GpuDensity(Math.min(pWidth / DENSITY_SCALE, maxSize[0]),
+                        Math.min(pHeight / DENSITY_SCALE, maxSize[0]));
+            } catch (RuntimeException e) {
+                Log.e(TAG, "GPU density not available: " + e.getMessage());
+                densityFailed = true;
+                return;
+            }
+        }
+        long start = System.nanoTime();
+        int points = density.render(layers, logarithmic);
+        // Restore the state of drawing the globe
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+        GLES20.glViewport(0, 0, viewportWidth, viewportHeight);
+        GLES20.glClearColor(0.2f, 0.2f, 0.2f, 1.0f);
+        GLES20.glEnable(GLES20.GL_CULL_FACE);
+        GLES20.glEnable(GLES20.GL_DEPTH_TEST);
+        densityGeneration = layerGeneration;
+        densityLogarithmic = logarithmic;
+        Log.i(TAG, String.format(Locale.US, "Binned %d points on the GPU, submitted in %.2f ms",
+                points, (System.nanoTime() - start) / 1e6));
+    }
+
+    /**
+     * Replaces the points of a layer drawn from vertex buffers. The buffer of the previous points is deleted.
+     * @param layer One of the loaded layers.
+     * @param cloud Points converted off the GL thread, or null to remove them.
+     */
+    public void setPointCloud(final DataLayer layer, final PointCloud cloud) {
+        layer.cloudQueued = cloud != null;
+        mActivityContext.queueEvent(new Runnable() {
+            @Override
+            public void run() {
+                if (layer.cloud != null) layer.cloud.release();
+                layer.cloud = cloud;
+                layerGeneration++;
+            }
+        });
+    }
+
+    /**
+     * Creates the points of a layer to be drawn from vertex buffers. Runs off the GL thread.
+     * @param points Point data of the layer.
+     * @return Points on the sphere surface.
+     */
+    public PointCloud createPointCloud(PointStore points) {
+        return new PointCloud(points, radius * POINT_ELEVATION);
+    }
+
+    /**
+     * Collects frame times and logs their average and maximum and the time spent uploading the texture.
+     * @param nanos Duration of the finished frame in nanoseconds.
+     */
+    private void logFrameTime(long nanos) {
+        frames++;
+        frameNanos += nanos;
+        maxFrameNanos = Math.max(maxFrameNanos, nanos);
+        long now = SystemClock.elapsedRealtime();
+        if (frameLogStart == 0) {
+            frameLogStart = now;
+        } else if (now - frameLogStart >= FRAME_LOG_INTERVAL) {
+            Log.i(TAG, String.format(Locale.US, "%d frames, average %.2f ms, max %.2f ms, %d uploads taking %.2f ms",
+                    frames, frameNanos / 1e6 / frames, maxFrameNanos / 1e6, uploads, uploadNanos / 1e6));
+            frameLogStart = now;
+            frames = uploads = 0;
+            frameNanos = maxFrameNanos = uploadNanos = 0;
+        }
     }
 
     /**
      * Draws the object. */
     private void drawObject() {
-        // Pass in the position information
-        mObjectPositions.position(0);
-        GLES20.glVertexAttribPointer(mPositionHandle, mPositionDataSize, GLES20.GL_FLOAT, false,
-                0, mObjectPositions);
-        GLES20.glEnableVertexAttribArray(mPositionHandle);
-
-        // Pass in the color information
-        mObjectColors.position(0);
-        GLES20.glVertexAttribPointer(mColorHandle, mColorDataSize, GLES20.GL_FLOAT, false,
-                0, mObjectColors);
-        GLES20.glEnableVertexAttribArray(mColorHandle);
-
-        // Pass in the texture coordinate information.
-        mObjectTextures.position(0);
-        GLES20.glVertexAttribPointer(mTextureCoordinateHandle, mTextureDataSize, GLES20.GL_FLOAT, false,
-                0, mObjectTextures);
-        GLES20.glEnableVertexAttribArray(mTextureCoordinateHandle);
+        // Pass in the position and texture coordinate information from the buffers of the sphere
+        Object.bind(mPositionHandle, mTextureCoordinateHandle);
 
         // This multiplies the view matrix by the model matrix, and stores the result in the MVP matrix
         // (which currently contains model * view).
@@ -336,6 +640,7 @@ public class OpenGLRenderer implements GLSurfaceView.Renderer {
 
         // Pass in the modelview matrix.
         GLES20.glUniformMatrix4fv(mMVMatrixHandle, 1, false, mMVPMatrix, 0);
+        System.arraycopy(mMVPMatrix, 0, mMVMatrix, 0, 16);
 
         // This multiplies the modelview matrix by the projection matrix, and stores the result in the MVP matrix
         // (which now contains model * view * projection).
@@ -344,8 +649,13 @@ public class OpenGLRenderer implements GLSurfaceView.Renderer {
         // Pass in the combined matrix.
         GLES20.glUniformMatrix4fv(mMVPMatrixHandle, 1, false, mMVPMatrix, 0);
 
-        // Draw the object.
-        GLES20.glDrawArrays(GLES20.GL_TRIANGLES, 0, Object.mTriangles * 3);
+        // Draw the object tile by tile. Screen pixels per radian of the globe surface facing the eye pick the level.
+        float distance = Matrix.length(eye[0], eye[1], eye[2]);
+        float pixelsPerRadian = radius / (distance - radius) / OpenGLView.sizeCoef * viewportHeight / 2;
+        // The density binned on the GPU replaces the data overlay tiles
+        pyramid.draw(mMVMatrix, mMVPMatrix, pixelsPerRadian, mTileRectHandles,
+                density != null ? density.getTexture() : 0);
+        Object.unbind(mPositionHandle, mTextureCoordinateHandle);
     }
 
 
@@ -355,7 +665,7 @@ public class OpenGLRenderer implements GLSurfaceView.Renderer {
      * @param shaderType The shader type.
      * @param shaderSource The shader source code.
      * @return An OpenGL handle to the shader. */
-    private int compileShader(final int shaderType, final String shaderSource) {
+    static int compileShader(final int shaderType, final String shaderSource) {
         int shaderHandle = GLES20.glCreateShader(shaderType);
 
         if (shaderHandle != 0) {
@@ -389,7 +699,7 @@ public class OpenGLRenderer implements GLSurfaceView.Renderer {
      * @param fragmentShaderHandle An OpenGL handle to an already-compiled fragment shader.
      * @param attributes Attributes that need to be bound to the program.
      * @return An OpenGL handle to the program. */
-    private int createAndLinkProgram(final int vertexShaderHandle, final int fragmentShaderHandle, final String[] attributes) {
+    static int createAndLinkProgram(final int vertexShaderHandle, final int fragmentShaderHandle, final String[] attributes) {
         int programHandle = GLES20.glCreateProgram();
 
         if (programHandle != 0) {
@@ -410,7 +720,6 @@ public class OpenGLRenderer implements GLSurfaceView.Renderer {
 
             // Link the two shaders together into a program.
             GLES20.glLinkProgram(programHandle);
-            mTextureDataHandle = loadTexture(mActivityContext, imageId);
 
             // Get the link status.
             final int[] linkStatus = new int[1];
@@ -430,69 +739,85 @@ public class OpenGLRenderer implements GLSurfaceView.Renderer {
     }
 
     /**
-     * Refreshes world model textures by layering data and point layer over main texture
+     * Refreshes regions of one overlay texture. The regions are uploaded to its GL texture with the next frame.
+     * @param uploadRects Pending uploads of the overlay, dataUploadRects or pointUploadRects.
+     * @param rects Changed regions of the overlay.
      */
-    private void refreshBitmaps() {
-        // Put overlay Bitmap on map Bitmap
-        Rect rectangle = new Rect(0, 0, pWidth, pHeight);
-        Result.drawBitmap(bitmap, new Rect(0, 0, pWidth, pHeight), rectangle, null);
-        Result.drawBitmap(dataOverlay, 0, 0, null);
-        Result.drawBitmap(pointOverlay, 0, 0, null);
+    private void refreshBitmaps(List<Rect> uploadRects, List<Rect> rects) {
+        for (Rect rect : rects) {
+            addRect(uploadRects, rect);
+        }
+        textureGeneration++;
     }
 
+    /**
+     * Adds a region to a list of regions. Overlapping regions are merged, so no pixel is composed twice.
+     * @param rects List of regions.
+     * @param rect Region to be added, clipped to the texture.
+     */
+    private void addRect(List<Rect> rects, Rect rect) {
+        Rect merged = new Rect(rect);
+        if (!merged.intersect(0, 0, pWidth, pHeight)) {
+            return;
+        }
+        for (int i = rects.size() - 1; i >= 0; i--) {
+            if (Rect.intersects(rects.get(i), merged)) {
+                merged.union(rects.remove(i));
+                // The grown region may now overlap regions already checked
+                i = rects.size();
+            }
+        }
+        rects.add(merged);
+    }
 
     /**
-     * Loads world model texture and creates layers for data.
+     * Creates the tiles of the world model texture. The data overlay and the point overlay are created once and kept
+     * when the GL context is recreated. The base maps are decoded once in the background, the first time this is
+     * called, and only this one is waited for. Base map, data and point tiles are blended in the fragment shader.
      * @param mActivityContext2
      * @param resourceId Resource Id of the image to be used as world model texture.
-     * @return
      */
-    public int loadTexture(GLSurfaceView mActivityContext2, final int resourceId)
+    public void loadTexture(GLSurfaceView mActivityContext2, final int resourceId)
     {
-        final int[] textureHandle = new int[1];
-
-        GLES20.glGenTextures(1, textureHandle, 0);
+        long start = SystemClock.elapsedRealtime();
+        // Release tiles of a previous load
+        if (pyramid != null) {
+            pyramid.release();
+            pyramid = null;
+        }
 
-        if (textureHandle[0] != 0)
-        {
-            final BitmapFactory.Options options = new BitmapFactory.Options();
-            options.inScaled = false;   // No pre-scaling
+        if (baseMaps == null) {
+            baseMaps = new TextureManager(mActivityContext2.getResources(), mActivityContext2.getContext().getAssets(),
+                    new int[]{R.drawable.map_world_big, R.drawable.map_world_bw}, Object.tileLevels,
+                    KtxTiles.isSupported());
+        } else {
+            // Textures of a previous context are gone
+            baseMaps.invalidate();
+        }
 
-            // Read in the resources and make them mutable (except original map)
-            bitmap = BitmapFactory.decodeResource(mActivityContext2.getResources(), resourceId, options);
+        // Create the overlays and make them mutable
+        if (dataOverlay == null) {
             dataOverlay = Bitmap.createBitmap(pWidth, pHeight, Bitmap.Config.ARGB_8888);
-            dataOverlay = dataOverlay.copy(Bitmap.Config.ARGB_8888, true);
             pointOverlay = Bitmap.createBitmap(pWidth, pHeight, Bitmap.Config.ARGB_8888);
-            pointOverlay = pointOverlay.copy(Bitmap.Config.ARGB_8888, true);
-            bitmapSum = Bitmap.createBitmap(pWidth, pHeight, Bitmap.Config.ARGB_8888);
-            bitmapSum = bitmapSum.copy(Bitmap.Config.ARGB_8888, true);
-
-            GLES20.glGenTextures(1, textureHandle, 0);
-
-            // Bind to the texture in OpenGL
-            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textureHandle[0]);
-
-            // Set filtering
-            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_NEAREST);
-            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_NEAREST);
-
-            // Load the bitmapSum into the bound texture.
-            GLUtils.texImage2D(GLES20.GL_TEXTURE_2D, 0, bitmapSum, 0);
-            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
 
             // Prepare texture layers
             DataOverlay = new Canvas(dataOverlay);
             PointOverlay = new Canvas(pointOverlay);
-            Result = new Canvas(bitmapSum);
             paint = new Paint();
 
-            refreshBitmaps();
+            layerRects.clear();
+            markerRects.clear();
+            composeLayers();
         }
-        if (textureHandle[0] == 0)
-        {
-            throw new RuntimeException("Error loading texture.");
+        pyramid = new TilePyramid(Object, radius, dataOverlay, pointOverlay, layerRects, markerRects);
+        TilePyramid.BaseMap base = baseMaps.await(resourceId);
+        if (base != null) {
+            pyramid.setBase(base);
         }
-        return textureHandle[0];
+        dataUploadRects.clear();
+        pointUploadRects.clear();
+        uploadedGeneration = ++textureGeneration;
+        Log.i(TAG, "Texture ready in " + (SystemClock.elapsedRealtime() - start) + " ms");
     }
 
     /**
@@ -517,224 +842,657 @@ public class OpenGLRenderer implements GLSurfaceView.Renderer {
     }
 
     /**
-     * Draws a square point on given canvas.
-     * @param layer Canvas object created from Bitmap used to create world model texture.
-     * @param x Horizontal pixel coordinate on Canvas from left side.
-     * @param y Vertical pixel coordinate on Canvas from the top.
+     * Draws a square point on given density grid. Pixels outside of the grid are skipped.
+     * @param grid Per-category pixel counts of the world model texture.
+     * @param channel Category channel of the point.
+     * @param x Horizontal pixel coordinate on texture from left side.
+     * @param y Vertical pixel coordinate on texture from the top.
      * @param r Radial size of the square.
      */
-    public void drawSquarePoint(int[][] layer, float x, float y, float r) {
+    public void drawSquarePoint(DensityGrid grid, int channel, float x, float y, float r) {
         // Calculate elongation to compensate spherical projection of texture
         float c = (float) (Math.sin(y / pHeight * Math.PI));
         float dotWidth = r / c;
         // Draw the pixels in a square shape
-        for (int i=Math.round(x - dotWidth); i<Math.round(x + dotWidth); i++) {
+        int minI = Math.max(0, Math.round(x - dotWidth)), maxI = Math.min(pWidth, Math.round(x + dotWidth));
+        for (int i=minI; i<maxI; i++) {
             for (int j=Math.round(y-r); j<Math.round(y+r); j++) {
-                layer[i][j]++;
+                grid.add(i, j, channel);
             }
         }
     }
 
     /**
-     * Draws a circle around the selected point on a Canvas.
+     * Returns the regions covered by an ellipse drawn by drawEllipse, including its copy over the antimeridian.
      * @param x Horizontal pixel coordinate on Canvas from left side.
      * @param y Vertical pixel coordinate on Canvas from the top.
+     * @param r Radius of the ellipse.
+     * @param margin Pixels added on every side, for example for the stroke width.
+     * @return Covered regions.
      */
-    public void drawCircle(float x, float y) {
-        // Prepare overlay and paint style
-        pointOverlay.eraseColor(Color.TRANSPARENT);
-        paint.setStyle(Paint.Style.STROKE);
-        paint.setColor(Color.WHITE);
-
-        // Draw the point
-        drawEllipse(PointOverlay, x, y, 7, paint);
-        refreshBitmaps();
+    private List<Rect> getEllipseRects(float x, float y, float r, int margin) {
+        float dotWidth = r / (float) (Math.sin(y / pHeight * Math.PI));
+        List<Rect> rects = new ArrayList<>();
+        for (float center : new float[]{x, x + pWidth, x - pWidth}) {
+            Rect rect = new Rect((int) Math.floor(center - dotWidth) - margin, (int) Math.floor(y - r) - margin,
+                    (int) Math.ceil(center + dotWidth) + margin, (int) Math.ceil(y + r) + margin);
+            if (rect.intersect(0, 0, pWidth, pHeight)) rects.add(rect);
+        }
+        return rects;
     }
 
     /**
-     * Returns max value of a 2D integer array.
-     * @param array Array of integers to be evaluated.
-     * @return Max value of the array
+     * Draws a circle around the selected point on a Canvas. Only the regions of the previous and the new circle
+     * are composed and uploaded again, on the GL thread.
+     * @param x Horizontal pixel coordinate on Canvas from left side.
+     * @param y Vertical pixel coordinate on Canvas from the top.
      */
-    public int getMaxVal(int[][] array) {
-        int maxVal = 0;
-        for (int i=0; i<pWidth; i++) {
-            for (int j=0; j<pHeight; j++) {
-                if (array[i][j] > maxVal) maxVal = array[i][j];
+    public void drawCircle(final float x, final float y) {
+        mActivityContext.queueEvent(new Runnable() {
+            @Override
+            public void run() {
+                // Clear the previous circle
+                List<Rect> dirty = new ArrayList<>(markerRects);
+                for (Rect rect : markerRects) {
+                    PointOverlay.save();
+                    PointOverlay.clipRect(rect);
+                    PointOverlay.drawColor(Color.TRANSPARENT, PorterDuff.Mode.CLEAR);
+                    PointOverlay.restore();
+                }
+                markerRects.clear();
+
+                // Prepare paint style and draw the point
+                paint.setStyle(Paint.Style.STROKE);
+                paint.setColor(Color.WHITE);
+                drawEllipse(PointOverlay, x, y, 7, paint);
+                for (Rect rect : getEllipseRects(x, y, 7, 2)) {
+                    addRect(markerRects, rect);
+                    addRect(dirty, rect);
+                }
+                refreshBitmaps(pointUploadRects, dirty);
             }
+        });
+    }
+
+    /** Holds per-category point counts of every pixel and the coordinate range of binned points. */
+    public static class CategoryLayers {
+        public DensityGrid grid;
+        public float[] minMax;
+    }
+
+    /**
+     * Calculates the pixel area of the world texture covered by point data, with a margin for point size.
+     * Areas touching the left or right texture edge are widened to the full width, so points wrapped over
+     * the antimeridian stay inside.
+     * @param points Point store with bounds tracked during insertion.
+     * @return Left, top, right and bottom pixel edges.
+     */
+    private int[] getPixelArea(PointStore points) {
+        if (points.size == 0) {
+            return new int[]{0, 0, 1, 1};
         }
-        return maxVal;
+        int left = (int) Math.floor((points.minLon + 180) / 360 * pWidth) - LAYER_MARGIN;
+        int right = (int) Math.ceil((points.maxLon + 180) / 360 * pWidth) + LAYER_MARGIN;
+        int top = (int) Math.floor(-(points.maxLat - 90) / 180 * pHeight) - LAYER_MARGIN;
+        int bottom = (int) Math.ceil(-(points.minLat - 90) / 180 * pHeight) + LAYER_MARGIN;
+        if (left <= 0 || right >= pWidth) {
+            left = 0;
+            right = pWidth;
+        }
+        return new int[]{left, Math.max(0, top), right, Math.min(pHeight, bottom)};
     }
 
     /**
-     * Draws categorized points of binary data from GeoJSON features on specific color channel Bitmaps.
-     * @param features List of feature (point) data from loaded GeoJSON file.
+     * Replaces all data layers and queues composition of the visible ones.
+     * @param newLayers Layers in drawing order.
      */
-    public void drawCategories(JsonArray features) {
-        // Prepare arrays for overlay and calculating view position
-        int[][] overlayArrayBlue = new int[pWidth][pHeight];
-        int[][] overlayArrayGreen = new int[pWidth][pHeight];
-        int[][] overlayArrayRed = new int[pWidth][pHeight];
-        List<Float> xCoords = new ArrayList<>();
-        List<Float> yCoords = new ArrayList<>();
+    public void setLayers(List<DataLayer> newLayers) {
+        layers = Collections.unmodifiableList(new ArrayList<>(newLayers));
+        requestCompose();
+    }
 
-        // Prepare variables for loop
-        int counterRed = 0, counterBlue = 0, counterGreen = 0, category, x, y;
-        JsonObject point;
-        String type;
+    /**
+     * Shows or hides a data layer. Its rendered overlay is reused, nothing is parsed or binned again.
+     * @param layer One of the loaded layers.
+     * @param visible Visibility of the layer.
+     */
+    public void setLayerVisible(DataLayer layer, boolean visible) {
+        layer.visible = visible;
+        requestCompose();
+    }
 
-        // Loop to draw the points with point counters
-        for (int i = 0; i < features.size(); i++) {
-            // Get specific point data from GeoJSON object
-            point = features.get(i).getAsJsonObject();
-            type = point.get("geometry").getAsJsonObject().get("type").getAsString();
-            if (!type.equals("Point")) {
-                Log.e("Drawing", "Geometry type for object " + i + " is not Point");
-                continue;
+    /** Queues composition of visible layer overlays and texture refresh on the GL thread. */
+    public void requestCompose() {
+        mActivityContext.queueEvent(new Runnable() {
+            @Override
+            public void run() {
+                refreshBitmaps(dataUploadRects, composeLayers());
+                layerGeneration++;
+            }
+        });
+    }
+
+    /**
+     * Draws overlays of all visible layers on the dataOverlay Bitmap. Only regions covered by layers before or now
+     * are cleared and drawn.
+     * @return Changed regions of the dataOverlay Bitmap.
+     */
+    private List<Rect> composeLayers() {
+        List<Rect> dirty = new ArrayList<>(layerRects);
+        layerRects.clear();
+        List<DataLayer> layers = this.layers;
+        for (DataLayer layer : layers) {
+            Rect bounds = layer.visible ? layer.getBounds() : null;
+            if (bounds != null) {
+                addRect(layerRects, bounds);
+                addRect(dirty, bounds);
+            }
+        }
+        for (Rect rect : dirty) {
+            DataOverlay.save();
+            DataOverlay.clipRect(rect);
+            DataOverlay.drawColor(Color.TRANSPARENT, PorterDuff.Mode.CLEAR);
+            for (DataLayer layer : layers) {
+                if (layer.visible) layer.drawOverlay(DataOverlay);
             }
+            DataOverlay.restore();
+        }
+        return dirty;
+    }
+
+    /**
+     * Counts categorized points in every pixel of a density grid with one channel per category.
+     * The rows covered by the points are cut into horizontal stripes holding about as many points each, one per
+     * worker, so regional data is split as finely as global data. A parallel pre-pass sorts the point indices by
+     * stripe, every stripe bins only its own points into its own grid, and the stripe grids are added. Stripes
+     * share tiles only along their edges, so memory stays that of a single grid plus the tiles along stripe edges,
+     * and counts equal those of binning all points on one thread. Grid tiles are allocated only where points fall.
+     * Stops early if the calling thread is interrupted.
+     * @param points Point data from loaded GeoJSON file.
+     * @return Point counts of each color channel.
+     */
+    public CategoryLayers binCategories(PointStore points) {
+        long start = SystemClock.elapsedRealtime();
+        ForkJoinPool pool = WorkerPool.get();
+        AtomicBoolean cancelled = new AtomicBoolean(false);
+
+        DensityGrid grid;
+        if (points.size < MIN_BIN_RANGE || pool.getParallelism() == 1) {
+            grid = binStripe(points, null, 0, points.size, cancelled);
+        } else {
+            ForkJoinTask<DensityGrid> task = pool.submit(new BinTask(points, pool.getParallelism(), cancelled));
             try {
-                category = point.get("properties").getAsJsonObject()
-                        .get("category").getAsInt();
-            } catch (Exception e) {
-                e.printStackTrace();
+                grid = task.get();
+            } catch (InterruptedException e) {
+                cancelled.set(true);
+                Thread.currentThread().interrupt();
+                Log.i("Drawing", "Binning interrupted");
+                grid = new DensityGrid(pWidth, pHeight);
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());
+            }
+        }
+
+        CategoryLayers layers = new CategoryLayers();
+        layers.grid = grid;
+        // Get overlay range
+        layers.minMax = getBounds(points);
+
+        Log.i("Drawing", "RGB points drawn: " + grid.points[DensityGrid.RED] + ", " + grid.points[DensityGrid.GREEN]
+                + ", " + grid.points[DensityGrid.BLUE] + " in " + (SystemClock.elapsedRealtime() - start) + " ms");
+        Log.i("Drawing", grid.getAllocatedTiles() + " of " + (grid.tilesX * grid.tilesY) + " tiles allocated, "
+                + grid.getMemory() / 1048576 + " MB");
+        return layers;
+    }
+
+    /**
+     * @param points Point data.
+     * @param i Index of a point.
+     * @return Texture row of the point, points on the bottom edge belong to the last row.
+     */
+    private int getRow(PointStore points, int i) {
+        int y = Math.round(-(points.lat[i] - 90) / 180 * pHeight);
+        return Math.min(Math.max(y, 0), pHeight - 1);
+    }
+
+    /**
+     * Bins points into a new grid.
+     * @param points Point data from loaded GeoJSON file.
+     * @param order Indices of the points to be binned, or null to bin the points from start to end.
+     * @param start Position of the first point in order, or index of the first point.
+     * @param end Position after the last point.
+     * @param cancelled Stops binning when set.
+     * @return Grid with counts of the points.
+     */
+    private DensityGrid binStripe(PointStore points, int[] order, int start, int end, AtomicBoolean cancelled) {
+        DensityGrid grid = new DensityGrid(pWidth, pHeight);
+        int category, channel, x, y, i;
+        for (int k = start; k < end; k++) {
+            if (((k - start) & 0xFFFF) == 0 && (cancelled.get() || Thread.currentThread().isInterrupted())) {
+                cancelled.set(true);
+                break;
+            }
+            i = order == null ? k : order[k];
+            category = points.category[i];
+            if (category == PointStore.NO_CATEGORY) {
                 Log.e("Drawing", "Could not interpret category for object " + i);
                 continue;
             }
-            JsonArray coords = point.get("geometry").getAsJsonObject()
-                    .getAsJsonArray("coordinates");
-            xCoords.add(coords.get(0).getAsFloat());
-            yCoords.add(coords.get(1).getAsFloat());
-            x = Math.round((coords.get(0).getAsFloat() + 180) / 360 * pWidth);
-            y = Math.round(-(coords.get(1).getAsFloat() - 90) / 180 * pHeight);
-
             switch (category) {
-                case 1:
-                    counterBlue++;
-                    drawSquarePoint(overlayArrayBlue, x, y, 1);
-                    //overlayArrayBlue[x][y]++;
+                case 1: channel = DensityGrid.BLUE; break;
+                case 2: channel = DensityGrid.RED; break;
+                case 3: channel = DensityGrid.GREEN; break;
+                default:
+                    Log.e("Drawing", "Unrecognized category for point " + i + ": " + category);
+                    continue;
+            }
+            x = Math.round((points.lon[i] + 180) / 360 * pWidth);
+            y = Math.round(-(points.lat[i] - 90) / 180 * pHeight);
+            grid.points[channel]++;
+            drawSquarePoint(grid, channel, x, y, 1);
+        }
+        return grid;
+    }
+
+    /**
+     * Bins all points in stripes of rows holding about as many points each. Point ranges count the points of every
+     * row, the stripes are cut from the counts, point ranges sort their indices by stripe and stripes are binned.
+     * Every phase runs in parallel.
+     */
+    private class BinTask extends RecursiveTask<DensityGrid> {
+        private final PointStore points;
+        private final int parallelism;
+        private final AtomicBoolean cancelled;
+
+        BinTask(PointStore points, int parallelism, AtomicBoolean cancelled) {
+            this.points = points;
+            this.parallelism = parallelism;
+            this.cancelled = cancelled;
+        }
+
+        @Override
+        protected DensityGrid compute() {
+            final int ranges = parallelism;
+            final int rangeSize = (points.size + ranges - 1) / ranges;
+
+            // Points of every row, per point range
+            final int[][] rowCounts = new int[ranges][pHeight];
+            List<RecursiveAction> tasks = new ArrayList<>();
+            for (int r = 0; r < ranges; r++) {
+                final int range = r;
+                tasks.add(new RecursiveAction() {
+                    @Override
+                    protected void compute() {
+                        int[] counts = rowCounts[range];
+                        int end = Math.min(points.size, (range + 1) * rangeSize);
+                        for (int i = range * rangeSize; i < end; i++) counts[getRow(points, i)]++;
+                    }
+                });
+            }
+            invokeAll(tasks);
+
+            // Stripes of rows with about as many points each
+            int stripes = parallelism;
+            final int[] stripeOfRow = new int[pHeight];
+            long total = 0;
+            int stripe = 0;
+            for (int row = 0; row < pHeight; row++) {
+                stripeOfRow[row] = stripe;
+                for (int r = 0; r < ranges; r++) total += rowCounts[r][row];
+                if (stripe < stripes - 1 && total >= (long) points.size * (stripe + 1) / stripes) stripe++;
+            }
+            if (cancelled.get()) {
+                return new DensityGrid(pWidth, pHeight);
+            }
+
+            // Start of every range in every stripe of the sorted indices
+            final int[][] offsets = new int[ranges][stripes];
+            final int[] stripeStarts = new int[stripes + 1];
+            for (int row = 0; row < pHeight; row++) {
+                for (int r = 0; r < ranges; r++) offsets[r][stripeOfRow[row]] += rowCounts[r][row];
+            }
+            int position = 0;
+            for (int s = 0; s < stripes; s++) {
+                stripeStarts[s] = position;
+                for (int r = 0; r < ranges; r++) {
+                    int count = offsets[r][s];
+                    offsets[r][s] = position;
+                    position += count;
+                }
+            }
+            stripeStarts[stripes] = position;
+
+            final int[] order = new int[points.size];
+            tasks.clear();
+            for (int r = 0; r < ranges; r++) {
+                final int range = r;
+                tasks.add(new RecursiveAction() {
+                    @Override
+                    protected void compute() {
+                        int[] next = offsets[range];
+                        int end = Math.min(points.size, (range + 1) * rangeSize);
+                        for (int i = range * rangeSize; i < end; i++) order[next[stripeOfRow[getRow(points, i)]]++] = i;
+                    }
+                });
+            }
+            invokeAll(tasks);
+
+            final DensityGrid[] grids = new DensityGrid[stripes];
+            tasks.clear();
+            for (int s = 0; s < stripes; s++) {
+                final int index = s;
+                if (stripeStarts[s] == stripeStarts[s + 1]) continue;
+                tasks.add(new RecursiveAction() {
+                    @Override
+                    protected void compute() {
+                        grids[index] = binStripe(points, order, stripeStarts[index], stripeStarts[index + 1],
+                                cancelled);
+                    }
+                });
+            }
+            invokeAll(tasks);
+
+            // Stripes overlap in the tiles along their edges only, other tiles are taken over
+            DensityGrid grid = new DensityGrid(pWidth, pHeight);
+            for (DensityGrid stripeGrid : grids) {
+                if (stripeGrid != null) grid.add(stripeGrid);
+            }
+            return grid;
+        }
+    }
+
+    /**
+     * Merges binned color channels into the overlay Bitmap of a data layer. Texture is not refreshed.
+     * The overlay covers only the allocated tiles of the grid.
+     * @param layers Point counts of each color channel from binCategories function.
+     * @param layer Data layer receiving the overlay.
+     */
+    public void composeCategories(CategoryLayers layers, DataLayer layer) {
+        // An interrupted load keeps the layer as it is, its grid may be partial or empty
+        if (Thread.currentThread().isInterrupted()) {
+            return;
+        }
+        layer.grid = layers.grid;
+        composeGrid(layers.grid, layer);
+    }
+
+    /**
+     * Composes the overlay of a data layer from binned counts, with the current color scale and heatmap settings.
+     * @param grid Point occurrences of every category in every pixel.
+     * @param layer Data layer receiving the overlay.
+     */
+    private void composeGrid(DensityGrid grid, DataLayer layer) {
+        // Merge color channels to get overlay
+        int[] area = grid.getAllocatedArea();
+        if (area == null) {
+            layer.setOverlay(null, 0, 0);
+            return;
+        }
+        if (heatmap) {
+            composeHeatmap(grid, area, layer);
+            return;
+        }
+        Bitmap overlay = Bitmap.createBitmap(area[2] - area[0], area[3] - area[1], Bitmap.Config.ARGB_8888);
+        mergeLayers(overlay, area[0], area[1], grid, colorScale);
+        if (Thread.currentThread().isInterrupted()) {
+            return;
+        }
+        // The finished Bitmap is swapped in, the GL thread never composes a Bitmap being drawn
+        layer.setOverlay(overlay, area[0], area[1]);
+    }
+
+    /**
+     * Blurs the counts of all categories into a heatmap overlay. The overlay spans the full texture width,
+     * so the kernel can wrap over the antimeridian, and the rows of the data widened by the kernel.
+     * @param grid Point occurrences of every category in every pixel.
+     * @param area Pixel area of allocated tiles of the grid.
+     * @param layer Data layer receiving the overlay.
+     */
+    private void composeHeatmap(DensityGrid grid, int[] area, DataLayer layer) {
+        long start = SystemClock.elapsedRealtime();
+        float radius = heatmapRadius;
+        int margin = (int) Math.ceil(3 * radius);
+        int top = Math.max(0, area[1] - margin);
+        Heatmap density = new Heatmap(grid, top, Math.min(grid.height, area[3] + margin));
+        density.blur(radius);
+        if (Thread.currentThread().isInterrupted()) {
+            return;
+        }
+        layer.setOverlay(density.toBitmap(colorScale == ColorScale.LOG), 0, top);
+        Log.i("Drawing", "Heatmap with radius " + radius + " composed in " + (SystemClock.elapsedRealtime() - start) + " ms");
+    }
+
+    /**
+     * Composes overlays of all categorized layers again from their kept counts, with the current color scale
+     * and heatmap settings. Points are not binned again. Texture is not refreshed.
+     */
+    public void recomposeCategories() {
+        for (DataLayer layer : layers) {
+            DensityGrid grid = layer.grid;
+            if (grid != null) composeGrid(grid, layer);
+        }
+    }
+
+    /**
+     * Merges different color channels of binary category data from binCategories function into an overlay Bitmap.
+     * Tile rows are composed in parallel into ARGB row buffers, which are copied to the Bitmap in bulk.
+     * Only allocated tiles of the grid are visited.
+     * @param overlay Bitmap covering the allocated area of the grid.
+     * @param left Horizontal pixel position of the overlay on the texture.
+     * @param top Vertical pixel position of the overlay on the texture.
+     * @param grid Point occurrences of every category in every pixel.
+     * @param scale Mapping of pixel counts to opacity.
+     */
+    public void mergeLayers(Bitmap overlay, int left, int top, DensityGrid grid, ColorScale scale) {
+        long start = SystemClock.elapsedRealtime();
+        MergeTask root = new MergeTask(overlay, left, top, grid, new ColorTable(grid, scale),
+                top / DensityGrid.TILE_SIZE, (top + overlay.getHeight() - 1) / DensityGrid.TILE_SIZE + 1);
+        try {
+            WorkerPool.get().submit(root).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            Log.i("Drawing", "Composition interrupted");
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+        Log.i("Drawing", "Overlay composed in " + (SystemClock.elapsedRealtime() - start) + " ms");
+    }
+
+    /**
+     * Lookup tables of the color ramp. Counts up to the table size are looked up, larger ones are computed.
+     * Channels are scaled so the strongest category of a pixel is fully saturated, alpha grows with the count
+     * as given by the color scale. Scales read the statistics kept by the grid, no pixel is scanned.
+     */
+    private static class ColorTable {
+        private static final int SIZE = 1 << 16;
+        /** Fraction of non-empty pixels below the saturation count of the percentile scale. */
+        private static final double PERCENTILE = 0.99;
+
+        private final ColorScale scale;
+        private final int maxVal;
+        /** Count at which the percentile scale saturates. */
+        private final int clip;
+        /** Fraction of non-empty pixels up to every histogram bin, for the equalized scale. */
+        private final float[] rank;
+        /** Alpha of a pixel by its highest count. */
+        private final int[] alpha;
+        /** Channel scale of a pixel by its highest count. */
+        private final float[] coef;
+
+        ColorTable(DensityGrid grid, ColorScale scale) {
+            this.scale = scale;
+            maxVal = Math.max(grid.getMax(), 1);
+            clip = scale == ColorScale.PERCENTILE ? Math.max(grid.getPercentile(PERCENTILE), 1) : maxVal;
+            rank = scale == ColorScale.EQUALIZED ? getRanks(grid.getHistogram()) : null;
+            int size = Math.min(maxVal, SIZE - 1) + 1;
+            alpha = new int[size];
+            coef = new float[size];
+            for (int max = 1; max < size; max++) {
+                alpha[max] = computeAlpha(max);
+                coef[max] = (float) 255 / max;
+            }
+        }
+
+        private static float[] getRanks(long[] histogram) {
+            long total = 0;
+            for (long pixels : histogram) total += pixels;
+            float[] rank = new float[histogram.length];
+            long cumulative = 0;
+            for (int b = 0; b < histogram.length; b++) {
+                cumulative += histogram[b];
+                rank[b] = total > 0 ? (float) cumulative / total : 0;
+            }
+            return rank;
+        }
+
+        private int computeAlpha(int max) {
+            float level;
+            switch (scale) {
+                case LOG:
+                    level = (float) (Math.log1p(max) / Math.log1p(maxVal));
                     break;
-                case 2:
-                    counterRed++;
-                    drawSquarePoint(overlayArrayRed, x, y, 1);
-                    //overlayArrayRed[x][y]++;
+                case PERCENTILE:
+                    level = Math.min(1, (float) max / clip);
                     break;
-                case 3:
-                    counterGreen++;
-                    drawSquarePoint(overlayArrayGreen, x, y, 1);
-                    //overlayArrayGreen[x][y]++;
+                case EQUALIZED:
+                    level = rank[DensityGrid.getBin(max)];
                     break;
                 default:
-                    Log.e("Drawing", "Unrecognized category for point " + i + ": " + category);
+                    level = (float) max / maxVal;
             }
+            return Math.round(100 + level * 155);
         }
-        // Find max pixel value
-        int maxVal = Math.max(getMaxVal(overlayArrayBlue), Math.max(getMaxVal(overlayArrayRed), getMaxVal(overlayArrayGreen)));
-        // Get overlay range
-        float[] pointsMinMax = goToData(xCoords, yCoords);
-
-        // Merge color arrays to get overlay and reload texture
-        mergeLayers(pointsMinMax, overlayArrayRed, overlayArrayGreen, overlayArrayBlue, maxVal);
-        refreshBitmaps();
-
-        Log.i("Drawing", "RGB points drawn: " + counterRed + ", " + counterGreen + ", " + counterBlue);
-    }
-
-    /**
-     * Merges different color layers of binary category data from drawCategories function to get dataOverlay Bitmap.
-     * @param minMax List of float variables showing bordering coordinates of point data - minX, maxX, minY and maxY.
-     * @param red 2D array of point occurrences in every pixel of red color.
-     * @param green 2D array of point occurrences in every pixel of green color.
-     * @param blue 2D array of point occurrences in every pixel of blue color.
-     * @param maxVal Maximum value of all three color channels. The most points drawn in one pixel.
-     */
-    public void mergeLayers(float[] minMax, int[][] red, int[][] green, int[][] blue, int maxVal) {
-        dataOverlay.eraseColor(Color.TRANSPARENT);
-        int r, g, b, alpha, max;
-        float coef;
-        int minx = (int) Math.round((minMax[0] + 180) / 360 * pWidth);
-        int maxx = (int) Math.round((minMax[1] + 180) / 360 * pWidth);
-        int miny = (int) Math.round(-(minMax[3] - 90) / 180 * pHeight);
-        int maxy = (int) Math.round(-(minMax[2] - 90) / 180 * pHeight);
-
-        for (int i=minx; i<maxx; i++) {
-            for (int j=miny; j<maxy; j++) {
-                r = red[i][j];
-                g = green[i][j];
-                b = blue[i][j];
-                max = Math.max(r, Math.max(g, b));
-                if (max > 0) {
-                    coef = (float) 255 / Math.max(max, 1);
-                    r = Math.round(r * coef);
-                    g = Math.round(g * coef);
-                    b = Math.round(b * coef);
+
+        /**
+         * @param r Count of the red category.
+         * @param g Count of the green category.
+         * @param b Count of the blue category.
+         * @return ARGB color of the pixel, 0 if it is empty.
+         */
+        int color(int r, int g, int b) {
+            int max = Math.max(r, Math.max(g, b));
+            if (max == 0) {
+                return 0;
+            }
+            int a;
+            float c;
+            if (max < alpha.length) {
+                a = alpha[max];
+                c = coef[max];
+            } else {
+                a = computeAlpha(max);
+                c = (float) 255 / max;
+            }
+            // Channels are never negative, so adding a half and truncating rounds like Math.round
+            return a << 24 | (int) (r * c + 0.5f) << 16 | (int) (g * c + 0.5f) << 8 | (int) (b * c + 0.5f);
+        }
+    }
+
+    /** Composes a range of tile rows of a density grid into an overlay Bitmap, splitting it in halves. */
+    private static class MergeTask extends RecursiveAction {
+        private final Bitmap overlay;
+        private final int left;
+        private final int top;
+        private final DensityGrid grid;
+        private final ColorTable colors;
+        private final int startRow;
+        private final int endRow;
+
+        MergeTask(Bitmap overlay, int left, int top, DensityGrid grid, ColorTable colors, int startRow, int endRow) {
+            this.overlay = overlay;
+            this.left = left;
+            this.top = top;
+            this.grid = grid;
+            this.colors = colors;
+            this.startRow = startRow;
+            this.endRow = endRow;
+        }
+
+        @Override
+        protected void compute() {
+            if (endRow - startRow > 1) {
+                int middle = (startRow + endRow) >>> 1;
+                invokeAll(new MergeTask(overlay, left, top, grid, colors, startRow, middle),
+                        new MergeTask(overlay, left, top, grid, colors, middle, endRow));
+                return;
+            }
+            int width = overlay.getWidth();
+            int y0 = Math.max(startRow * DensityGrid.TILE_SIZE, top);
+            int y1 = Math.min((startRow + 1) * DensityGrid.TILE_SIZE, top + overlay.getHeight());
+            if (y1 <= y0) {
+                return;
+            }
+            int[] band = null;
+            for (int tx = left / DensityGrid.TILE_SIZE; tx < grid.tilesX; tx++) {
+                int[] tile = grid.getTile(tx, startRow);
+                if (tile == null) continue;
+                if (band == null) {
+                    band = new int[width * (y1 - y0)];
+                }
+                int x0 = Math.max(tx * DensityGrid.TILE_SIZE, left);
+                int x1 = Math.min((tx + 1) * DensityGrid.TILE_SIZE, left + width);
+                for (int y = y0; y < y1; y++) {
+                    int cell = (((y & (DensityGrid.TILE_SIZE - 1)) * DensityGrid.TILE_SIZE)
+                            + (x0 & (DensityGrid.TILE_SIZE - 1))) * DensityGrid.CHANNELS;
+                    int pixel = (y - y0) * width + x0 - left;
+                    for (int x = x0; x < x1; x++, cell += DensityGrid.CHANNELS) {
+                        band[pixel++] = colors.color(tile[cell + DensityGrid.RED], tile[cell + DensityGrid.GREEN],
+                                tile[cell + DensityGrid.BLUE]);
+                    }
                 }
-                if (max == 0) {
-                    alpha = 0;
-                } else {
-                    alpha = Math.round(100 + ((float) max / maxVal) * 155);
+            }
+            // Rows without tiles stay transparent in the new Bitmap
+            if (band != null) {
+                synchronized (overlay) {
+                    overlay.setPixels(band, 0, width, 0, y0 - top, width, y1 - y0);
                 }
-                dataOverlay.setPixel(i, j, Color.argb(alpha, r, g, b));
             }
         }
     }
 
     /**
-     * Draws single colored multi category data on to the world model texture.
-     * @param features List of feature (point) data from loaded GeoJSON file.
+     * Draws single colored multi category data on the overlay Bitmap of a data layer, in the layer color.
+     * Points are stamped as anti-aliased dots into a pixel buffer, which is copied to the Bitmap once.
+     * Stops early if the calling thread is interrupted.
+     * @param points Point data from loaded GeoJSON file.
+     * @param layer Data layer receiving the overlay.
      */
-    public void drawPoints(JsonArray features) {
-        // Prepare overlay and paint style
-        dataOverlay.eraseColor(Color.TRANSPARENT);
-        paint.setStyle(Paint.Style.FILL);
-        paint.setColor(Color.WHITE);
-
-        // Prepare array for calculating view position
-        List<Float> xCoords = new ArrayList<>();
-        List<Float> yCoords = new ArrayList<>();
+    public void drawPoints(PointStore points, DataLayer layer) {
+        long start = SystemClock.elapsedRealtime();
+        // Prepare pixel buffer covering the points
+        int[] area = getPixelArea(points);
+        PointStamper stamper = new PointStamper(pWidth, pHeight, 1, area);
 
         // Draw the points
         int counter = 0;
-        for (int i = 0; i < features.size(); i++) {
-            JsonObject point = features.get(i).getAsJsonObject();
-            JsonArray coords = point.get("geometry").getAsJsonObject()
-                    .getAsJsonArray("coordinates");
-            xCoords.add(coords.get(0).getAsFloat());
-            yCoords.add(coords.get(1).getAsFloat());
-            float x = (coords.get(0).getAsFloat() + 180) / 360 * pWidth;
-            float y = -(coords.get(1).getAsFloat() - 90) / 180 * pHeight;
-
-            drawEllipse(DataOverlay, x, y, 1, paint);
+        for (int i = 0; i < points.size; i++) {
+            if ((i & 0xFFFF) == 0 && Thread.currentThread().isInterrupted()) {
+                Log.i("Drawing", "Drawing interrupted at point " + i);
+                break;
+            }
+            float x = (points.lon[i] + 180) / 360 * pWidth;
+            float y = -(points.lat[i] - 90) / 180 * pHeight;
+
+            stamper.stamp(x, y);
             counter++;
         }
-        Log.i("Drawing", counter + " points drawn.");
-        refreshBitmaps();
-        goToData(xCoords, yCoords);
+        // A partial drawing does not replace the overlay
+        if (counter < points.size) {
+            return;
+        }
+        layer.setOverlay(stamper.toBitmap(layer.color), area[0], area[1]);
+        Log.i("Drawing", counter + " points drawn in " + (SystemClock.elapsedRealtime() - start) + " ms");
     }
 
     /**
-     * Sets world model rotation to the middle of displayed data and zoom level to encapsulate all points.
-     * @param xList List of X coordinates of all points.
-     * @param yList List of Y coordinates of all points.
-     * @return returns a list of float variables showing bordering coordinates of point data - minX, maxX, minY and maxY - used in function mergeLayers.
+     * Sets world model rotation to the middle of an area and zoom level to encapsulate it.
+     * @param minX Western longitude of the area.
+     * @param maxX Eastern longitude of the area.
+     * @param minY Southern latitude of the area.
+     * @param maxY Northern latitude of the area.
+     * @return Bordering coordinates of the area - minX, maxX, minY and maxY.
      */
-    private float[] goToData(List<Float> xList, List<Float> yList) {
-        if (xList.size() == 0) {
-            Log.e("Drawing", "No points drawn, view position not changed.");
-            return new float[]{0, 1, 0, 1};
-        }
-        float minX = 180;
-        float minY = 90;
-        float maxX = -180;
-        float maxY = -90;
-        // Get min and max point coordinates
-        for (int i = 0; i<xList.size(); i++) {
-            float x = xList.get(i);
-            float y = yList.get(i);
-            if (x < minX) minX = x;
-            if (y < minY) minY = y;
-            if (x > maxX) maxX = x;
-            if (y > maxY) maxY = y;
-        }
+    public float[] goToBounds(float minX, float maxX, float minY, float maxY) {
         // Check if zoom should happen over edge of map
         float midX;
         if (maxX - minX < (180 - maxX) + minX) {
@@ -753,18 +1511,58 @@ public class OpenGLRenderer implements GLSurfaceView.Renderer {
         return new float[]{minX, maxX, minY, maxY};
     }
 
-    /** Swaps the texture of the world model from geographic to land mass shape. */
+    /**
+     * Returns bordering coordinates of point data without changing the view.
+     * @param points Point store with bounds tracked during insertion.
+     * @return Bordering coordinates - minX, maxX, minY and maxY.
+     */
+    private float[] getBounds(PointStore points) {
+        if (points.size == 0) {
+            return new float[]{0, 1, 0, 1};
+        }
+        return new float[]{points.minLon, points.maxLon, points.minLat, points.maxLat};
+    }
+
+    /**
+     * Calculates the lon/lat window of the world model visible at current rotation and zoom.
+     * The window is enlarged by WINDOW_MARGIN, so small rotations stay inside it.
+     * @return West, south, east and north edges. West is greater than east if the window crosses the antimeridian.
+     */
+    public float[] getVisibleWindow() {
+        // Half angle of the view frustum diagonal, near plane is at distance 1 with half height sizeCoef
+        float ratio = viewportHeight > 0 ? (float) viewportWidth / viewportHeight : 1;
+        double halfFov = Math.atan(OpenGLView.sizeCoef * Math.sqrt(ratio * ratio + 1));
+        // Central angle of the sphere between view centre and the point seen at the frustum edge, or the horizon
+        double distance = Math.sqrt(eye[0] * eye[0] + eye[1] * eye[1] + eye[2] * eye[2]);
+        double offAxis = distance * Math.sin(halfFov);
+        double centralAngle = offAxis >= radius ? Math.acos(radius / distance) : Math.asin(offAxis / radius) - halfFov;
+        double half = Math.toDegrees(centralAngle) * WINDOW_MARGIN;
+
+        float lon = ((xAngle + 90 + 540) % 360) - 180;
+        float lat = -yAngle;
+        float south = (float) Math.max(-90, lat - half);
+        float north = (float) Math.min(90, lat + half);
+        // Meridians converge towards the poles, so the longitude range grows with latitude
+        double maxLat = Math.max(Math.abs(south), Math.abs(north));
+        double halfLon = maxLat >= 89 ? 180 : half / Math.cos(Math.toRadians(maxLat));
+        if (halfLon >= 180) {
+            return new float[]{-180, south, 180, north};
+        }
+        float west = (float) (lon - halfLon), east = (float) (lon + halfLon);
+        if (west < -180) west += 360;
+        if (east > 180) east -= 360;
+        return new float[]{west, south, east, north};
+    }
+
+    /**
+     * Swaps the texture of the world model from geographic to land mass shape. Both are resident, the next frame
+     * draws the other one, data layers are kept.
+     */
     public void swapTexture() {
-        mActivityContext.queueEvent(new Runnable() {
-            @Override
-            public void run() {
-                if (imageId == R.drawable.map_world_big) {
-                    imageId = R.drawable.map_world_bw;
-                } else {
-                    imageId = R.drawable.map_world_big;
-                }
-                mTextureDataHandle = loadTexture(mActivityContext, imageId);
-            }
-        });
+        if (imageId == R.drawable.map_world_big) {
+            imageId = R.drawable.map_world_bw;
+        } else {
+            imageId = R.drawable.map_world_big;
+        }
     }
 }
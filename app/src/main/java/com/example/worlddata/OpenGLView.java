@@ -5,7 +5,8 @@ import android.opengl.GLSurfaceView;
 import android.util.AttributeSet;
 import android.view.MotionEvent;
 
-import com.google.gson.JsonArray;
+import java.util.ArrayList;
+import java.util.List;
 
 public class OpenGLView extends GLSurfaceView {
     // Variables for touch interaction
@@ -16,8 +17,22 @@ public class OpenGLView extends GLSurfaceView {
     public static float sizeCoef = 1;
     private boolean ignoreOnce = false; // Ignore movement measurement once after releasing second finger
     private boolean movementDetected = false; // Don't calculate touch coordinates if movement detected before
+    private static final long VIEW_CHANGE_DELAY = 600; // Wait for rotation to slow down before reporting view change
 
     OpenGLRenderer renderer;
+    private ViewChangeListener viewChangeListener;
+
+    /** Receives changes of the visible region made by rotation or zoom. Called on the UI thread. */
+    public interface ViewChangeListener {
+        void onViewChanged();
+    }
+
+    private final Runnable notifyViewChange = new Runnable() {
+        @Override
+        public void run() {
+            if (viewChangeListener != null) viewChangeListener.onViewChanged();
+        }
+    };
 
     public OpenGLView(Context context) {
         super(context);
@@ -35,6 +50,14 @@ public class OpenGLView extends GLSurfaceView {
         setRenderer(renderer = new OpenGLRenderer( this));
     }
 
+    /**
+     * Sets the listener notified shortly after the user stops rotating or zooming.
+     * @param listener Listener object or null.
+     */
+    public void setViewChangeListener(ViewChangeListener listener) {
+        viewChangeListener = listener;
+    }
+
     /**
      * Handles touch events. Distinguishes these motions:
      * - single finger tap for drawing a circle on world model texture;
@@ -50,6 +73,7 @@ public class OpenGLView extends GLSurfaceView {
         float touchDistance;
         switch (action & MotionEvent.ACTION_MASK) {
             case MotionEvent.ACTION_DOWN: { // One finger down
+                removeCallbacks(notifyViewChange);
                 touchX = event.getX();
                 touchY = event.getY();
             }
@@ -126,6 +150,10 @@ public class OpenGLView extends GLSurfaceView {
                     } catch (InterruptedException e) {
                         e.printStackTrace();
                     }
+                } else {
+                    // Rotation or zoom finished, report once the view settles
+                    removeCallbacks(notifyViewChange);
+                    postDelayed(notifyViewChange, VIEW_CHANGE_DELAY);
                 }
                 movementDetected = false;
             }
@@ -277,15 +305,13 @@ public class OpenGLView extends GLSurfaceView {
         renderer.swapTexture();
     }
 
-    /**
-     * Calls the drawPoints function from OpenGLRenderer.
-     * @param features List of feature (point) data from loaded GeoJSON file.
-     */
-    public void drawPoints(JsonArray features) { renderer.drawPoints(features); }
+    /** @return Copy of the list of loaded data layers. */
+    public List<DataLayer> getLayers() { return new ArrayList<>(renderer.layers); }
 
     /**
-     * Calls the drawCategories function from OpenGLRenderer.
-     * @param features List of feature (point) data from loaded GeoJSON file.
+     * Calls the setLayerVisible function from OpenGLRenderer.
+     * @param layer One of the loaded layers.
+     * @param visible Visibility of the layer.
      */
-    public void drawCategories(JsonArray features) { renderer.drawCategories(features); }
+    public void setLayerVisible(DataLayer layer, boolean visible) { renderer.setLayerVisible(layer, visible); }
 }
@@ -0,0 +1,372 @@
+package com.example.worlddata;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.DocumentsContract;
+import android.provider.OpenableColumns;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Columnar binary cache of parsed points. File layout, little endian:
+ * magic, version, point count, flags, bounds (minX, maxX, minY, maxY), title length, title bytes padded to 4 bytes,
+ * then longitude float column, latitude float column and category int column.
+ * Property columns follow: column count, malformed row count, then for every column its name, type,
+ * malformed value count, string dictionary and int or double values.
+ */
+public class PointCache {
+
+    /** Used for debug logs. */
+    private static final String TAG = "PointCache";
+
+    private static final int MAGIC = 0x57445043; // "WDPC"
+    private static final int VERSION = 2;
+    private static final int FLAG_HAS_CATEGORY = 1;
+    /** Size of the fixed part of the header in bytes. */
+    private static final int HEADER_SIZE = 36;
+    /** Cache files are removed, oldest first, when their total size exceeds this limit. */
+    private static final long MAX_CACHE_BYTES = 512L * 1024 * 1024;
+    /** Size of the buffer used for writing columns. */
+    private static final int WRITE_BUFFER_SIZE = 1 << 16;
+
+    private final File directory;
+
+    /**
+     * Creates the cache in given directory.
+     * @param cacheDir Application cache directory.
+     */
+    public PointCache(File cacheDir) {
+        directory = new File(cacheDir, "datasets");
+    }
+
+    /**
+     * Creates cache key of a picked file from its Uri, size and modification time.
+     * @param resolver Content resolver used to query file metadata.
+     * @param uri Content Uri of the picked file.
+     * @return Key as hex string, or null if the provider reports no size or modification time, so the file can not
+     * be identified reliably.
+     */
+    public static String key(ContentResolver resolver, Uri uri) {
+        long size = -1;
+        long modified = -1;
+        Cursor cursor = null;
+        try {
+            cursor = resolver.query(uri, null, null, null, null);
+            if (cursor != null && cursor.moveToFirst()) {
+                int sizeIndex = cursor.getColumnIndex(OpenableColumns.SIZE);
+                int modifiedIndex = cursor.getColumnIndex(DocumentsContract.Document.COLUMN_LAST_MODIFIED);
+                if (sizeIndex >= 0 && !cursor.isNull(sizeIndex)) size = cursor.getLong(sizeIndex);
+                if (modifiedIndex >= 0 && !cursor.isNull(modifiedIndex)) modified = cursor.getLong(modifiedIndex);
+            }
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Could not query file metadata", e);
+        } finally {
+            if (cursor != null) cursor.close();
+        }
+        // Without a modification time a file edited to the same size would return stale points
+        if (size < 0 || modified < 0) {
+            return null;
+        }
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            digest.update((uri.toString() + "|" + size + "|" + modified).getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest.digest()) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Reads cached point data by memory mapping the cache file.
+     * @param key Cache key from key function.
+     * @return Cached points, or null if not cached or the file is not valid.
+     */
+    public PointStore read(String key) {
+        File file = getFile(key);
+        if (!file.exists()) {
+            return null;
+        }
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            FileChannel channel = in.getChannel();
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            map.order(ByteOrder.LITTLE_ENDIAN);
+            if (map.getInt() != MAGIC || map.getInt() != VERSION) {
+                Log.w(TAG, "Unknown cache file format, ignoring " + file.getName());
+                return null;
+            }
+            int count = map.getInt();
+            int flags = map.getInt();
+            float minX = map.getFloat(), maxX = map.getFloat(), minY = map.getFloat(), maxY = map.getFloat();
+            int titleLength = map.getInt();
+            String title = null;
+            if (titleLength >= 0) {
+                byte[] titleBytes = new byte[titleLength];
+                map.get(titleBytes);
+                title = new String(titleBytes, StandardCharsets.UTF_8);
+                map.position(HEADER_SIZE + pad(titleLength));
+            }
+            if (map.remaining() < (long) count * 12) {
+                Log.w(TAG, "Truncated cache file, ignoring " + file.getName());
+                return null;
+            }
+
+            // Columns are copied with bulk gets
+            PointStore points = new PointStore(count);
+            int columnStart = map.position();
+            map.asFloatBuffer().get(points.lon, 0, count);
+            map.position(columnStart + count * 4);
+            map.asFloatBuffer().get(points.lat, 0, count);
+            map.position(columnStart + count * 8);
+            map.asIntBuffer().get(points.category, 0, count);
+            map.position(columnStart + count * 12);
+            points.properties = readProperties(map, count);
+            points.size = count;
+            points.setBounds(minX, maxX, minY, maxY);
+            points.title = title;
+            points.hasCategory = (flags & FLAG_HAS_CATEGORY) != 0;
+            file.setLastModified(System.currentTimeMillis());
+            return points;
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "Could not read cache file " + file.getName(), e);
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes points to the cache. File is written under a temporary name and renamed once complete.
+     * Synchronized, as files of one load are written from several threads.
+     * @param key Cache key from key function.
+     * @param points Points to be cached.
+     */
+    public synchronized void write(String key, PointStore points) {
+        if (!directory.exists() && !directory.mkdirs()) {
+            Log.w(TAG, "Could not create cache directory");
+            return;
+        }
+        File file = getFile(key);
+        File temp = new File(directory, file.getName() + ".tmp");
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(temp);
+            FileChannel channel = out.getChannel();
+            byte[] titleBytes = points.title != null ? points.title.getBytes(StandardCharsets.UTF_8) : null;
+            int titleLength = titleBytes != null ? titleBytes.length : -1;
+
+            // Header with bounds
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE + pad(Math.max(titleLength, 0)))
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC).putInt(VERSION).putInt(points.size)
+                    .putInt(points.hasCategory ? FLAG_HAS_CATEGORY : 0)
+                    .putFloat(points.minLon).putFloat(points.maxLon).putFloat(points.minLat).putFloat(points.maxLat)
+                    .putInt(titleLength);
+            if (titleBytes != null) header.put(titleBytes);
+            header.position(0);
+            writeFully(channel, header);
+
+            // Columns
+            ByteBuffer buffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            int chunk = WRITE_BUFFER_SIZE / 4;
+            for (int column = 0; column < 3; column++) {
+                for (int i = 0; i < points.size; i += chunk) {
+                    int n = Math.min(chunk, points.size - i);
+                    buffer.clear();
+                    if (column == 0) buffer.asFloatBuffer().put(points.lon, i, n);
+                    else if (column == 1) buffer.asFloatBuffer().put(points.lat, i, n);
+                    else buffer.asIntBuffer().put(points.category, i, n);
+                    buffer.limit(n * 4);
+                    writeFully(channel, buffer);
+                }
+            }
+            if (points.properties != null) {
+                writeProperties(channel, points.properties, points.size);
+            }
+            out.close();
+            out = null;
+            if (!temp.renameTo(file)) {
+                Log.w(TAG, "Could not rename cache file " + temp.getName());
+                temp.delete();
+                return;
+            }
+            Log.i(TAG, "Cached " + points.size + " points as " + file.getName());
+            trim();
+        } catch (IOException e) {
+            Log.w(TAG, "Could not write cache file " + file.getName(), e);
+            temp.delete();
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads property columns following the point columns.
+     * @param map Mapped cache file positioned after the category column.
+     * @param count Number of points.
+     * @return Property table or null if the file has no properties.
+     */
+    private static PropertyTable readProperties(ByteBuffer map, int count) {
+        if (!map.hasRemaining()) {
+            return null;
+        }
+        int columnCount = map.getInt();
+        PropertyTable table = new PropertyTable(count + 1);
+        table.malformedRows = map.getInt();
+        for (int c = 0; c < columnCount; c++) {
+            String name = readString(map);
+            PropertyTable.Column column = table.addColumn(name, PropertyTable.Type.values()[map.getInt()]);
+            column.malformed = map.getInt();
+            int dictionarySize = map.getInt();
+            for (int i = 0; i < dictionarySize; i++) {
+                column.encode(readString(map));
+            }
+            int start = map.position();
+            if (column.type == PropertyTable.Type.DOUBLE) {
+                map.asDoubleBuffer().get(column.doubles, 0, count);
+                map.position(start + count * 8);
+            } else {
+                map.asIntBuffer().get(column.ints, 0, count);
+                map.position(start + count * 4);
+            }
+        }
+        table.setSize(count);
+        return table;
+    }
+
+    /**
+     * Writes property columns after the point columns.
+     * @param channel Channel of the cache file.
+     * @param table Property table.
+     * @param count Number of points.
+     * @throws IOException
+     */
+    private static void writeProperties(FileChannel channel, PropertyTable table, int count) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(table.getColumns().size()).putInt(table.malformedRows);
+        header.flip();
+        writeFully(channel, header);
+
+        ByteBuffer buffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        for (PropertyTable.Column column : table.getColumns()) {
+            buffer.clear();
+            putString(channel, buffer, column.name);
+            ensureSpace(channel, buffer, 12);
+            buffer.putInt(column.type.ordinal()).putInt(column.malformed).putInt(column.dictionary.size());
+            for (String value : column.dictionary) {
+                putString(channel, buffer, value);
+            }
+            buffer.flip();
+            writeFully(channel, buffer);
+
+            boolean isDouble = column.type == PropertyTable.Type.DOUBLE;
+            int chunk = WRITE_BUFFER_SIZE / (isDouble ? 8 : 4);
+            for (int i = 0; i < count; i += chunk) {
+                int n = Math.min(chunk, count - i);
+                buffer.clear();
+                if (isDouble) buffer.asDoubleBuffer().put(column.doubles, i, n);
+                else buffer.asIntBuffer().put(column.ints, i, n);
+                buffer.limit(n * (isDouble ? 8 : 4));
+                writeFully(channel, buffer);
+            }
+        }
+    }
+
+    /**
+     * Puts a length prefixed UTF-8 string into the buffer, flushing it to the channel when full.
+     * @throws IOException
+     */
+    private static void putString(FileChannel channel, ByteBuffer buffer, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        ensureSpace(channel, buffer, 4);
+        buffer.putInt(bytes.length);
+        int offset = 0;
+        while (offset < bytes.length) {
+            ensureSpace(channel, buffer, 1);
+            int n = Math.min(buffer.remaining(), bytes.length - offset);
+            buffer.put(bytes, offset, n);
+            offset += n;
+        }
+    }
+
+    /** Writes buffered bytes to the channel if less than the given number of bytes are free. */
+    private static void ensureSpace(FileChannel channel, ByteBuffer buffer, int bytes) throws IOException {
+        if (buffer.remaining() < bytes) {
+            buffer.flip();
+            writeFully(channel, buffer);
+            buffer.clear();
+        }
+    }
+
+    private static String readString(ByteBuffer map) {
+        byte[] bytes = new byte[map.getInt()];
+        map.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /** Removes least recently used cache files until the cache fits MAX_CACHE_BYTES. */
+    private void trim() {
+        File[] files = directory.listFiles();
+        if (files == null) return;
+        long total = 0;
+        for (File f : files) total += f.length();
+        if (total <= MAX_CACHE_BYTES) return;
+
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return Long.compare(a.lastModified(), b.lastModified());
+            }
+        });
+        for (File f : files) {
+            if (total <= MAX_CACHE_BYTES) break;
+            total -= f.length();
+            f.delete();
+        }
+    }
+
+    private File getFile(String key) {
+        return new File(directory, "points_" + key + ".bin");
+    }
+
+    private static int pad(int length) {
+        return (length + 3) & ~3;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package com.example.worlddata;
+
+import android.graphics.Color;
+import android.opengl.GLES20;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+/**
+ * Points of a data layer as a static vertex buffer drawn with GL_POINTS, so they stay sharp at any zoom and need
+ * no rasterising on the CPU. Every vertex holds its position on the sphere and its category.
+ * The vertices are built off the GL thread and freed once uploaded. Upload, draw and release run on the GL thread.
+ */
+public class PointCloud {
+
+    /** How many bytes per float. */
+    private static final int BYTES_PER_FLOAT = 4;
+    /** Floats per vertex, x, y, z and category. */
+    private static final int VERTEX_SIZE = 4;
+    /** Highest category with its own color, others are drawn in the layer color. */
+    public static final int MAX_CATEGORY = 3;
+
+    public final int count;
+    /** Points of the layer, converted again after the GL context was lost. */
+    private final PointStore points;
+    private final float radius;
+    /** Interleaved vertices until they are uploaded, the buffer object holds them afterwards. */
+    private FloatBuffer vertices;
+    private int bufferHandle = 0;
+
+    /**
+     * Converts points to positions on the sphere.
+     * @param points Point data from loaded file.
+     * @param radius Radius of the sphere the points lie on.
+     */
+    public PointCloud(PointStore points, float radius) {
+        this.points = points;
+        this.radius = radius;
+        count = points.size;
+        vertices = createVertices();
+    }
+
+    /** @return Interleaved vertices of all points, positioned at the start. */
+    private FloatBuffer createVertices() {
+        FloatBuffer buffer = ByteBuffer.allocateDirect(count * VERTEX_SIZE * BYTES_PER_FLOAT)
+                .order(ByteOrder.nativeOrder()).asFloatBuffer();
+        float[] vertex = new float[VERTEX_SIZE];
+        for (int i = 0; i < count; i++) {
+            Sphere.getPosition(points.lon[i], points.lat[i], radius, vertex, 0);
+            int category = points.category[i];
+            // Uncategorized points and unknown categories use the layer color at index 0
+            vertex[3] = category >= 1 && category <= MAX_CATEGORY ? category : 0;
+            buffer.put(vertex);
+        }
+        buffer.position(0);
+        return buffer;
+    }
+
+    /**
+     * Fills the colors of the point categories as RGBA floats. Categories 1, 2 and 3 are blue, red and green
+     * like in the binned overlay.
+     * @param layerColor Color of points without a known category, at index 0.
+     * @param colors Receives 4 floats for every category from 0 to MAX_CATEGORY.
+     */
+    public static void getColors(int layerColor, float[] colors) {
+        int[] categoryColors = {layerColor, Color.BLUE, Color.RED, Color.GREEN};
+        for (int i = 0; i <= MAX_CATEGORY; i++) {
+            colors[4 * i] = Color.red(categoryColors[i]) / 255f;
+            colors[4 * i + 1] = Color.green(categoryColors[i]) / 255f;
+            colors[4 * i + 2] = Color.blue(categoryColors[i]) / 255f;
+            colors[4 * i + 3] = 1f;
+        }
+    }
+
+    /**
+     * Uploads the vertices to a new buffer object and leaves it bound. The vertices are freed after the upload
+     * and built again from the points if the buffer object has to be uploaded again.
+     */
+    private void upload() {
+        if (vertices == null) {
+            vertices = createVertices();
+        }
+        final int[] handle = new int[1];
+        GLES20.glGenBuffers(1, handle, 0);
+        bufferHandle = handle[0];
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, bufferHandle);
+        GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, count * VERTEX_SIZE * BYTES_PER_FLOAT, vertices,
+                GLES20.GL_STATIC_DRAW);
+        vertices = null;
+    }
+
+    /**
+     * Draws the points with the bound point program.
+     * @param positionHandle Location of the position attribute.
+     * @param categoryHandle Location of the category attribute.
+     */
+    public void draw(int positionHandle, int categoryHandle) {
+        if (count == 0) {
+            return;
+        }
+        if (bufferHandle == 0) {
+            upload();
+        } else {
+            GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, bufferHandle);
+        }
+        int stride = VERTEX_SIZE * BYTES_PER_FLOAT;
+        GLES20.glVertexAttribPointer(positionHandle, 3, GLES20.GL_FLOAT, false, stride, 0);
+        GLES20.glEnableVertexAttribArray(positionHandle);
+        GLES20.glVertexAttribPointer(categoryHandle, 1, GLES20.GL_FLOAT, false, stride, 3 * BYTES_PER_FLOAT);
+        GLES20.glEnableVertexAttribArray(categoryHandle);
+        GLES20.glDrawArrays(GLES20.GL_POINTS, 0, count);
+        GLES20.glDisableVertexAttribArray(positionHandle);
+        GLES20.glDisableVertexAttribArray(categoryHandle);
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+    }
+
+    /**
+     * Forgets the buffer object after the GL context was lost. Its vertices are built again from the points and
+     * uploaded with the next draw.
+     */
+    public void invalidate() {
+        bufferHandle = 0;
+    }
+
+    /** Deletes the buffer object. */
+    public void release() {
+        if (bufferHandle != 0) {
+            GLES20.glDeleteBuffers(1, new int[]{bufferHandle}, 0);
+            bufferHandle = 0;
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package com.example.worlddata;
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Draws points of one color as anti-aliased dots into a pixel buffer covering part of the world texture.
+ * Dots are widened towards the poles like drawEllipse does. The width of every texture row is looked up in a table
+ * and dots of the same width share one precomputed sprite, so drawing a point only blends a few buffer pixels.
+ * Dots crossing the antimeridian are drawn again on the other side of the texture.
+ */
+public class PointStamper {
+
+    /** Sprite width steps per pixel. Rows whose dot widths round to the same step share a sprite. */
+    private static final int WIDTH_STEPS = 4;
+    /** Samples per pixel side when computing sprite coverage. */
+    private static final int SAMPLES = 4;
+
+    private final int textureWidth;
+    private final int textureHeight;
+    /** Pixel area of the texture covered by the buffer. */
+    private final int left;
+    private final int top;
+    private final int width;
+    private final int height;
+    /** Opacity of every buffer pixel, 0 to 255. */
+    private final int[] buffer;
+    /** Sprite of every texture row. */
+    private final Sprite[] rowSprites;
+
+    /** Pixel offsets from the dot center pixel and their coverage, 1 to 255. Only covered pixels are listed. */
+    private static class Sprite {
+        int[] dx;
+        int[] dy;
+        int[] coverage;
+        /** Buffer index offsets of the covered pixels, for dots lying fully inside the buffer. */
+        int[] offsets;
+        /** Pixels covered left or right and up or down of the center pixel. */
+        int rx;
+        int ry;
+        /** Half width of the dot in pixels, to find dots crossing the antimeridian. */
+        float halfWidth;
+    }
+
+    /**
+     * Creates an empty buffer.
+     * @param textureWidth Width of the world texture in pixels.
+     * @param textureHeight Height of the world texture in pixels.
+     * @param radius Dot radius in pixels at the equator.
+     * @param area Left, top, right and bottom pixel edges of the buffer on the texture.
+     */
+    public PointStamper(int textureWidth, int textureHeight, float radius, int[] area) {
+        this.textureWidth = textureWidth;
+        this.textureHeight = textureHeight;
+        left = area[0];
+        top = area[1];
+        width = area[2] - area[0];
+        height = area[3] - area[1];
+        buffer = new int[width * height];
+
+        // Calculate elongation of every row to compensate spherical projection of texture
+        rowSprites = new Sprite[textureHeight];
+        Map<Integer, Sprite> sprites = new HashMap<>();
+        for (int y = 0; y < textureHeight; y++) {
+            float c = (float) Math.sin((y + 0.5f) / textureHeight * Math.PI);
+            float dotWidth = Math.min(radius / c, textureWidth / 2f);
+            int step = Math.max(1, Math.round(dotWidth * WIDTH_STEPS));
+            Sprite sprite = sprites.get(step);
+            if (sprite == null) {
+                sprite = createSprite((float) step / WIDTH_STEPS, radius, width);
+                sprites.put(step, sprite);
+            }
+            rowSprites[y] = sprite;
+        }
+    }
+
+    /**
+     * Computes the pixel coverage of an ellipse centered in the middle of a pixel.
+     * @param halfWidth Horizontal semi-axis in pixels.
+     * @param halfHeight Vertical semi-axis in pixels.
+     * @param stride Width of the buffer.
+     * @return Sprite of the ellipse.
+     */
+    private static Sprite createSprite(float halfWidth, float halfHeight, int stride) {
+        int rx = (int) Math.ceil(halfWidth), ry = (int) Math.ceil(halfHeight);
+        int size = (2 * rx + 1) * (2 * ry + 1);
+        int[] dx = new int[size], dy = new int[size], coverage = new int[size];
+        int count = 0;
+        for (int j = -ry; j <= ry; j++) {
+            for (int i = -rx; i <= rx; i++) {
+                int inside = 0;
+                for (int sy = 0; sy < SAMPLES; sy++) {
+                    float v = (j + (sy + 0.5f) / SAMPLES - 0.5f) / halfHeight;
+                    for (int sx = 0; sx < SAMPLES; sx++) {
+                        float u = (i + (sx + 0.5f) / SAMPLES - 0.5f) / halfWidth;
+                        if (u * u + v * v <= 1) inside++;
+                    }
+                }
+                if (inside > 0) {
+                    dx[count] = i;
+                    dy[count] = j;
+                    coverage[count] = (inside * 255 + SAMPLES * SAMPLES / 2) / (SAMPLES * SAMPLES);
+                    count++;
+                }
+            }
+        }
+        Sprite sprite = new Sprite();
+        sprite.dx = Arrays.copyOf(dx, count);
+        sprite.dy = Arrays.copyOf(dy, count);
+        sprite.coverage = Arrays.copyOf(coverage, count);
+        sprite.offsets = new int[count];
+        for (int k = 0; k < count; k++) sprite.offsets[k] = dy[k] * stride + dx[k];
+        sprite.rx = rx;
+        sprite.ry = ry;
+        sprite.halfWidth = halfWidth;
+        return sprite;
+    }
+
+    /**
+     * Draws a dot, blending its coverage over the buffer. Parts outside the buffer are skipped.
+     * @param x Horizontal pixel coordinate on texture from left side.
+     * @param y Vertical pixel coordinate on texture from the top.
+     */
+    public void stamp(float x, float y) {
+        // Latitude -90 lies on the bottom edge of the texture, it belongs to the last row
+        int row = Math.min((int) y, textureHeight - 1);
+        if (row < 0 || y > textureHeight) {
+            return;
+        }
+        Sprite sprite = rowSprites[row];
+        int column = (int) Math.floor(x);
+        stamp(sprite, column, row);
+        // Draw the dot again on the other side of the texture if it crosses the antimeridian
+        if (x < sprite.halfWidth) {
+            stamp(sprite, column + textureWidth, row);
+        } else if (textureWidth - x < sprite.halfWidth) {
+            stamp(sprite, column - textureWidth, row);
+        }
+    }
+
+    private void stamp(Sprite sprite, int column, int row) {
+        int cx = column - left, cy = row - top;
+        int[] coverage = sprite.coverage;
+        if (cx >= sprite.rx && cy >= sprite.ry && cx < width - sprite.rx && cy < height - sprite.ry) {
+            // Dot lies fully inside the buffer
+            int[] offsets = sprite.offsets;
+            int center = cy * width + cx;
+            for (int k = 0; k < coverage.length; k++) {
+                int index = center + offsets[k];
+                int alpha = buffer[index];
+                int product = (255 - alpha) * coverage[k] + 128;
+                buffer[index] = alpha + ((product + (product >> 8)) >> 8);
+            }
+            return;
+        }
+        if (cx < -sprite.rx || cy < -sprite.ry || cx >= width + sprite.rx || cy >= height + sprite.ry) {
+            return;
+        }
+        int[] dx = sprite.dx, dy = sprite.dy;
+        for (int k = 0; k < coverage.length; k++) {
+            int px = cx + dx[k], py = cy + dy[k];
+            if (px < 0 || py < 0 || px >= width || py >= height) continue;
+            int index = py * width + px;
+            int alpha = buffer[index];
+            // Source over: alpha + coverage * (1 - alpha), divided by 255 with rounding
+            int product = (255 - alpha) * coverage[k] + 128;
+            buffer[index] = alpha + ((product + (product >> 8)) >> 8);
+        }
+    }
+
+    /**
+     * Colors the buffer. The buffer must not be drawn on afterwards.
+     * @param color Color of the dots, its alpha is ignored.
+     * @return Overlay Bitmap covering the buffer area.
+     */
+    public Bitmap toBitmap(int color) {
+        int rgb = color & 0xFFFFFF;
+        for (int i = 0; i < buffer.length; i++) {
+            int alpha = buffer[i];
+            buffer[i] = alpha == 0 ? Color.TRANSPARENT : alpha << 24 | rgb;
+        }
+        Bitmap overlay = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        overlay.setPixels(buffer, 0, width, 0, 0, width, height);
+        return overlay;
+    }
+}
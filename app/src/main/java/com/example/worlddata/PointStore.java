@@ -0,0 +1,141 @@
+package com.example.worlddata;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class PointStore {
+
+    /** Category value stored for points whose category could not be interpreted. */
+    public static final int NO_CATEGORY = -1;
+
+    /** Initial capacity of the coordinate arrays. */
+    private static final int INITIAL_CAPACITY = 1024;
+
+    /** Point coordinates in degrees and their categories. Only the first size elements are valid. */
+    public float[] lon;
+    public float[] lat;
+    public int[] category;
+    public int size = 0;
+
+    /** Bounding box of stored points in degrees, updated on every insertion. Only valid if size is not zero. */
+    public float minLon = 180;
+    public float maxLon = -180;
+    public float minLat = 90;
+    public float maxLat = -90;
+
+    /** Typed feature properties with one row per point, null if properties were not loaded. */
+    public PropertyTable properties;
+
+    /** Title of the loaded dataset, null if the file had none. */
+    public String title;
+    /** True if properties of the first feature contain a category. */
+    public boolean hasCategory = false;
+
+    /** Creates an empty point store with default capacity. */
+    public PointStore() {
+        this(INITIAL_CAPACITY);
+    }
+
+    /**
+     * Creates an empty point store.
+     * @param capacity Number of points that can be added before the arrays grow.
+     */
+    public PointStore(int capacity) {
+        capacity = Math.max(capacity, 1);
+        lon = new float[capacity];
+        lat = new float[capacity];
+        category = new int[capacity];
+    }
+
+    /**
+     * Appends a point to the end of the arrays, growing them if necessary.
+     * @param x Longitude of the point in degrees.
+     * @param y Latitude of the point in degrees.
+     * @param c Category of the point or NO_CATEGORY.
+     */
+    public void add(float x, float y, int c) {
+        if (size == lon.length) {
+            ensureCapacity(lon.length * 2);
+        }
+        lon[size] = x;
+        lat[size] = y;
+        category[size] = c;
+        size++;
+        if (x < minLon) minLon = x;
+        if (x > maxLon) maxLon = x;
+        if (y < minLat) minLat = y;
+        if (y > maxLat) maxLat = y;
+    }
+
+    /**
+     * Grows the arrays to hold at least the given number of points.
+     * @param capacity Number of points.
+     */
+    public void ensureCapacity(int capacity) {
+        if (capacity > lon.length) {
+            lon = Arrays.copyOf(lon, capacity);
+            lat = Arrays.copyOf(lat, capacity);
+            category = Arrays.copyOf(category, capacity);
+        }
+    }
+
+    /** Removes all points and resets bounds and metadata. Arrays are kept for reuse. */
+    public void clear() {
+        size = 0;
+        minLon = 180;
+        maxLon = -180;
+        minLat = 90;
+        maxLat = -90;
+        title = null;
+        hasCategory = false;
+        properties = null;
+    }
+
+    /**
+     * Sets the bounding box, used when points are copied into the arrays directly.
+     * @param minX Minimal longitude.
+     * @param maxX Maximal longitude.
+     * @param minY Minimal latitude.
+     * @param maxY Maximal latitude.
+     */
+    public void setBounds(float minX, float maxX, float minY, float maxY) {
+        minLon = minX;
+        maxLon = maxX;
+        minLat = minY;
+        maxLat = maxY;
+    }
+
+    /**
+     * Merges point stores into one, keeping their order. Title and category detection come from the first part.
+     * @param parts Point stores, for example parsed chunks of one file.
+     * @return Point store holding all points and the combined bounds of the parts.
+     */
+    public static PointStore merge(List<PointStore> parts) {
+        int total = 0;
+        for (PointStore part : parts) total += part.size;
+        PointStore merged = new PointStore(total);
+        for (PointStore part : parts) {
+            System.arraycopy(part.lon, 0, merged.lon, merged.size, part.size);
+            System.arraycopy(part.lat, 0, merged.lat, merged.size, part.size);
+            System.arraycopy(part.category, 0, merged.category, merged.size, part.size);
+            merged.size += part.size;
+            if (part.size > 0) {
+                merged.setBounds(Math.min(merged.minLon, part.minLon), Math.max(merged.maxLon, part.maxLon),
+                        Math.min(merged.minLat, part.minLat), Math.max(merged.maxLat, part.maxLat));
+            }
+        }
+        if (!parts.isEmpty()) {
+            merged.title = parts.get(0).title;
+            merged.hasCategory = parts.get(0).hasCategory;
+        }
+        List<PropertyTable> tables = new ArrayList<>();
+        for (PointStore part : parts) {
+            if (part.properties != null) tables.add(part.properties);
+        }
+        if (tables.size() == parts.size() && !tables.isEmpty()) {
+            merged.properties = PropertyTable.merge(tables);
+        }
+        return merged;
+    }
+}
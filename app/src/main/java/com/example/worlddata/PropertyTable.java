@@ -0,0 +1,282 @@
+package com.example.worlddata;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Feature properties stored as typed primitive columns, one row per stored point.
+ * String values are dictionary encoded to int codes.
+ */
+public class PropertyTable {
+
+    /** Value stored in int backed columns (int, bool and string) for missing or malformed values. */
+    public static final int MISSING_INT = Integer.MIN_VALUE;
+
+    /** Initial capacity of the columns. */
+    private static final int INITIAL_CAPACITY = 1024;
+
+    public enum Type { INT, DOUBLE, BOOL, STRING }
+
+    /** Single typed property column. */
+    public static class Column {
+        public final String name;
+        public final Type type;
+        /** Values of int, bool (0 or 1) and string (dictionary code) columns. */
+        public int[] ints;
+        /** Values of double columns, NaN if missing. */
+        public double[] doubles;
+        /** Distinct string values, indexed by code. */
+        public final List<String> dictionary = new ArrayList<>();
+        /** Number of values that did not match the column type. */
+        public int malformed = 0;
+
+        private final Map<String, Integer> codes = new HashMap<>();
+        /** Row of the last written value, used to fill gaps with missing values. */
+        private int lastRow = -1;
+
+        Column(String name, Type type, int capacity) {
+            this.name = name;
+            this.type = type;
+            if (type == Type.DOUBLE) {
+                doubles = new double[capacity];
+            } else {
+                ints = new int[capacity];
+            }
+        }
+
+        /**
+         * Returns code of a string value, adding it to the dictionary if needed.
+         * @param value String value.
+         * @return Dictionary code.
+         */
+        public int encode(String value) {
+            Integer code = codes.get(value);
+            if (code == null) {
+                code = dictionary.size();
+                dictionary.add(value);
+                codes.put(value, code);
+            }
+            return code;
+        }
+
+        /**
+         * Returns value of a row as text, for inspection.
+         * @param row Row index.
+         * @return Value as string or null if missing.
+         */
+        public String getText(int row) {
+            switch (type) {
+                case DOUBLE:
+                    return Double.isNaN(doubles[row]) ? null : String.valueOf(doubles[row]);
+                case INT:
+                    return ints[row] == MISSING_INT ? null : String.valueOf(ints[row]);
+                case BOOL:
+                    return ints[row] == MISSING_INT ? null : String.valueOf(ints[row] == 1);
+                default:
+                    return ints[row] == MISSING_INT ? null : dictionary.get(ints[row]);
+            }
+        }
+
+        private void grow(int capacity) {
+            if (doubles != null && capacity > doubles.length) doubles = Arrays.copyOf(doubles, capacity);
+            if (ints != null && capacity > ints.length) ints = Arrays.copyOf(ints, capacity);
+        }
+
+        private void setMissing(int row) {
+            if (type == Type.DOUBLE) {
+                doubles[row] = Double.NaN;
+            } else {
+                ints[row] = MISSING_INT;
+            }
+        }
+    }
+
+    private final LinkedHashMap<String, Column> columns = new LinkedHashMap<>();
+    private int capacity = INITIAL_CAPACITY;
+    /** Number of committed rows. */
+    public int size = 0;
+    /** Number of rows with at least one malformed value. */
+    public int malformedRows = 0;
+    /** Number of values that were not stored, such as object and array values or keys unknown to the file. */
+    public int ignoredValues = 0;
+
+    private boolean rowMalformed = false;
+
+    /** Creates an empty table with default capacity. */
+    public PropertyTable() {
+        this(INITIAL_CAPACITY);
+    }
+
+    /**
+     * Creates an empty table.
+     * @param capacity Number of rows that can be committed before the columns grow.
+     */
+    public PropertyTable(int capacity) {
+        this.capacity = Math.max(capacity, 1);
+    }
+
+    /**
+     * Adds a column to the schema. Rows that already exist get missing values.
+     * @param name Property key.
+     * @param type Type of the column.
+     * @return Created column.
+     */
+    public Column addColumn(String name, Type type) {
+        Column column = new Column(name, type, capacity);
+        for (int row = 0; row < size; row++) column.setMissing(row);
+        column.lastRow = size - 1;
+        columns.put(name, column);
+        return column;
+    }
+
+    /**
+     * @param name Property key.
+     * @return Column of the property or null if it is not part of the schema.
+     */
+    public Column getColumn(String name) {
+        return columns.get(name);
+    }
+
+    /** @return All columns in order of their first appearance. */
+    public List<Column> getColumns() {
+        return new ArrayList<>(columns.values());
+    }
+
+    /**
+     * Sets number of rows after column arrays were filled directly, for example when read from cache.
+     * @param rows Number of valid rows in every column.
+     */
+    public void setSize(int rows) {
+        size = rows;
+        if (size >= capacity) {
+            capacity = size + 1;
+            for (Column column : columns.values()) column.grow(capacity);
+        }
+        for (Column column : columns.values()) column.lastRow = size - 1;
+    }
+
+    /** Sets an int value of the pending row. */
+    public void setInt(Column column, int value) {
+        column.ints[size] = value;
+        column.lastRow = size;
+    }
+
+    /** Sets a double value of the pending row. */
+    public void setDouble(Column column, double value) {
+        column.doubles[size] = value;
+        column.lastRow = size;
+    }
+
+    /** Sets a bool value of the pending row. */
+    public void setBool(Column column, boolean value) {
+        column.ints[size] = value ? 1 : 0;
+        column.lastRow = size;
+    }
+
+    /** Sets a string value of the pending row, encoded through the column dictionary. */
+    public void setString(Column column, String value) {
+        column.ints[size] = column.encode(value);
+        column.lastRow = size;
+    }
+
+    /** Marks a value of the pending row as malformed. The value is stored as missing. */
+    public void setMalformed(Column column) {
+        column.setMissing(size);
+        column.lastRow = size;
+        column.malformed++;
+        rowMalformed = true;
+    }
+
+    /** Commits the pending row. Columns without a value in this row get missing values. */
+    public void commitRow() {
+        for (Column column : columns.values()) {
+            if (column.lastRow != size) {
+                column.setMissing(size);
+                column.lastRow = size;
+            }
+        }
+        if (rowMalformed) malformedRows++;
+        rowMalformed = false;
+        size++;
+        if (size == capacity) {
+            capacity *= 2;
+            for (Column column : columns.values()) column.grow(capacity);
+        }
+    }
+
+    /** Discards values of the pending row, for features that are not stored as points. */
+    public void discardRow() {
+        for (Column column : columns.values()) {
+            if (column.lastRow == size) {
+                column.lastRow = size - 1;
+            }
+        }
+        rowMalformed = false;
+    }
+
+    /**
+     * Merges tables of consecutive point ranges, for example parsed chunks of one file.
+     * Columns with the same key and different types are promoted: int and double to double, others to string.
+     * @param parts Tables in row order.
+     * @return Table holding all rows of the parts.
+     */
+    public static PropertyTable merge(List<PropertyTable> parts) {
+        // Resolve column types over all parts
+        LinkedHashMap<String, Type> types = new LinkedHashMap<>();
+        int total = 0;
+        for (PropertyTable part : parts) {
+            total += part.size;
+            for (Column column : part.columns.values()) {
+                Type type = types.get(column.name);
+                types.put(column.name, type == null ? column.type : promote(type, column.type));
+            }
+        }
+        PropertyTable merged = new PropertyTable(total + 1);
+        for (Map.Entry<String, Type> entry : types.entrySet()) {
+            merged.addColumn(entry.getKey(), entry.getValue());
+        }
+
+        // Copy values row range by row range
+        for (PropertyTable part : parts) {
+            for (Column target : merged.columns.values()) {
+                Column source = part.columns.get(target.name);
+                for (int row = 0; row < part.size; row++) {
+                    int index = merged.size + row;
+                    if (source == null) {
+                        target.setMissing(index);
+                    } else if (target.type == source.type && target.type != Type.STRING) {
+                        if (target.type == Type.DOUBLE) target.doubles[index] = source.doubles[row];
+                        else target.ints[index] = source.ints[row];
+                    } else if (target.type == Type.DOUBLE) {
+                        target.doubles[index] = source.ints[row] == MISSING_INT ? Double.NaN : source.ints[row];
+                    } else {
+                        String text = source.getText(row);
+                        target.ints[index] = text == null ? MISSING_INT : target.encode(text);
+                    }
+                }
+                target.lastRow = merged.size + part.size - 1;
+                if (source != null) target.malformed += source.malformed;
+            }
+            merged.size += part.size;
+            merged.malformedRows += part.malformedRows;
+            merged.ignoredValues += part.ignoredValues;
+        }
+        return merged;
+    }
+
+    /**
+     * Returns a type able to hold values of both types.
+     * @param a First type.
+     * @param b Second type.
+     * @return Promoted type.
+     */
+    static Type promote(Type a, Type b) {
+        if (a == b) return a;
+        if ((a == Type.INT && b == Type.DOUBLE) || (a == Type.DOUBLE && b == Type.INT)) return Type.DOUBLE;
+        return Type.STRING;
+    }
+}
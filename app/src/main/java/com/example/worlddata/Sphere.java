@@ -1,42 +1,69 @@
 package com.example.worlddata;
 
+import android.opengl.GLES20;
+
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
-import java.util.Random;
+import java.nio.ShortBuffer;
 
+/**
+ * Globe mesh as a grid of shared vertices with short indices, drawn from a vertex and an index buffer object.
+ * Vertices of the first meridian are repeated at the end with their own texture coordinate, and pole vertices are
+ * repeated for every meridian. The buffers are built on creation; upload, bind and draw must run on the GL thread.
+ */
 public class Sphere {
 
-    /** How many bytes per float. */
+    /** How many bytes per float and per index. */
     private final int mBytesPerFloat = 4;
-    private final float[] white = {1.0f, 1.0f, 1.0f, 1.0f};
+    private final int mBytesPerShort = 2;
+    /** Floats per vertex, x, y, z, u and v. */
+    private final int mVertexSize = 5;
 
-    public final FloatBuffer objectVertex;
-    public final FloatBuffer objectColor;
-    public final FloatBuffer objectTexture;
+    /** Interleaved vertices and indices of the triangles, kept to upload again after the GL context was lost. */
+    private final FloatBuffer objectVertex;
+    private final ShortBuffer objectIndex;
+    /** Vertex and index buffer objects, 0 if not uploaded. */
+    private final int[] bufferHandles = new int[2];
 
     private final double mRaduis;
     private final int mStep;
+    /** Vertices per grid row, one per meridian and the repeated first one. */
+    private final int mColumns;
     public int mTriangles;
+    /** Number of texture tile levels. Level 0 has 2 x 1 tiles, every further level halves the tiles. */
+    public final int tileLevels;
+    /** First triangle of every tile of the finest level, in drawing order, and the triangle count at the end. */
+    private final int[] tileStart;
 
     /**
-     * Creates the Sphere.
+     * Creates the Sphere. Triangles are ordered by texture tile, finest tiles in Z-order inside the two
+     * level 0 tiles, so the triangles of a tile of any level are drawn with a single call.
      * @param radius Radius defines the distance of surface from origin.
      * @param step Value of step defines the size of each facet as well as the number of facets.
+     * @param tileLevels Number of texture tile levels. Finest tiles must cover whole facets.
      * */
-    public Sphere( float radius, int step) {
+    public Sphere( float radius, int step, int tileLevels) {
         this.mRaduis = radius;
         this.mStep = step;
+        this.tileLevels = tileLevels;
+        int tiles = 1 << (tileLevels - 1);
+        if (step % tiles != 0) {
+            throw new IllegalArgumentException("Step " + step + " does not split into " + tiles + " tile rows.");
+        }
+        tileStart = new int[2 * tiles * tiles + 1];
 
+        mColumns = 2 * mStep + 1;
+        int mPoints = (mStep + 1) * mColumns;
+        if (mPoints > 0xFFFF) {
+            throw new IllegalArgumentException("Step " + step + " needs more vertices than short indices address.");
+        }
         mTriangles = 4 * mStep * (mStep - 1);
-        int mPoints = 3 * mTriangles;
 
-        objectVertex = ByteBuffer.allocateDirect(mPoints * 3 * mBytesPerFloat)
-                .order(ByteOrder.nativeOrder()).asFloatBuffer();
-        objectColor = ByteBuffer.allocateDirect(mPoints * 4 * mBytesPerFloat)
-                .order(ByteOrder.nativeOrder()).asFloatBuffer();
-        objectTexture = ByteBuffer.allocateDirect(mPoints * 2 * mBytesPerFloat)
+        objectVertex = ByteBuffer.allocateDirect(mPoints * mVertexSize * mBytesPerFloat)
                 .order(ByteOrder.nativeOrder()).asFloatBuffer();
+        objectIndex = ByteBuffer.allocateDirect(mTriangles * 3 * mBytesPerShort)
+                .order(ByteOrder.nativeOrder()).asShortBuffer();
         build();
     }
 
@@ -49,57 +76,201 @@ public class Sphere {
          * y = p * sin(phi) * sin(theta)
          */
         double dTheta = (double) Math.PI / mStep;
-
-        // Generate triangle coordinates for the sphere
-        // for each horizontal line
-        for (int i=0; i < mStep; i++) {
-            double phiU = i * dTheta;
-            double phiL = (i+1) * dTheta;
-            // for each meridian
-            for (int j=0; j < mStep * 2; j++) {
-                double thetaL = j * dTheta;
-                double thetaR = ((j+1) * dTheta) % (2 * mStep * dTheta);
-                if (i == 0) {
-                    // Create triangles at top pole
-                    objectVertex.put(0f); objectVertex.put(calcZ(phiU)); objectVertex.put(0f);
-                    objectVertex.put(calcX(phiL, thetaR)); objectVertex.put(calcZ(phiL)); objectVertex.put(calcY(phiL, thetaR));
-                    objectVertex.put(calcX(phiL, thetaL)); objectVertex.put(calcZ(phiL)); objectVertex.put(calcY(phiL, thetaL));
-                    paintTriangle(white);
-                    objectTexture.put(1-j*0.5f/mStep); objectTexture.put(0f);
-                    objectTexture.put(1-(j+1)*0.5f/mStep); objectTexture.put((i+1)*1f/mStep);
-                    objectTexture.put(1-j*0.5f/mStep); objectTexture.put((i+1)*1f/mStep);
-                } else if (i == mStep-1) {
-                    // Create triangles at bottom pole
-                    objectVertex.put(calcX(phiU, thetaL)); objectVertex.put(calcZ(phiU)); objectVertex.put(calcY(phiU, thetaL));
-                    objectVertex.put(calcX(phiU, thetaR)); objectVertex.put(calcZ(phiU)); objectVertex.put(calcY(phiU, thetaR));
-                    objectVertex.put(0f); objectVertex.put(calcZ(phiL)); objectVertex.put(0f);
-                    paintTriangle(white);
-                    objectTexture.put(1-j*0.5f/mStep); objectTexture.put(i*1f/mStep);
-                    objectTexture.put(1-(j+1)*0.5f/mStep); objectTexture.put(i*1f/mStep);
-                    objectTexture.put(1-(j+1)*0.5f/mStep); objectTexture.put(1f);
+        for (int i = 0; i <= mStep; i++) {
+            double phi = i * dTheta;
+            for (int j = 0; j < mColumns; j++) {
+                // The last meridian repeats the first one, with texture u 0 instead of 1
+                double theta = (j * dTheta) % (2 * mStep * dTheta);
+                if (i == 0 || i == mStep) {
+                    // Poles lie exactly on the axis
+                    objectVertex.put(0f); objectVertex.put(calcZ(phi)); objectVertex.put(0f);
                 } else {
-                    // Create two triangles for each trapezoid
-                    objectVertex.put(calcX(phiU, thetaL)); objectVertex.put(calcZ(phiU)); objectVertex.put(calcY(phiU, thetaL));
-                    objectVertex.put(calcX(phiL, thetaR)); objectVertex.put(calcZ(phiL)); objectVertex.put(calcY(phiL, thetaR));
-                    objectVertex.put(calcX(phiL, thetaL)); objectVertex.put(calcZ(phiL)); objectVertex.put(calcY(phiL, thetaL));
-                    paintTriangle(white);
-                    objectTexture.put(1-j*0.5f/mStep); objectTexture.put(i*1f/mStep);
-                    objectTexture.put(1-(j+1)*0.5f/mStep); objectTexture.put((i+1)*1f/mStep);
-                    objectTexture.put(1-j*0.5f/mStep); objectTexture.put((i+1)*1f/mStep);
-
-                    objectVertex.put(calcX(phiU, thetaL)); objectVertex.put(calcZ(phiU)); objectVertex.put(calcY(phiU, thetaL));
-                    objectVertex.put(calcX(phiU, thetaR)); objectVertex.put(calcZ(phiU)); objectVertex.put(calcY(phiU, thetaR));
-                    objectVertex.put(calcX(phiL, thetaR)); objectVertex.put(calcZ(phiL)); objectVertex.put(calcY(phiL, thetaR));
-                    paintTriangle(white);
-                    objectTexture.put(1-j*0.5f/mStep); objectTexture.put(i*1f/mStep);
-                    objectTexture.put(1-(j+1)*0.5f/mStep); objectTexture.put(i*1f/mStep);
-                    objectTexture.put(1-(j+1)*0.5f/mStep); objectTexture.put((i+1)*1f/mStep);
+                    objectVertex.put(calcX(phi, theta)); objectVertex.put(calcZ(phi)); objectVertex.put(calcY(phi, theta));
+                }
+                objectVertex.put(1 - j * 0.5f / mStep); objectVertex.put(i * 1f / mStep);
+            }
+        }
+        // Tiles of the finest level, each covering a square block of facets
+        int tiles = 1 << (tileLevels - 1);
+        int facets = mStep / tiles;
+        int triangles = 0;
+        for (int root = 0; root < 2; root++) {
+            for (int order = 0; order < tiles * tiles; order++) {
+                int tileX = root * tiles + deinterleave(order), tileY = deinterleave(order >> 1);
+                tileStart[root * tiles * tiles + order] = triangles;
+                for (int i = tileY * facets; i < (tileY + 1) * facets; i++) {
+                    // Texture u runs against the meridian index
+                    for (int column = tileX * facets; column < (tileX + 1) * facets; column++) {
+                        triangles += putFacet(i, 2 * mStep - 1 - column);
+                    }
                 }
             }
         }
+        tileStart[tileStart.length - 1] = triangles;
         objectVertex.position(0);
-        objectColor.position(0);
-        objectTexture.position(0);
+        objectIndex.position(0);
+    }
+
+    /**
+     * Adds the triangles of one facet, two for a trapezoid and one at the poles.
+     * @param i Index of the horizontal line from the top pole.
+     * @param j Index of the meridian.
+     * @return Number of added triangles.
+     */
+    private int putFacet(int i, int j) {
+        if (i == 0) {
+            // Create triangles at top pole
+            putTriangle(index(i, j), index(i + 1, j + 1), index(i + 1, j));
+            return 1;
+        } else if (i == mStep-1) {
+            // Create triangles at bottom pole
+            putTriangle(index(i, j), index(i, j + 1), index(i + 1, j + 1));
+            return 1;
+        } else {
+            // Create two triangles for each trapezoid
+            putTriangle(index(i, j), index(i + 1, j + 1), index(i + 1, j));
+            putTriangle(index(i, j), index(i, j + 1), index(i + 1, j + 1));
+        }
+        return 2;
+    }
+
+    /**
+     * @param i Index of the horizontal line from the top pole.
+     * @param j Index of the meridian, up to 2 * step for the repeated first one.
+     * @return Index of the grid vertex.
+     */
+    private short index(int i, int j) {
+        return (short) (i * mColumns + j);
+    }
+
+    private void putTriangle(short a, short b, short c) {
+        objectIndex.put(a); objectIndex.put(b); objectIndex.put(c);
+    }
+
+    /**
+     * Takes every second bit of a Z-order index.
+     * @param order Z-order index, shifted right by one for the vertical coordinate.
+     * @return Horizontal coordinate of the index.
+     */
+    private static int deinterleave(int order) {
+        int value = 0;
+        for (int bit = 0; 2 * bit < 31; bit++) {
+            value |= ((order >> (2 * bit)) & 1) << bit;
+        }
+        return value;
+    }
+
+    /**
+     * Returns the index of a finest tile in drawing order.
+     * @param level Tile level.
+     * @param x Horizontal tile index of the level from longitude -180.
+     * @param y Vertical tile index of the level from the north pole.
+     * @return Index of the first finest tile covered by the tile.
+     */
+    private int getFirstTile(int level, int x, int y) {
+        int tiles = 1 << (tileLevels - 1);
+        int size = 1 << (tileLevels - 1 - level);
+        int tileX = x * size, tileY = y * size;
+        int order = 0;
+        for (int bit = 0; 1 << bit < tiles; bit++) {
+            order |= ((tileX >> bit) & 1) << (2 * bit) | ((tileY >> bit) & 1) << (2 * bit + 1);
+        }
+        return tileX / tiles * tiles * tiles + order;
+    }
+
+    /**
+     * @param level Tile level.
+     * @param x Horizontal tile index of the level from longitude -180.
+     * @param y Vertical tile index of the level from the north pole.
+     * @return Index of the first triangle of the tile.
+     */
+    public int getFirstTriangle(int level, int x, int y) {
+        return tileStart[getFirstTile(level, x, y)];
+    }
+
+    /**
+     * @param level Tile level.
+     * @param x Horizontal tile index of the level from longitude -180.
+     * @param y Vertical tile index of the level from the north pole.
+     * @return Number of triangles of the tile.
+     */
+    public int getTriangleCount(int level, int x, int y) {
+        int first = getFirstTile(level, x, y);
+        int size = 1 << (tileLevels - 1 - level);
+        return tileStart[first + size * size] - tileStart[first];
+    }
+
+    /**
+     * Binds the buffer objects and points the attributes at the interleaved vertices. Uploads the buffers first
+     * if they are not uploaded in this GL context.
+     * @param positionHandle Location of the position attribute.
+     * @param textureHandle Location of the texture coordinate attribute.
+     */
+    public void bind(int positionHandle, int textureHandle) {
+        if (bufferHandles[0] == 0) {
+            GLES20.glGenBuffers(2, bufferHandles, 0);
+            GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, bufferHandles[0]);
+            GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, objectVertex.capacity() * mBytesPerFloat, objectVertex,
+                    GLES20.GL_STATIC_DRAW);
+            GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, bufferHandles[1]);
+            GLES20.glBufferData(GLES20.GL_ELEMENT_ARRAY_BUFFER, objectIndex.capacity() * mBytesPerShort, objectIndex,
+                    GLES20.GL_STATIC_DRAW);
+        } else {
+            GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, bufferHandles[0]);
+            GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, bufferHandles[1]);
+        }
+        int stride = mVertexSize * mBytesPerFloat;
+        GLES20.glVertexAttribPointer(positionHandle, 3, GLES20.GL_FLOAT, false, stride, 0);
+        GLES20.glEnableVertexAttribArray(positionHandle);
+        GLES20.glVertexAttribPointer(textureHandle, 2, GLES20.GL_FLOAT, false, stride, 3 * mBytesPerFloat);
+        GLES20.glEnableVertexAttribArray(textureHandle);
+    }
+
+    /**
+     * Draws the triangles of a tile from the bound buffers.
+     * @param level Tile level.
+     * @param x Horizontal tile index of the level from longitude -180.
+     * @param y Vertical tile index of the level from the north pole.
+     */
+    public void drawTile(int level, int x, int y) {
+        GLES20.glDrawElements(GLES20.GL_TRIANGLES, getTriangleCount(level, x, y) * 3, GLES20.GL_UNSIGNED_SHORT,
+                getFirstTriangle(level, x, y) * 3 * mBytesPerShort);
+    }
+
+    /**
+     * Disables the attributes and unbinds the buffer objects, so other draws read no globe vertices.
+     * @param positionHandle Location of the position attribute.
+     * @param textureHandle Location of the texture coordinate attribute.
+     */
+    public void unbind(int positionHandle, int textureHandle) {
+        GLES20.glDisableVertexAttribArray(positionHandle);
+        GLES20.glDisableVertexAttribArray(textureHandle);
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+        GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, 0);
+    }
+
+    /** Forgets the buffer objects after the GL context was lost. They are uploaded again with the next bind. */
+    public void invalidate() {
+        bufferHandles[0] = 0;
+        bufferHandles[1] = 0;
+    }
+
+    /**
+     * Calculates the position of a geographic coordinate on a sphere, matching the texture coordinates of the model.
+     * Texture u = 1 - theta / 2 PI runs from longitude -180 to 180 and v = phi / PI from latitude 90 to -90.
+     * @param lon Longitude in degrees.
+     * @param lat Latitude in degrees.
+     * @param radius Radius of the sphere.
+     * @param position Receives x, y and z of the position.
+     * @param offset Index of x in the position array.
+     */
+    public static void getPosition(float lon, float lat, float radius, float[] position, int offset) {
+        double phi = (90 - lat) * Math.PI / 180;
+        double theta = (180 - lon) * Math.PI / 180;
+        double sinPhi = Math.sin(phi);
+        position[offset] = (float) (radius * sinPhi * Math.cos(theta));
+        position[offset + 1] = (float) (radius * Math.cos(phi));
+        position[offset + 2] = (float) (radius * sinPhi * Math.sin(theta));
     }
 
     /**
@@ -130,22 +301,4 @@ public class Sphere {
     private float calcZ(double phi) {
         return (float) (mRaduis * Math.cos(phi));
     }
-
-    /**
-     * Paints triangle in a random color. Used for debugging.
-     */
-    private void paintTriangle() {
-        Random r = new Random();
-        float[] color = {r.nextFloat(), r.nextFloat(), r.nextFloat(), 1.0f};
-        objectColor.put(color); objectColor.put(color); objectColor.put(color);
-    }
-
-
-    /**
-     * Paints triangle in the specified color.
-     * @param color
-     */
-    private void paintTriangle(float[] color) {
-        objectColor.put(color); objectColor.put(color); objectColor.put(color);
-    }
-}
\ No newline at end of file
+}
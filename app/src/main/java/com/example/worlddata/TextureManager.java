@@ -0,0 +1,107 @@
+package com.example.worlddata;
+
+import android.content.res.AssetManager;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Base maps of the globe, each decoded once in the background and kept for the life of the app. Swapping the
+ * base map only changes which one the tile pyramid draws from, the overlays are not touched.
+ * Maps with ETC2 tiles encoded at build time are not decoded at all if the GPU supports them.
+ */
+public class TextureManager {
+
+    private static final String TAG = "TextureManager";
+
+    /** Base maps by resource Id, done once decoded. */
+    private final Map<Integer, Future<TilePyramid.BaseMap>> maps = new HashMap<>();
+
+    /**
+     * Starts decoding the base maps in the background.
+     * @param resources Resources of the app.
+     * @param assets Assets of the app, holding encoded tiles.
+     * @param resourceIds Resource Ids of the base maps.
+     * @param levels Number of levels of the tile pyramid.
+     * @param etc2 True if the GPU decodes ETC2 textures, see KtxTiles.isSupported.
+     */
+    public TextureManager(final Resources resources, final AssetManager assets, int[] resourceIds, final int levels,
+                          final boolean etc2) {
+        for (final int resourceId : resourceIds) {
+            maps.put(resourceId, WorkerPool.get().submit(new Callable<TilePyramid.BaseMap>() {
+                @Override
+                public TilePyramid.BaseMap call() {
+                    long start = SystemClock.elapsedRealtime();
+                    String name = resources.getResourceEntryName(resourceId);
+                    KtxTiles tiles = etc2 ? KtxTiles.open(assets, name, levels) : null;
+                    Bitmap bitmap = null;
+                    if (tiles == null) {
+                        BitmapFactory.Options options = new BitmapFactory.Options();
+                        options.inScaled = false;   // No pre-scaling
+                        try {
+                            bitmap = BitmapFactory.decodeResource(resources, resourceId, options);
+                        } catch (OutOfMemoryError e) {
+                            Log.e(TAG, "Not enough memory for base map " + name, e);
+                        }
+                        if (bitmap == null) {
+                            return null;
+                        }
+                    }
+                    TilePyramid.BaseMap map = new TilePyramid.BaseMap(name, bitmap, tiles);
+                    Log.i(TAG, "Base map " + name + " ready in " + (SystemClock.elapsedRealtime() - start) + " ms"
+                            + (tiles != null ? " from ETC2 tiles" : " from PNG"));
+                    return map;
+                }
+            }));
+        }
+    }
+
+    /**
+     * Returns a base map if it is decoded, without waiting.
+     * @param resourceId Resource Id of the base map.
+     * @return Base map, or null if it is not decoded yet or could not be decoded.
+     */
+    public TilePyramid.BaseMap get(int resourceId) {
+        Future<TilePyramid.BaseMap> map = maps.get(resourceId);
+        if (map == null || !map.isDone()) {
+            return null;
+        }
+        return await(resourceId);
+    }
+
+    /**
+     * Waits until a base map is decoded.
+     * @param resourceId Resource Id of the base map.
+     * @return Base map, or null if it could not be decoded.
+     */
+    public TilePyramid.BaseMap await(int resourceId) {
+        Future<TilePyramid.BaseMap> map = maps.get(resourceId);
+        if (map == null) {
+            return null;
+        }
+        try {
+            return map.get();
+        } catch (ExecutionException e) {
+            Log.e(TAG, "Could not decode base map " + resourceId, e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return null;
+    }
+
+    /** Forgets the textures of all base maps after the GL context was lost. */
+    public void invalidate() {
+        for (int resourceId : maps.keySet()) {
+            TilePyramid.BaseMap map = get(resourceId);
+            if (map != null) map.invalidate();
+        }
+    }
+}
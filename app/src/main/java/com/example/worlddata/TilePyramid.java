@@ -0,0 +1,770 @@
+package com.example.worlddata;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.PorterDuff;
+import android.graphics.PorterDuffXfermode;
+import android.graphics.Rect;
+import android.opengl.GLES20;
+import android.opengl.GLUtils;
+import android.opengl.Matrix;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Base map and overlays of the globe as a pyramid of mipmapped tile textures. Level 0 covers the world with
+ * 2 x 1 tiles and every further level doubles the tiles in both directions, up to the resolution of the world
+ * texture. Tiles are small enough for any GL_MAX_TEXTURE_SIZE and a power of two in size, so they have mipmaps
+ * and do not shimmer when zoomed out.
+ * Every frame the level is picked by the zoom, and only tiles of that level in view are loaded, a few per frame,
+ * into a cache holding the tiles in view and a margin. Tiles not loaded yet are drawn with the texture of a loaded
+ * coarser tile, level 0 stays loaded. Overlay tiles without content share an empty texture. The base map is a BaseMap kept by the caller,
+ * so it can be swapped without drawing the overlays again, and every base map set keeps its textures of the cached
+ * tiles, so swapping back draws them at once. All methods must run on the GL thread.
+ */
+public class TilePyramid {
+
+    private static final String TAG = "TilePyramid";
+    /** Edge length of tile textures in pixels, a power of two so they can have mipmaps. */
+    public static final int TILE_SIZE = 512;
+    /** Cached tiles above level 0 kept beyond those in view, so tiles panned back into view are still loaded. */
+    private static final int CACHE_MARGIN = 48;
+    /** Largest number of tile textures drawn and uploaded per frame, so zooming does not stall drawing. */
+    private static final int MAX_TILE_LOADS = 2;
+    /** Points per tile side tested for visibility, and rays per screen side cast at the globe. */
+    private static final int TILE_SAMPLES = 3;
+    private static final int SCREEN_RAYS = 9;
+    /** Margin around the view in clip space, so tiles just outside are loaded before they come into view. */
+    private static final float VIEW_MARGIN = 1.1f;
+
+    /** Texture layers of a tile, each bound to the texture unit of the same number. */
+    public static final int BASE = 0;
+    public static final int DATA = 1;
+    public static final int POINT = 2;
+    private static final int LAYERS = 3;
+
+    /** Number of levels, 0 is the coarsest. */
+    public final int levels;
+    /** Size of the world texture in pixels. */
+    private final int width;
+    private final int height;
+    private final float radius;
+    private final Sphere sphere;
+    /** Sources of the overlay layers, coarse tiles are averaged from them when drawn. */
+    private final MipSource[] sources = new MipSource[LAYERS];
+    /** Base map drawn into the BASE layer, null until set. */
+    private BaseMap base;
+    /** Base maps set so far, each holding textures of cached tiles. */
+    private final Set<BaseMap> bases = new HashSet<>();
+    /** Regions of the overlays holding content. Tiles elsewhere need no overlay texture. */
+    private final List<Rect> dataContent;
+    private final List<Rect> pointContent;
+    /** Tiles of level 0, always loaded, and the cached tiles of other levels, least recently drawn first. */
+    private final Tile[] roots = new Tile[2];
+    private final LinkedHashMap<Long, Tile> cache = new LinkedHashMap<>(16, 0.75f, true);
+    /** Visibility of every tile of the finest level in the current frame. */
+    private final boolean[] visible;
+    private final int finestX;
+    private final int finestY;
+
+    /** Tile being loaded, drawn from a source before upload. */
+    private final Bitmap tileBitmap;
+    private final Canvas tileCanvas;
+    private final Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    /** Shared texture of overlay tiles without content. */
+    private final int emptyTexture;
+    /** Texture uploads in the current frame. */
+    private int loads;
+    /** Tiles of the drawn level in view in the current frame. */
+    private int tilesInView;
+
+    /** Inverse matrices and work arrays of the visibility test. */
+    private final float[] inverseMatrix = new float[16];
+    private final float[] vector = new float[4];
+    private final float[] result = new float[4];
+    private final float[] position = new float[3];
+
+    /** Textures of one tile. */
+    private static class Tile {
+        final int level;
+        final int x;
+        final int y;
+        /** Texture of every layer, 0 if not loaded or empty. */
+        final int[] textures = new int[LAYERS];
+        /** True if the layer is drawn into its texture or known to be empty. */
+        final boolean[] loaded = new boolean[LAYERS];
+        /** True if the layer changed since it was loaded. */
+        final boolean[] stale = new boolean[LAYERS];
+
+        Tile(int level, int x, int y) {
+            this.level = level;
+            this.x = x;
+            this.y = y;
+        }
+    }
+
+    /**
+     * Base map drawn into the BASE layer of the tiles. It is decoded once and kept while the app runs, with the
+     * textures of its level 0 tiles, so a swapped in base map is drawn at once.
+     */
+    public static class BaseMap {
+        public final String name;
+        /** World texture with halved copies, or null if the map has encoded tiles. */
+        private final MipSource source;
+        private final KtxTiles tiles;
+        /** Resident textures of the level 0 tiles, 0 if not loaded in this GL context. */
+        private final int[] rootTextures = new int[2];
+        /** Textures of cached tiles above level 0 by tile key, kept while another map is drawn. */
+        private final HashMap<Long, Integer> textures = new HashMap<>();
+        /** Keys of encoded tiles which could not be uploaded. They are not tried again, their parents are drawn. */
+        private final Set<Long> failed = new HashSet<>();
+
+        /**
+         * Creates the halved copies of the world texture. Can run on any thread.
+         * @param name Resource name of the map.
+         * @param bitmap World texture of the size of the overlays, or null if tiles are given.
+         * @param tiles Encoded tiles, or null to draw tiles from bitmap.
+         */
+        public BaseMap(String name, Bitmap bitmap, KtxTiles tiles) {
+            this.name = name;
+            this.tiles = tiles;
+            this.source = tiles == null ? new MipSource(bitmap, 2 * TILE_SIZE) : null;
+        }
+
+        /** Forgets the textures after the GL context was lost. */
+        public void invalidate() {
+            Arrays.fill(rootTextures, 0);
+            textures.clear();
+        }
+    }
+
+    /**
+     * Creates the pyramid and loads the overlay tiles of level 0. A base map must be set before drawing.
+     * @param sphere Globe with triangles ordered by tile.
+     * @param radius Radius of the globe.
+     * @param data World texture of the data overlay.
+     * @param point World texture of the point overlay.
+     * @param dataContent Regions of the data overlay holding content, kept up to date by the caller.
+     * @param pointContent Regions of the point overlay holding content, kept up to date by the caller.
+     */
+    public TilePyramid(Sphere sphere, float radius, Bitmap data, Bitmap point, List<Rect> dataContent,
+                       List<Rect> pointContent) {
+        this.sphere = sphere;
+        this.radius = radius;
+        this.levels = sphere.tileLevels;
+        this.width = data.getWidth();
+        this.height = data.getHeight();
+        this.dataContent = dataContent;
+        this.pointContent = pointContent;
+        finestX = 2 << (levels - 1);
+        finestY = 1 << (levels - 1);
+        visible = new boolean[finestX * finestY];
+
+        // Overlays are not copied, the world textures are their largest allocations
+        sources[DATA] = new MipSource(data);
+        sources[POINT] = new MipSource(point);
+        tileBitmap = Bitmap.createBitmap(TILE_SIZE, TILE_SIZE, Bitmap.Config.ARGB_8888);
+        tileCanvas = new Canvas(tileBitmap);
+
+        tileBitmap.eraseColor(Color.TRANSPARENT);
+        emptyTexture = createTexture();
+        GLUtils.texImage2D(GLES20.GL_TEXTURE_2D, 0, tileBitmap, 0);
+        GLES20.glGenerateMipmap(GLES20.GL_TEXTURE_2D);
+
+        for (int x = 0; x < roots.length; x++) {
+            roots[x] = new Tile(0, x, 0);
+            load(roots[x], DATA);
+            load(roots[x], POINT);
+        }
+    }
+
+    /**
+     * Draws the BASE layer from another base map. The textures of the previous map are kept with it. Cached tiles
+     * use the textures the map kept from when it was last drawn, and load the others when drawn next. Level 0 tiles
+     * use the resident textures of the map.
+     * @param base Base map to be drawn.
+     */
+    public void setBase(BaseMap base) {
+        if (base == this.base) {
+            return;
+        }
+        bases.add(base);
+        for (Tile tile : cache.values()) {
+            Integer texture = base.textures.get(getKey(tile.level, tile.x, tile.y));
+            tile.textures[BASE] = texture != null ? texture : 0;
+            tile.loaded[BASE] = texture != null;
+        }
+        this.base = base;
+        for (Tile tile : roots) {
+            tile.textures[BASE] = 0;
+            load(tile, BASE);
+        }
+    }
+
+    /**
+     * Returns the number of levels needed for a world texture, so the finest level has at least its resolution.
+     * @param width Width of the world texture in pixels.
+     * @return Number of levels.
+     */
+    public static int getLevels(int width) {
+        int levels = 1;
+        while ((TILE_SIZE << levels) < width) levels++;
+        return levels;
+    }
+
+    /**
+     * Returns the coarsest level with at least as many texture pixels as screen pixels in the middle of the globe.
+     * @param pixelsPerRadian Screen pixels per radian of the globe surface facing the eye.
+     * @return Level to be drawn.
+     */
+    public int getLevel(float pixelsPerRadian) {
+        for (int level = 0; level < levels; level++) {
+            if ((TILE_SIZE << (level + 1)) / (2 * Math.PI) >= pixelsPerRadian) {
+                return level;
+            }
+        }
+        return levels - 1;
+    }
+
+    /** @return Number of loaded tiles, including level 0. */
+    public int getLoadedTiles() {
+        return cache.size() + roots.length;
+    }
+
+    /**
+     * Draws the globe tile by tile with the bound program and the bound buffers of the sphere. Loads a few missing tiles.
+     * Texture units 0, 1 and 2 are bound to the base map, data and point textures of every tile.
+     * @param mvMatrix Model view matrix of the globe.
+     * @param mvpMatrix Model view projection matrix of the globe.
+     * @param pixelsPerRadian Screen pixels per radian of the globe surface facing the eye.
+     * @param rectHandles Locations of the uniforms mapping globe texture coordinates to the tile of every layer.
+     * @param dataTexture World sized texture drawn instead of the data tiles, or 0.
+     */
+    public void draw(float[] mvMatrix, float[] mvpMatrix, float pixelsPerRadian, int[] rectHandles,
+                     int dataTexture) {
+        int level = getLevel(pixelsPerRadian);
+        updateVisibility(mvMatrix, mvpMatrix);
+        loads = 0;
+        tilesInView = 0;
+        for (int x = 0; x < roots.length; x++) {
+            drawTile(0, x, 0, new Tile[LAYERS], level, rectHandles, dataTexture);
+        }
+        // Forget the least recently drawn tiles. Tiles in view were drawn last, the cache grows to hold them all.
+        Iterator<Tile> tiles = cache.values().iterator();
+        while (cache.size() > tilesInView + CACHE_MARGIN && tiles.hasNext()) {
+            release(tiles.next());
+            tiles.remove();
+        }
+    }
+
+    /**
+     * Draws a tile, or its children if they are in view and the level is not reached yet.
+     * @param level Level of the tile.
+     * @param x Horizontal tile index from longitude -180.
+     * @param y Vertical tile index from the north pole.
+     * @param parents Finest loaded tile of every layer among the parents.
+     * @param target Level to be drawn.
+     * @param rectHandles Locations of the tile rectangle uniforms.
+     * @param dataTexture World sized texture drawn instead of the data tiles, or 0.
+     */
+    private void drawTile(int level, int x, int y, Tile[] parents, int target, int[] rectHandles, int dataTexture) {
+        long key = getKey(level, x, y);
+        Tile tile = level == 0 ? roots[x] : cache.get(key);
+        boolean inView = isVisible(level, x, y);
+        if (inView && level == target) tilesInView++;
+        if (inView && level == target && tile == null) {
+            tile = new Tile(level, x, y);
+            cache.put(key, tile);
+        }
+        if (tile != null && (level == 0 || (inView && level == target))) {
+            for (int layer = 0; layer < LAYERS; layer++) {
+                if (tile.loaded[layer] && !tile.stale[layer]) continue;
+                if (loads >= MAX_TILE_LOADS && tile.level > 0) break;
+                load(tile, layer);
+            }
+        }
+        Tile[] best = parents.clone();
+        if (tile != null) {
+            for (int layer = 0; layer < LAYERS; layer++) {
+                if (tile.loaded[layer]) best[layer] = tile;
+            }
+        }
+        if (!inView || level == target) {
+            drawRange(level, x, y, best, rectHandles, dataTexture);
+            return;
+        }
+        for (int j = 0; j < 2; j++) {
+            for (int i = 0; i < 2; i++) {
+                drawTile(level + 1, 2 * x + i, 2 * y + j, best, target, rectHandles, dataTexture);
+            }
+        }
+    }
+
+    /**
+     * Draws the triangles of a tile with the textures of the given tiles.
+     * @param level Level of the tile.
+     * @param x Horizontal tile index.
+     * @param y Vertical tile index.
+     * @param textures Tile holding the texture of every layer, the drawn tile or one of its parents.
+     * @param rectHandles Locations of the tile rectangle uniforms.
+     * @param dataTexture World sized texture drawn instead of the data tiles, or 0.
+     */
+    private void drawRange(int level, int x, int y, Tile[] textures, int[] rectHandles, int dataTexture) {
+        for (int layer = 0; layer < LAYERS; layer++) {
+            GLES20.glActiveTexture(GLES20.GL_TEXTURE0 + layer);
+            if (layer == DATA && dataTexture != 0) {
+                GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, dataTexture);
+                GLES20.glUniform4f(rectHandles[layer], 0, 0, 1, 1);
+                continue;
+            }
+            Tile tile = textures[layer];
+            if (tile == null) {
+                // No tile of the layer is loaded down to level 0
+                GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, emptyTexture);
+                GLES20.glUniform4f(rectHandles[layer], 0, 0, 1, 1);
+                continue;
+            }
+            int texture = tile.textures[layer];
+            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, texture != 0 ? texture : emptyTexture);
+            // Offset and scale from globe texture coordinates to the tile
+            int tilesX = 2 << tile.level, tilesY = 1 << tile.level;
+            GLES20.glUniform4f(rectHandles[layer], (float) tile.x / tilesX, (float) tile.y / tilesY, tilesX, tilesY);
+        }
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+        sphere.drawTile(level, x, y);
+    }
+
+    /**
+     * Draws a layer of a tile from its source and uploads it, or uploads an encoded base map tile.
+     * Overlay tiles without content get no texture, level 0 base map tiles reuse the textures of the map.
+     * @param tile Tile to be loaded.
+     * @param layer Layer to be loaded.
+     */
+    private void load(Tile tile, int layer) {
+        if (layer == BASE && base == null) {
+            return;
+        }
+        int tilesX = 2 << tile.level, tilesY = 1 << tile.level;
+        float left = (float) tile.x * width / tilesX, top = (float) tile.y * height / tilesY;
+        float right = (float) (tile.x + 1) * width / tilesX, bottom = (float) (tile.y + 1) * height / tilesY;
+        tile.loaded[layer] = true;
+        tile.stale[layer] = false;
+        if (layer != BASE && !hasContent(layer == DATA ? dataContent : pointContent, left, top, right, bottom)) {
+            deleteTexture(tile, layer);
+            return;
+        }
+        if (layer == BASE && tile.level == 0 && base.rootTextures[tile.x] != 0) {
+            tile.textures[layer] = base.rootTextures[tile.x];
+            return;
+        }
+        if (layer == BASE && base.tiles != null) {
+            long key = getKey(tile.level, tile.x, tile.y);
+            if (base.failed.contains(key)) {
+                tile.loaded[layer] = false;
+                return;
+            }
+            loads++;
+            // Base map tiles never change, the texture is new
+            tile.textures[layer] = createTexture();
+            if (!base.tiles.load(tile.level, tile.x, tile.y)) {
+                Log.w(TAG, "Base map tile " + key + " of " + base.name + " not uploaded, drawing its parent");
+                base.failed.add(key);
+                deleteTexture(tile, layer);
+                tile.loaded[layer] = false;
+                return;
+            }
+        } else {
+            loads++;
+            tileBitmap.eraseColor(Color.TRANSPARENT);
+            MipSource source = layer == BASE ? base.source : sources[layer];
+            source.draw(tileBitmap, tileCanvas, left, top, TILE_SIZE / (right - left), TILE_SIZE / (bottom - top),
+                    paint);
+            upload(tile, layer);
+        }
+        if (layer == BASE && tile.level == 0) {
+            base.rootTextures[tile.x] = tile.textures[layer];
+        } else if (layer == BASE) {
+            base.textures.put(getKey(tile.level, tile.x, tile.y), tile.textures[layer]);
+        }
+    }
+
+    /**
+     * Uploads the tile Bitmap to the texture of a layer of a tile and generates its mipmaps.
+     * @param tile Tile to be loaded.
+     * @param layer Layer to be loaded.
+     */
+    private void upload(Tile tile, int layer) {
+        if (tile.textures[layer] == 0) {
+            tile.textures[layer] = createTexture();
+            GLUtils.texImage2D(GLES20.GL_TEXTURE_2D, 0, tileBitmap, 0);
+        } else {
+            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, tile.textures[layer]);
+            GLUtils.texSubImage2D(GLES20.GL_TEXTURE_2D, 0, 0, 0, tileBitmap);
+        }
+        GLES20.glGenerateMipmap(GLES20.GL_TEXTURE_2D);
+    }
+
+    /**
+     * Checks if a region of the world texture overlaps content.
+     * @param content Regions holding content.
+     * @return true if any region overlaps.
+     */
+    private static boolean hasContent(List<Rect> content, float left, float top, float right, float bottom) {
+        for (Rect rect : content) {
+            if (rect.left < right && left < rect.right && rect.top < bottom && top < rect.bottom) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Creates a texture with mipmap filtering, without content. Leaves it bound to the active unit.
+     * @return Handle of the texture.
+     */
+    private int createTexture() {
+        final int[] textureHandle = new int[1];
+        GLES20.glGenTextures(1, textureHandle, 0);
+        if (textureHandle[0] == 0) {
+            throw new RuntimeException("Error loading texture.");
+        }
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textureHandle[0]);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR_MIPMAP_LINEAR);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+        return textureHandle[0];
+    }
+
+    /**
+     * Marks regions of a layer changed. Tiles in the regions are drawn again when they are drawn next.
+     * @param layer DATA or POINT.
+     * @param rects Changed regions of the world texture.
+     */
+    public void invalidate(int layer, List<Rect> rects) {
+        for (Rect rect : rects) {
+            sources[layer].update(rect);
+        }
+        List<Tile> tiles = new ArrayList<>(cache.values());
+        tiles.addAll(Arrays.asList(roots));
+        for (Tile tile : tiles) {
+            if (!tile.loaded[layer]) continue;
+            int tilesX = 2 << tile.level, tilesY = 1 << tile.level;
+            float left = (float) tile.x * width / tilesX, top = (float) tile.y * height / tilesY;
+            float right = (float) (tile.x + 1) * width / tilesX, bottom = (float) (tile.y + 1) * height / tilesY;
+            if (hasContent(rects, left, top, right, bottom)) tile.stale[layer] = true;
+        }
+    }
+
+    /**
+     * Marks the tiles of the finest level in view. A tile is in view if one of its sample points faces the eye
+     * inside the view, or if a ray through the screen hits the globe inside it, for tiles larger than the view.
+     * @param mvMatrix Model view matrix of the globe.
+     * @param mvpMatrix Model view projection matrix of the globe.
+     */
+    private void updateVisibility(float[] mvMatrix, float[] mvpMatrix) {
+        Arrays.fill(visible, false);
+        // Eye position in model space
+        Matrix.invertM(inverseMatrix, 0, mvMatrix, 0);
+        float eyeX = inverseMatrix[12], eyeY = inverseMatrix[13], eyeZ = inverseMatrix[14];
+        for (int y = 0; y < finestY; y++) {
+            for (int x = 0; x < finestX; x++) {
+                for (int j = 0; j < TILE_SAMPLES && !visible[y * finestX + x]; j++) {
+                    for (int i = 0; i < TILE_SAMPLES; i++) {
+                        float lon = -180 + (x + (float) i / (TILE_SAMPLES - 1)) * 360 / finestX;
+                        float lat = 90 - (y + (float) j / (TILE_SAMPLES - 1)) * 180 / finestY;
+                        Sphere.getPosition(lon, lat, radius, position, 0);
+                        // Facing the eye if the eye lies above the tangent plane of the point
+                        float facing = (eyeX - position[0]) * position[0] + (eyeY - position[1]) * position[1]
+                                + (eyeZ - position[2]) * position[2];
+                        if (facing <= 0) continue;
+                        vector[0] = position[0];
+                        vector[1] = position[1];
+                        vector[2] = position[2];
+                        vector[3] = 1;
+                        Matrix.multiplyMV(result, 0, mvpMatrix, 0, vector, 0);
+                        float w = result[3] * VIEW_MARGIN;
+                        if (Math.abs(result[0]) <= w && Math.abs(result[1]) <= w) {
+                            visible[y * finestX + x] = true;
+                            break;
+                        }
+                    }
+                }
+            }
+        }
+        Matrix.invertM(inverseMatrix, 0, mvpMatrix, 0);
+        float[] near = new float[4], far = new float[4];
+        for (int j = 0; j < SCREEN_RAYS; j++) {
+            for (int i = 0; i < SCREEN_RAYS; i++) {
+                float screenX = 2f * i / (SCREEN_RAYS - 1) - 1, screenY = 2f * j / (SCREEN_RAYS - 1) - 1;
+                unproject(screenX, screenY, -1, near);
+                unproject(screenX, screenY, 1, far);
+                markHit(near, far);
+            }
+        }
+    }
+
+    /** Transforms a clip space point to model space with the inverse matrix. */
+    private void unproject(float x, float y, float z, float[] point) {
+        vector[0] = x;
+        vector[1] = y;
+        vector[2] = z;
+        vector[3] = 1;
+        Matrix.multiplyMV(point, 0, inverseMatrix, 0, vector, 0);
+        point[0] /= point[3];
+        point[1] /= point[3];
+        point[2] /= point[3];
+    }
+
+    /**
+     * Marks the finest tile hit first by a ray through the globe.
+     * @param near Start of the ray in model space.
+     * @param far End of the ray in model space.
+     */
+    private void markHit(float[] near, float[] far) {
+        float dx = far[0] - near[0], dy = far[1] - near[1], dz = far[2] - near[2];
+        float a = dx * dx + dy * dy + dz * dz;
+        float b = 2 * (near[0] * dx + near[1] * dy + near[2] * dz);
+        float c = near[0] * near[0] + near[1] * near[1] + near[2] * near[2] - radius * radius;
+        float discriminant = b * b - 4 * a * c;
+        if (discriminant < 0) {
+            return;
+        }
+        float t = (float) ((-b - Math.sqrt(discriminant)) / (2 * a));
+        float x = near[0] + t * dx, y = near[1] + t * dy, z = near[2] + t * dz;
+        // Inverse of Sphere.getPosition
+        double lon = 180 - Math.toDegrees(Math.atan2(z, x));
+        if (lon >= 180) lon -= 360;
+        double lat = 90 - Math.toDegrees(Math.acos(Math.max(-1, Math.min(1, y / radius))));
+        int tileX = Math.min(finestX - 1, (int) ((lon + 180) / 360 * finestX));
+        int tileY = Math.min(finestY - 1, (int) ((90 - lat) / 180 * finestY));
+        visible[tileY * finestX + tileX] = true;
+    }
+
+    /**
+     * @param level Level of the tile.
+     * @param x Horizontal tile index.
+     * @param y Vertical tile index.
+     * @return true if any finest tile covered by the tile is in view.
+     */
+    private boolean isVisible(int level, int x, int y) {
+        int size = 1 << (levels - 1 - level);
+        for (int j = y * size; j < (y + 1) * size; j++) {
+            for (int i = x * size; i < (x + 1) * size; i++) {
+                if (visible[j * finestX + i]) return true;
+            }
+        }
+        return false;
+    }
+
+    private static long getKey(int level, int x, int y) {
+        return (long) level << 40 | (long) y << 20 | x;
+    }
+
+    private static void deleteTexture(Tile tile, int layer) {
+        if (tile.textures[layer] != 0) {
+            GLES20.glDeleteTextures(1, new int[]{tile.textures[layer]}, 0);
+            tile.textures[layer] = 0;
+        }
+    }
+
+    /**
+     * Deletes the textures of a tile. Base map textures of tiles above level 0 are deleted from every base map.
+     * @param tile Tile to be released.
+     */
+    private void release(Tile tile) {
+        for (int layer = 0; layer < LAYERS; layer++) {
+            if (layer == BASE) {
+                // Kept by the base maps
+                tile.textures[layer] = 0;
+                if (tile.level > 0) releaseBase(getKey(tile.level, tile.x, tile.y));
+                continue;
+            }
+            deleteTexture(tile, layer);
+        }
+    }
+
+    /**
+     * Deletes the textures of a tile kept by the base maps.
+     * @param key Key of the tile.
+     */
+    private void releaseBase(long key) {
+        for (BaseMap map : bases) {
+            Integer texture = map.textures.remove(key);
+            if (texture != null) GLES20.glDeleteTextures(1, new int[]{texture}, 0);
+        }
+    }
+
+    /** Deletes all tile textures. The base map is kept. */
+    public void release() {
+        for (Tile tile : cache.values()) {
+            release(tile);
+        }
+        cache.clear();
+        for (Tile tile : roots) {
+            release(tile);
+        }
+        GLES20.glDeleteTextures(1, new int[]{emptyTexture}, 0);
+        for (MipSource source : sources) {
+            if (source != null) source.recycle();
+        }
+        tileBitmap.recycle();
+    }
+
+    /**
+     * World texture drawn into tiles of every level. A source with copies of it halved again and again draws
+     * every tile from a copy at most twice its resolution, so filtering averages all source pixels. A source
+     * without copies averages the source pixels covered by every tile pixel when a coarse tile is drawn.
+     */
+    private static class MipSource {
+        /** Source first, then every halved copy. */
+        private final Bitmap[] mips;
+        private final Canvas[] canvases;
+        private final Paint halvingPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+        /** Averaged tile pixels and source rows of a tile row, allocated on first use by sources without copies. */
+        private int[] pixels;
+        private int[] band;
+
+        /**
+         * Creates a source without copies, for world textures changing often.
+         * @param source World texture, not copied.
+         */
+        MipSource(Bitmap source) {
+            mips = new Bitmap[]{source};
+            canvases = new Canvas[1];
+        }
+
+        /**
+         * Creates the halved copies.
+         * @param source World texture, not copied.
+         * @param minWidth Width of the coarsest level, no copy is made smaller.
+         */
+        MipSource(Bitmap source, int minWidth) {
+            List<Bitmap> mips = new ArrayList<>();
+            mips.add(source);
+            for (int w = source.getWidth(), h = source.getHeight(); (w + 1) / 2 >= minWidth; ) {
+                w = (w + 1) / 2;
+                h = (h + 1) / 2;
+                mips.add(Bitmap.createBitmap(w, h, Bitmap.Config.ARGB_8888));
+            }
+            this.mips = mips.toArray(new Bitmap[0]);
+            canvases = new Canvas[this.mips.length];
+            for (int k = 1; k < canvases.length; k++) {
+                canvases[k] = new Canvas(this.mips[k]);
+            }
+            // Halved pixels replace the previous ones, transparent ones included
+            halvingPaint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.SRC));
+            update(new Rect(0, 0, source.getWidth(), source.getHeight()));
+        }
+
+        /**
+         * Halves a changed region of the source into every copy.
+         * @param rect Changed region of the source.
+         */
+        void update(Rect rect) {
+            Rect region = new Rect(rect);
+            for (int k = 1; k < mips.length; k++) {
+                region = new Rect(region.left / 2, region.top / 2, (region.right + 1) / 2, (region.bottom + 1) / 2);
+                Canvas canvas = canvases[k];
+                canvas.save();
+                canvas.clipRect(region);
+                canvas.scale(0.5f, 0.5f);
+                canvas.drawBitmap(mips[k - 1], 0, 0, halvingPaint);
+                canvas.restore();
+            }
+        }
+
+        /**
+         * Draws a region of the source scaled onto a tile, from the smallest copy with enough resolution.
+         * Without copies, tiles of less than half the source resolution are averaged from the source.
+         * @param tile Bitmap of the tile, cleared.
+         * @param canvas Canvas of the tile.
+         * @param left Horizontal pixel position of the region on the source.
+         * @param top Vertical pixel position of the region on the source.
+         * @param scaleX Canvas pixels per source pixel.
+         * @param scaleY Canvas pixels per source pixel.
+         * @param paint Paint filtering the Bitmap.
+         */
+        void draw(Bitmap tile, Canvas canvas, float left, float top, float scaleX, float scaleY, Paint paint) {
+            if (mips.length == 1 && Math.max(scaleX, scaleY) * 2 <= 1) {
+                average(tile, left, top, scaleX, scaleY);
+                return;
+            }
+            int k = 0;
+            while (k + 1 < mips.length && Math.max(scaleX, scaleY) * (2 << k) <= 1) k++;
+            float factor = 1 << k;
+            canvas.save();
+            canvas.scale(scaleX * factor, scaleY * factor);
+            canvas.translate(-left / factor, -top / factor);
+            canvas.drawBitmap(mips[k], 0, 0, paint);
+            canvas.restore();
+        }
+
+        /**
+         * Sets every tile pixel to the average of the source pixels it covers, weighted by their opacity.
+         * Source rows are read a tile row at a time.
+         * @param tile Bitmap of the tile.
+         * @param left Horizontal pixel position of the region on the source.
+         * @param top Vertical pixel position of the region on the source.
+         * @param scaleX Tile pixels per source pixel, at most 0.5.
+         * @param scaleY Tile pixels per source pixel, at most 0.5.
+         */
+        private void average(Bitmap tile, float left, float top, float scaleX, float scaleY) {
+            Bitmap source = mips[0];
+            int width = tile.getWidth(), height = tile.getHeight();
+            int sourceWidth = source.getWidth(), sourceHeight = source.getHeight();
+            // First source column of every tile column, and the column after the last one
+            int[] columns = new int[width + 1];
+            for (int u = 0; u <= width; u++) {
+                columns[u] = Math.min(sourceWidth, Math.max(0, (int) (left + u / scaleX)));
+            }
+            int x0 = columns[0], span = columns[width] - x0;
+            if (span <= 0) {
+                return;
+            }
+            int rows = (int) Math.ceil(1 / scaleY) + 1;
+            if (pixels == null || pixels.length < width * height) pixels = new int[width * height];
+            if (band == null || band.length < span * rows) band = new int[span * rows];
+            for (int v = 0; v < height; v++) {
+                int y0 = Math.min(sourceHeight, Math.max(0, (int) (top + v / scaleY)));
+                int y1 = Math.min(sourceHeight, Math.max(0, (int) (top + (v + 1) / scaleY)));
+                if (y1 > y0) source.getPixels(band, 0, span, x0, y0, span, y1 - y0);
+                for (int u = 0; u < width; u++) {
+                    int alpha = 0, red = 0, green = 0, blue = 0, count = 0;
+                    for (int row = 0; row < y1 - y0; row++) {
+                        int end = row * span + columns[u + 1] - x0;
+                        for (int i = row * span + columns[u] - x0; i < end; i++) {
+                            int color = band[i];
+                            int a = color >>> 24;
+                            alpha += a;
+                            red += a * ((color >> 16) & 0xFF);
+                            green += a * ((color >> 8) & 0xFF);
+                            blue += a * (color & 0xFF);
+                            count++;
+                        }
+                    }
+                    pixels[v * width + u] = alpha == 0 ? Color.TRANSPARENT
+                            : Color.argb(alpha / count, red / alpha, green / alpha, blue / alpha);
+                }
+            }
+            tile.setPixels(pixels, 0, width, 0, 0, width, height);
+        }
+
+        /** Recycles the copies. The source is kept. */
+        void recycle() {
+            for (int k = 1; k < mips.length; k++) {
+                mips[k].recycle();
+            }
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package com.example.worlddata;
+
+import java.util.concurrent.ForkJoinPool;
+
+/** Shared fork-join pool of parallel parsing, binning and composition, with one thread per core. */
+public final class WorkerPool {
+
+    private static ForkJoinPool pool;
+
+    private WorkerPool() {
+    }
+
+    /** @return Shared pool, created on first use. */
+    public static synchronized ForkJoinPool get() {
+        if (pool == null) {
+            pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        }
+        return pool;
+    }
+}
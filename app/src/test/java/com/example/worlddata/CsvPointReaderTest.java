@@ -0,0 +1,65 @@
+package com.example.worlddata;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+/**
+ * Number parsing of CSV fields.
+ */
+public class CsvPointReaderTest {
+
+    private static double parse(String field) {
+        byte[] bytes = ("," + field + ",").getBytes(StandardCharsets.UTF_8);
+        return CsvPointReader.parseNumber(ByteBuffer.wrap(bytes), 1, bytes.length - 1);
+    }
+
+    @Test
+    public void plainNumbers_areParsed() {
+        assertEquals(12.5, parse("12.5"), 0);
+        assertEquals(-3, parse("-3"), 0);
+        assertEquals(7, parse("+7"), 0);
+        assertEquals(0.5, parse(".5"), 0);
+        assertEquals(5, parse("5."), 0);
+        assertEquals(-0.000123, parse("-0.000123"), 1e-18);
+    }
+
+    @Test
+    public void exponents_areParsed() {
+        assertEquals(1000, parse("1e3"), 0);
+        assertEquals(0.015, parse("1.5E-2"), 1e-17);
+        assertEquals(2.5e30, parse("2.5e+30"), 1e15);
+        assertEquals(1e-30, parse("1e-30"), 1e-45);
+    }
+
+    @Test
+    public void spacesAndQuotes_areIgnored() {
+        assertEquals(42.25, parse("  42.25 "), 0);
+        assertEquals(-8, parse("\"-8\""), 0);
+        assertEquals(1.5, parse(" \" 1.5 \" "), 0);
+    }
+
+    @Test
+    public void digitsBeyondPrecision_keepMagnitude() {
+        assertEquals(12345678901234567890.0, parse("12345678901234567890"), 1e4);
+        assertEquals(0.1234567890123456789, parse("0.1234567890123456789"), 1e-17);
+    }
+
+    @Test
+    public void invalidFields_areNaN() {
+        assertTrue(Double.isNaN(parse("")));
+        assertTrue(Double.isNaN(parse("  ")));
+        assertTrue(Double.isNaN(parse("\"\"")));
+        assertTrue(Double.isNaN(parse("-")));
+        assertTrue(Double.isNaN(parse(".")));
+        assertTrue(Double.isNaN(parse("abc")));
+        assertTrue(Double.isNaN(parse("1x")));
+        assertTrue(Double.isNaN(parse("1e")));
+        assertTrue(Double.isNaN(parse("1e+")));
+        assertTrue(Double.isNaN(parse("1.2.3")));
+        assertTrue(Double.isNaN(parse("1 2")));
+    }
+}
@@ -0,0 +1,112 @@
+package com.example.worlddata;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Counts, statistics and histogram of the tiled density grid.
+ */
+public class DensityGridTest {
+
+    private static final int EDGE = DensityGrid.TILE_SIZE;
+
+    @Test
+    public void counts_acrossTileBoundaries() {
+        DensityGrid grid = new DensityGrid(3 * EDGE, 2 * EDGE);
+        grid.add(EDGE - 1, EDGE - 1, DensityGrid.RED);
+        grid.add(EDGE, EDGE - 1, DensityGrid.RED);
+        grid.add(EDGE - 1, EDGE, DensityGrid.GREEN);
+        grid.add(EDGE, EDGE, DensityGrid.BLUE);
+        grid.add(EDGE, EDGE, DensityGrid.BLUE);
+        assertEquals(4, grid.getAllocatedTiles());
+        assertEquals(1, grid.get(EDGE - 1, EDGE - 1, DensityGrid.RED));
+        assertEquals(1, grid.get(EDGE, EDGE - 1, DensityGrid.RED));
+        assertEquals(0, grid.get(EDGE, EDGE - 1, DensityGrid.GREEN));
+        assertEquals(1, grid.get(EDGE - 1, EDGE, DensityGrid.GREEN));
+        assertEquals(2, grid.get(EDGE, EDGE, DensityGrid.BLUE));
+        assertArrayEquals(new int[]{0, 0, 2 * EDGE, 2 * EDGE}, grid.getAllocatedArea());
+    }
+
+    @Test
+    public void pixelsOutsideGrid_areIgnored() {
+        DensityGrid grid = new DensityGrid(EDGE + 10, EDGE);
+        grid.add(-1, 0, DensityGrid.RED);
+        grid.add(EDGE + 10, 0, DensityGrid.RED);
+        grid.add(0, EDGE, DensityGrid.RED);
+        assertEquals(0, grid.getAllocatedTiles());
+        assertNull(grid.getAllocatedArea());
+        grid.add(EDGE + 9, EDGE - 1, DensityGrid.RED);
+        assertArrayEquals(new int[]{EDGE, 0, EDGE + 10, EDGE}, grid.getAllocatedArea());
+    }
+
+    @Test
+    public void statistics_areKeptWhileCounting() {
+        DensityGrid grid = new DensityGrid(2 * EDGE, EDGE);
+        for (int i = 0; i < 5; i++) grid.add(EDGE - 1, 0, DensityGrid.RED);
+        for (int i = 0; i < 3; i++) grid.add(EDGE, 0, DensityGrid.RED);
+        grid.add(EDGE, 0, DensityGrid.GREEN);
+        assertEquals(5, grid.getMax(DensityGrid.RED));
+        assertEquals(1, grid.getMax(DensityGrid.GREEN));
+        assertEquals(0, grid.getMax(DensityGrid.BLUE));
+        assertEquals(5, grid.getMax());
+        assertEquals(8, grid.getSum(DensityGrid.RED));
+        assertEquals(1, grid.getSum(DensityGrid.GREEN));
+    }
+
+    @Test
+    public void histogram_countsPixelsByHighestCategory() {
+        DensityGrid grid = new DensityGrid(2 * EDGE, 2 * EDGE);
+        // Pixel whose strongest category changes
+        grid.add(EDGE - 1, EDGE - 1, DensityGrid.RED);
+        grid.add(EDGE - 1, EDGE - 1, DensityGrid.GREEN);
+        grid.add(EDGE - 1, EDGE - 1, DensityGrid.GREEN);
+        grid.add(EDGE - 1, EDGE - 1, DensityGrid.RED);
+        // Pixels in the three other tiles
+        grid.add(EDGE, EDGE - 1, DensityGrid.BLUE);
+        grid.add(EDGE - 1, EDGE, DensityGrid.BLUE);
+        grid.add(EDGE, EDGE, DensityGrid.RED);
+        grid.add(EDGE, EDGE, DensityGrid.RED);
+        long[] histogram = grid.getHistogram();
+        assertEquals(0, histogram[0]);
+        assertEquals(2, histogram[1]);
+        assertEquals(2, histogram[2]);
+        long total = 0;
+        for (long pixels : histogram) total += pixels;
+        assertEquals(4, total);
+        assertEquals(1, grid.getPercentile(0.5));
+        assertEquals(2, grid.getPercentile(0.99));
+    }
+
+    @Test
+    public void addedGrids_equalOneGrid() {
+        DensityGrid single = new DensityGrid(2 * EDGE, 2 * EDGE);
+        DensityGrid first = new DensityGrid(2 * EDGE, 2 * EDGE);
+        DensityGrid second = new DensityGrid(2 * EDGE, 2 * EDGE);
+        int[][] pixels = {{0, 0}, {EDGE - 1, EDGE}, {EDGE, EDGE}, {EDGE, EDGE}, {2 * EDGE - 1, 0}, {0, 0}};
+        for (int i = 0; i < pixels.length; i++) {
+            int channel = i % DensityGrid.CHANNELS;
+            single.add(pixels[i][0], pixels[i][1], channel);
+            (i % 2 == 0 ? first : second).add(pixels[i][0], pixels[i][1], channel);
+        }
+        first.add(second);
+        assertEquals(single.getAllocatedTiles(), first.getAllocatedTiles());
+        assertEquals(single.getMax(), first.getMax());
+        assertArrayEquals(single.getHistogram(), first.getHistogram());
+        for (int[] pixel : pixels) {
+            for (int c = 0; c < DensityGrid.CHANNELS; c++) {
+                assertEquals(single.get(pixel[0], pixel[1], c), first.get(pixel[0], pixel[1], c));
+            }
+        }
+    }
+
+    @Test
+    public void largeCounts_shareBinsByPowerOfTwo() {
+        assertEquals(1023, DensityGrid.getBin(1023));
+        assertEquals(DensityGrid.getBin(1024), DensityGrid.getBin(2047));
+        assertEquals(DensityGrid.getBin(1024) + 1, DensityGrid.getBin(2048));
+        assertEquals(2047, DensityGrid.getBinEnd(DensityGrid.getBin(1024)));
+        assertEquals(Integer.MAX_VALUE, DensityGrid.getBinEnd(DensityGrid.getBin(Integer.MAX_VALUE)));
+        assertTrue(DensityGrid.getBin(Integer.MAX_VALUE) < DensityGrid.HISTOGRAM_BINS);
+    }
+}
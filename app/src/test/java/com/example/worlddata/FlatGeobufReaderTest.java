@@ -0,0 +1,62 @@
+package com.example.worlddata;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.junit.Assert.*;
+
+/**
+ * Detection of FlatGeobuf files and rejection of damaged headers.
+ */
+public class FlatGeobufReaderTest {
+
+    private static byte[] head(int patch) {
+        byte[] head = new byte[64];
+        byte[] magic = {'f', 'g', 'b', 3, 'f', 'g', 'b', (byte) patch};
+        System.arraycopy(magic, 0, head, 0, magic.length);
+        return head;
+    }
+
+    @Test
+    public void magic_ofAnyPatchVersion_isDetected() {
+        assertTrue(FlatGeobufReader.isFlatGeobuf(head(0), 64));
+        assertTrue(FlatGeobufReader.isFlatGeobuf(head(1), 64));
+        assertTrue(FlatGeobufReader.isFlatGeobuf(head(255), 8));
+    }
+
+    @Test
+    public void otherMajorVersions_areRejected() {
+        byte[] head = head(0);
+        head[3] = 2;
+        assertFalse(FlatGeobufReader.isFlatGeobuf(head, 64));
+        head[3] = 4;
+        assertFalse(FlatGeobufReader.isFlatGeobuf(head, 64));
+    }
+
+    @Test
+    public void shortOrForeignHeads_areRejected() {
+        assertFalse(FlatGeobufReader.isFlatGeobuf(head(0), 7));
+        assertFalse(FlatGeobufReader.isFlatGeobuf(new byte[0], 0));
+        assertFalse(FlatGeobufReader.isFlatGeobuf("{\"type\": \"FeatureCollection\"}".getBytes(), 29));
+    }
+
+    @Test(expected = IOException.class)
+    public void emptyHeader_isRejected() throws IOException {
+        new FlatGeobufReader(ByteBuffer.wrap(head(0)));
+    }
+
+    @Test(expected = IOException.class)
+    public void headerBeyondFileEnd_isRejected() throws IOException {
+        ByteBuffer file = ByteBuffer.wrap(head(0)).order(ByteOrder.LITTLE_ENDIAN);
+        file.putInt(8, 1000);
+        new FlatGeobufReader(file);
+    }
+
+    @Test(expected = IOException.class)
+    public void foreignFile_isRejected() throws IOException {
+        new FlatGeobufReader(ByteBuffer.wrap("{\"type\": \"FeatureCollection\", \"features\": []}".getBytes()));
+    }
+}
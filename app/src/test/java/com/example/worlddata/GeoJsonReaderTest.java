@@ -0,0 +1,81 @@
+package com.example.worlddata;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+import static org.junit.Assert.*;
+
+/**
+ * Streaming of GeoJSON features, keeping Point features and skipping all others.
+ */
+public class GeoJsonReaderTest {
+
+    private static PointStore read(String json) throws IOException {
+        return new GeoJsonReader(new StringReader(json)).read();
+    }
+
+    private static String point(float lon, float lat, int category) {
+        return "{\"type\": \"Feature\", \"geometry\": {\"type\": \"Point\", \"coordinates\": [" + lon + ", " + lat
+                + "]}, \"properties\": {\"category\": " + category + "}}";
+    }
+
+    @Test
+    public void points_areRead() throws IOException {
+        PointStore points = read("{\"type\": \"FeatureCollection\", \"title\": \"Test\", \"features\": ["
+                + point(10.5f, -20.25f, 2) + ", " + point(-170, 80, 3) + "]}");
+        assertEquals(2, points.size);
+        assertEquals("Test", points.title);
+        assertTrue(points.hasCategory);
+        assertEquals(10.5f, points.lon[0], 0);
+        assertEquals(-20.25f, points.lat[0], 0);
+        assertEquals(2, points.category[0]);
+        assertEquals(-170f, points.lon[1], 0);
+        assertEquals(3, points.category[1]);
+    }
+
+    @Test
+    public void nestedGeometryCollections_areSkipped() throws IOException {
+        String collection = "{\"type\": \"Feature\", \"properties\": {\"category\": 1}, \"geometry\": "
+                + "{\"type\": \"GeometryCollection\", \"geometries\": ["
+                + "{\"type\": \"Point\", \"coordinates\": [1, 2]}, "
+                + "{\"type\": \"GeometryCollection\", \"geometries\": ["
+                + "{\"type\": \"GeometryCollection\", \"geometries\": []}, "
+                + "{\"type\": \"LineString\", \"coordinates\": [[1, 2], [3, 4]]}]}]}}";
+        PointStore points = read("{\"type\": \"FeatureCollection\", \"features\": [" + point(1, 1, 1) + ", "
+                + collection + ", " + point(2, 2, 2) + "]}");
+        assertEquals(2, points.size);
+        assertEquals(1f, points.lon[0], 0);
+        assertEquals(2f, points.lon[1], 0);
+        assertEquals(2, points.category[1]);
+    }
+
+    @Test
+    public void nullGeometry_isSkipped() throws IOException {
+        String unlocated = "{\"type\": \"Feature\", \"geometry\": null, \"properties\": {\"category\": 3}}";
+        PointStore points = read("{\"type\": \"FeatureCollection\", \"features\": [" + unlocated + ", "
+                + point(5, 6, 1) + ", " + unlocated + "]}");
+        assertEquals(1, points.size);
+        assertEquals(5f, points.lon[0], 0);
+        assertEquals(6f, points.lat[0], 0);
+        assertEquals(1, points.category[0]);
+    }
+
+    @Test
+    public void pointsWithoutTwoCoordinates_areSkipped() throws IOException {
+        PointStore points = read("{\"type\": \"FeatureCollection\", \"features\": ["
+                + "{\"type\": \"Feature\", \"geometry\": {\"type\": \"Point\", \"coordinates\": [1]}}, "
+                + "{\"type\": \"Feature\", \"geometry\": {\"type\": \"Point\", \"coordinates\": [1, 2, 300]}}]}");
+        assertEquals(1, points.size);
+        assertEquals(2f, points.lat[0], 0);
+    }
+
+    @Test
+    public void featureSequence_isRead() throws IOException {
+        PointStore points = new GeoJsonReader(new StringReader(point(1, 2, 1) + "\n"
+                + "{\"type\": \"Feature\", \"geometry\": null}\n" + point(3, 4, 2) + "\n")).readSequence();
+        assertEquals(2, points.size);
+        assertEquals(3f, points.lon[1], 0);
+    }
+}
@@ -0,0 +1,45 @@
+package com.example.worlddata;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Box radii approximating the Gaussian kernel of the heatmap.
+ */
+public class HeatmapTest {
+
+    /** @return Standard deviation of successive box blurs of the given radii. */
+    private static double getSigma(int[] radii) {
+        double variance = 0;
+        for (int radius : radii) {
+            int width = 2 * radius + 1;
+            variance += (width * width - 1) / 12.0;
+        }
+        return Math.sqrt(variance);
+    }
+
+    @Test
+    public void boxes_approximateSigma() {
+        for (float sigma : new float[]{1, 2, 3.5f, 8, 20, 64}) {
+            int[] radii = Heatmap.getBoxRadii(sigma, 1000);
+            assertEquals(3, radii.length);
+            assertEquals("sigma " + sigma, sigma, getSigma(radii), 0.5);
+            for (int i = 1; i < radii.length; i++) {
+                assertTrue("radii grow by at most one", radii[i] - radii[i - 1] == 0 || radii[i] - radii[i - 1] == 1);
+            }
+        }
+    }
+
+    @Test
+    public void smallSigma_givesNoBlur() {
+        assertArrayEquals(new int[]{0, 0, 0}, Heatmap.getBoxRadii(0.1f, 1000));
+    }
+
+    @Test
+    public void radii_areLimited() {
+        for (int radius : Heatmap.getBoxRadii(200, 10)) {
+            assertEquals(10, radius);
+        }
+    }
+}